@@ -0,0 +1,430 @@
+package com.ziptooss.platform.loadtest;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.benchmark.BenchmarkSupport;
+import com.ziptooss.platform.zip.benchmark.FaultInjectingOss;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * @author yukun.yan
+ * @description LoadGenerator 启动完整服务(oss换成FaultInjectingOss), 按固定速率请求各个接口, 输出延迟, 吞吐和峰值堆内存/磁盘占用
+ * 运行: mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.ziptooss.platform.loadtest.LoadGenerator
+ * -Dbenchmark.args="duration=60s rate=2 latency=20 bandwidth=20MB throttle=0.01 reset=0.01"
+ * 参数:
+ * scenarios   逗号分隔, zipToOss, zipToTempFile, downloadZipFile(压缩到临时文件后再下载), zipDownload(边压缩边下载,
+ *             首字节延迟单独统计为zipDownloadFirstByte), fragmentUpload
+ * duration    压测时长, 默认60s
+ * rate        每个场景每秒发起的请求数, 默认1
+ * outstanding 未完成请求数上限, 超过后丢弃并计入dropped, 默认64
+ * objects     每个压缩请求的文件数, 默认20
+ * objectSize  源文件大小, 默认1MB
+ * content     text 可压缩, random 压缩不了, 默认text
+ * uploadSize  分片上传的文件大小, 默认64MB
+ * latency     oss每个请求的延迟毫秒数, 默认20
+ * bandwidth   oss单连接带宽, 默认不限
+ * throttle    oss请求返回503的概率, 默认0
+ * reset       oss传输中途断开的概率, 默认0
+ * cache       是否开启zipToOss结果缓存, 默认false
+ * zip.*       原样作为服务配置传入, 例如 zip.upload.pool-size=4
+ * 压缩场景的MB/s按源文件大小算, 下载和上传按实际传输的字节算, 堆内存是整个进程的, 包括压测客户端本身
+ * @date 2023/8/21 11:30
+ */
+public class LoadGenerator {
+
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+    private final Map<String, String> options;
+
+    private final String baseUrl;
+
+    private final Path workDir;
+
+    private final File uploadFile;
+
+    private final List<String> sourcePaths;
+
+    /**
+     * 每个压缩请求的源文件总大小
+     */
+    private final long sourceBytes;
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .readTimeout(10, TimeUnit.MINUTES)
+            .writeTimeout(10, TimeUnit.MINUTES)
+            .build();
+
+    private final Map<String, ScenarioStats> stats = new LinkedHashMap<>();
+
+    private final AtomicLong taskId = new AtomicLong();
+
+    private volatile long peakHeapBytes;
+
+    private volatile long peakDiskBytes;
+
+    private LoadGenerator(Map<String, String> options, int port, Path workDir, File uploadFile,
+                          List<String> sourcePaths, long sourceBytes) {
+        this.options = options;
+        this.baseUrl = "http://localhost:" + port;
+        this.workDir = workDir;
+        this.uploadFile = uploadFile;
+        this.sourcePaths = sourcePaths;
+        this.sourceBytes = sourceBytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index > 0) {
+                options.put(arg.substring(0, index), arg.substring(index + 1));
+            }
+        }
+        // 服务的临时文件, spool, 断点和tomcat上传缓存都放在workDir, 统计磁盘占用
+        Path baseDir = Paths.get(System.getProperty("java.io.tmpdir"), "zip-to-oss-loadtest-" + System.currentTimeMillis());
+        Path workDir = Files.createDirectories(baseDir.resolve("work"));
+        File uploadFile = baseDir.resolve("upload.dat").toFile();
+        writeUploadFile(uploadFile, DataSize.parse(options.getOrDefault("uploadSize", "64MB")).toBytes());
+        System.setProperty("java.io.tmpdir", workDir.toString());
+
+        FaultInjectingOss oss = new FaultInjectingOss();
+        int objects = Integer.parseInt(options.getOrDefault("objects", "20"));
+        int objectSize = (int) DataSize.parse(options.getOrDefault("objectSize", "1MB")).toBytes();
+        List<String> sourcePaths = new ArrayList<>(objects);
+        for (int i = 0; i < objects; i++) {
+            String path = "loadtest/source/" + i + ".dat";
+            oss.putObject(path, BenchmarkSupport.generate(objectSize, options.getOrDefault("content", "text"), i));
+            sourcePaths.add(path);
+        }
+        oss.setLatencyMillis(Long.parseLong(options.getOrDefault("latency", "20")));
+        oss.setBandwidthBytesPerSecond(DataSize.parse(options.getOrDefault("bandwidth", "0B")).toBytes());
+        oss.setThrottleRate(Double.parseDouble(options.getOrDefault("throttle", "0")));
+        oss.setResetRate(Double.parseDouble(options.getOrDefault("reset", "0")));
+
+        List<String> appArgs = new ArrayList<>(Arrays.asList("--server.port=0", "--logging.level.root=WARN",
+                "--zip.cache.enabled=" + options.getOrDefault("cache", "false")));
+        options.forEach((key, value) -> {
+            if (key.startsWith("zip.")) {
+                appArgs.add("--" + key + "=" + value);
+            }
+        });
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(LoadTestApplication.class)
+                .initializers(ctx -> ctx.getBeanFactory().registerSingleton("faultInjectingOss", oss))
+                .run(appArgs.toArray(new String[0]));
+        int exitCode = 0;
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            LoadGenerator generator = new LoadGenerator(options, port, workDir, uploadFile,
+                    sourcePaths, (long) objects * objectSize);
+            generator.run();
+            System.out.printf("oss requests=%d, throttled=%d, resets=%d, callbacks=%d%n", oss.getRequestCount(),
+                    oss.getThrottled(), oss.getResets(), context.getBean(LoadTestCallbackController.class).getCallbacks());
+            printStageMetrics(context.getBean(MeterRegistry.class));
+        } catch (Exception e) {
+            e.printStackTrace();
+            exitCode = 1;
+        } finally {
+            context.close();
+            deleteRecursively(baseDir);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * 服务端各阶段的耗时, 和 /actuator/prometheus 里的 zip_stage_duration 一致
+     */
+    private static void printStageMetrics(MeterRegistry meterRegistry) {
+        for (Timer timer : meterRegistry.find("zip.stage.duration").timers()) {
+            if (timer.count() == 0) {
+                continue;
+            }
+            System.out.printf("stage %-16s %-8s count=%-6d mean=%-8.1fms max=%-8.1fms%n", timer.getId().getTag("stage"),
+                    timer.getId().getTag("outcome"), timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void run() throws InterruptedException {
+        Duration duration = DurationStyle.detectAndParse(options.getOrDefault("duration", "60s"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+        Semaphore outstanding = new Semaphore(Integer.parseInt(options.getOrDefault("outstanding", "64")));
+        List<String> scenarios = Arrays.asList(options.getOrDefault("scenarios", "zipToOss,downloadZipFile,fragmentUpload").split(","));
+        for (String scenario : scenarios) {
+            stats.put(scenario, new ScenarioStats(scenario));
+        }
+        if (scenarios.contains("downloadZipFile")) {
+            stats.putIfAbsent("zipToTempFile", new ScenarioStats("zipToTempFile"));
+        }
+        if (scenarios.contains("zipDownload")) {
+            stats.putIfAbsent("zipDownloadFirstByte", new ScenarioStats("zipDownloadFirstByte"));
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(scenarios.size() + 1);
+        ExecutorService workers = Executors.newCachedThreadPool();
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        for (String scenario : scenarios) {
+            // 开环压测, 按固定速率发起, 不等待上一个请求完成
+            scheduler.scheduleAtFixedRate(() -> {
+                if (!outstanding.tryAcquire()) {
+                    stats.get(scenario).dropped();
+                    return;
+                }
+                workers.execute(() -> {
+                    try {
+                        runScenario(scenario);
+                    } finally {
+                        outstanding.release();
+                    }
+                });
+            }, 0, periodNanos, TimeUnit.NANOSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::sample, 0, 200, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        System.out.printf("load test started, baseUrl=%s, scenarios=%s, rate=%s/s, duration=%s%n", baseUrl, scenarios, rate, duration);
+        TimeUnit.NANOSECONDS.sleep(duration.toNanos());
+        scheduler.shutdownNow();
+        // 等已发出的请求完成, 统计到完成为止
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+        sample();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("elapsed=%ds%n", TimeUnit.NANOSECONDS.toSeconds(elapsed));
+        for (ScenarioStats scenarioStats : stats.values()) {
+            System.out.println(scenarioStats.report(elapsed));
+        }
+        System.out.printf("peak heap=%dMB, peak disk=%dMB%n", peakHeapBytes >> 20, peakDiskBytes >> 20);
+    }
+
+    private void runScenario(String scenario) {
+        ScenarioStats scenarioStats = stats.get(scenario);
+        long start = System.nanoTime();
+        try {
+            switch (scenario) {
+                case "zipToOss":
+                    submitAndWait("/zipServicePlatform/zipToOss");
+                    scenarioStats.success(System.nanoTime() - start, sourceBytes);
+                    break;
+                case "zipToTempFile":
+                    submitAndWait("/zipServicePlatform/zipToTempFile");
+                    scenarioStats.success(System.nanoTime() - start, sourceBytes);
+                    break;
+                case "downloadZipFile":
+                    String filePath = submitAndWait("/zipServicePlatform/zipToTempFile");
+                    stats.get("zipToTempFile").success(System.nanoTime() - start, sourceBytes);
+                    long downloadStart = System.nanoTime();
+                    long bytes = download(filePath);
+                    scenarioStats.success(System.nanoTime() - downloadStart, bytes);
+                    break;
+                case "zipDownload":
+                    long zipBytes = zipDownload(start);
+                    scenarioStats.success(System.nanoTime() - start, zipBytes);
+                    break;
+                case "fragmentUpload":
+                    fragmentUpload();
+                    scenarioStats.success(System.nanoTime() - start, uploadFile.length());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown scenario " + scenario);
+            }
+        } catch (LoadTestException e) {
+            scenarioStats.failure(e.getMessage());
+        } catch (Exception e) {
+            scenarioStats.failure(e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * 提交压缩任务并轮询到结束
+     *
+     * @return 任务结果
+     */
+    private String submitAndWait(String path) throws IOException, InterruptedException {
+        ZipRequest zipRequest = new ZipRequest();
+        zipRequest.setOssFilePathList(sourcePaths);
+        zipRequest.setBizSource("loadtest");
+        zipRequest.setTaskId(taskId.incrementAndGet());
+        zipRequest.setCallbackUrl(baseUrl + "/loadtest/callback");
+        Request request = new Request.Builder()
+                .url(baseUrl + path)
+                .post(RequestBody.create(JSON_TYPE, JSON.toJSONString(zipRequest)))
+                .build();
+        JSONObject submitted = execute(request);
+        if (submitted.getIntValue("code") != 200) {
+            throw new LoadTestException("rejected");
+        }
+        String jobId = submitted.getString("data");
+        while (true) {
+            JSONObject job = execute(new Request.Builder().url(baseUrl + "/zipServicePlatform/jobs/" + jobId).build())
+                    .getJSONObject("data");
+            if (job == null) {
+                throw new LoadTestException("jobExpired");
+            }
+            String status = job.getString("status");
+            if ("success".equals(status)) {
+                return job.getString("result");
+            }
+            if ("failed".equals(status)) {
+                throw new LoadTestException("jobFailed");
+            }
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    private long download(String filePath) throws IOException {
+        HttpUrl url = HttpUrl.get(baseUrl + "/zipServicePlatform/downloadZipFile").newBuilder()
+                .addQueryParameter("filePath", filePath)
+                .build();
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new LoadTestException("http" + response.code());
+            }
+            ResponseBody body = response.body();
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            try (InputStream inputStream = body.byteStream()) {
+                while ((n = inputStream.read(buffer)) > 0) {
+                    total += n;
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * 边压缩边下载, 读到第一个字节时记一次首字节延迟
+     *
+     * @return 下载的字节数
+     */
+    private long zipDownload(long start) throws IOException {
+        ZipRequest zipRequest = new ZipRequest();
+        zipRequest.setOssFilePathList(sourcePaths);
+        zipRequest.setBizSource("loadtest");
+        Request request = new Request.Builder()
+                .url(baseUrl + "/zipServicePlatform/zipDownload")
+                .post(RequestBody.create(JSON_TYPE, JSON.toJSONString(zipRequest)))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new LoadTestException("http" + response.code());
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            try (InputStream inputStream = response.body().byteStream()) {
+                while ((n = inputStream.read(buffer)) > 0) {
+                    if (total == 0) {
+                        stats.get("zipDownloadFirstByte").success(System.nanoTime() - start, 0);
+                    }
+                    total += n;
+                }
+            }
+            return total;
+        }
+    }
+
+    private void fragmentUpload() throws IOException {
+        RequestBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("bizSource", "loadtest")
+                .addFormDataPart("file", "upload.dat", RequestBody.create(OCTET_STREAM, uploadFile))
+                .build();
+        JSONObject result = execute(new Request.Builder().url(baseUrl + "/zipServicePlatform/fragmentUpload").post(body).build());
+        if (result.getIntValue("code") != 200) {
+            throw new LoadTestException("uploadFailed");
+        }
+    }
+
+    private JSONObject execute(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new LoadTestException("http" + response.code());
+            }
+            return JSON.parseObject(response.body().string());
+        }
+    }
+
+    private void sample() {
+        peakHeapBytes = Math.max(peakHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        long diskBytes = 0;
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            diskBytes = paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (Exception e) {
+            // 遍历时文件被删除, 忽略这次采样
+        }
+        peakDiskBytes = Math.max(peakDiskBytes, diskBytes);
+    }
+
+    private static void writeUploadFile(File file, long size) throws IOException {
+        Files.createDirectories(file.toPath().getParent());
+        byte[] block = BenchmarkSupport.generate(1024 * 1024, "random", 0);
+        try (OutputStream outputStream = Files.newOutputStream(file.toPath())) {
+            for (long written = 0; written < size; written += block.length) {
+                outputStream.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * 可预期的失败, 按message分类统计
+     */
+    private static class LoadTestException extends IOException {
+
+        LoadTestException(String message) {
+            super(message);
+        }
+
+    }
+
+}
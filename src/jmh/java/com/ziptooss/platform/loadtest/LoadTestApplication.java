@@ -0,0 +1,37 @@
+package com.ziptooss.platform.loadtest;
+
+import com.ziptooss.platform.zip.ZipServicePlatformApplication;
+import com.ziptooss.platform.zip.benchmark.FaultInjectingOss;
+import com.ziptooss.platform.zip.config.OssServiceAutoConfiguration;
+import com.ziptooss.platform.zip.util.OssUtils;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * @author yukun.yan
+ * @description LoadTestApplication 完整的服务, 只把oss客户端换成FaultInjectingOss
+ * @date 2023/8/21 10:50
+ */
+@EnableScheduling
+@EnableAutoConfiguration
+@SpringBootConfiguration
+@ComponentScan(basePackages = "com.ziptooss.platform", excludeFilters = @ComponentScan.Filter(
+        type = FilterType.ASSIGNABLE_TYPE, classes = {ZipServicePlatformApplication.class, OssServiceAutoConfiguration.class}))
+public class LoadTestApplication {
+
+    /**
+     * FaultInjectingOss由LoadGenerator启动时注册到容器中
+     *
+     * @param faultInjectingOss
+     * @return
+     */
+    @Bean(destroyMethod = "destroy")
+    public OssUtils ossUtils(FaultInjectingOss faultInjectingOss) {
+        return new OssUtils(faultInjectingOss.asOss(), "loadtest", "oss-cn-hangzhou", "http://localhost");
+    }
+
+}
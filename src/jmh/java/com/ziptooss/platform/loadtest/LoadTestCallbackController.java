@@ -0,0 +1,30 @@
+package com.ziptooss.platform.loadtest;
+
+import com.ziptooss.platform.zip.util.ServerlessResponse;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author yukun.yan
+ * @description LoadTestCallbackController 代替网盘系统接收压缩完成的回调
+ * @date 2023/8/21 11:02
+ */
+@RestController
+public class LoadTestCallbackController {
+
+    private final AtomicLong callbacks = new AtomicLong();
+
+    @PostMapping("/loadtest/callback")
+    public ServerlessResponse<Void> callback(@RequestBody String body) {
+        callbacks.incrementAndGet();
+        return ServerlessResponse.ok();
+    }
+
+    public long getCallbacks() {
+        return callbacks.get();
+    }
+
+}
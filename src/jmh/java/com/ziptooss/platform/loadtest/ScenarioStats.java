@@ -0,0 +1,74 @@
+package com.ziptooss.platform.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author yukun.yan
+ * @description ScenarioStats 单个场景的延迟, 成功失败数和数据量
+ * @date 2023/8/21 11:10
+ */
+public class ScenarioStats {
+
+    private final String name;
+
+    /**
+     * 成功请求的延迟, 纳秒
+     */
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * 失败原因 -> 次数
+     */
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    /**
+     * 并发请求数达到上限没有发出的请求
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    public ScenarioStats(String name) {
+        this.name = name;
+    }
+
+    public void success(long latencyNanos, long byteCount) {
+        latencies.add(latencyNanos);
+        bytes.addAndGet(byteCount);
+    }
+
+    public void failure(String reason) {
+        failures.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    public String report(long elapsedNanos) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        long failed = failures.values().stream().mapToLong(AtomicLong::get).sum();
+        return String.format("%-16s ok=%-6d failed=%-6d dropped=%-6d rps=%-8.2f p50=%-8dms p99=%-8dms max=%-8dms MB/s=%.2f failures=%s",
+                name, sorted.size(), failed, dropped.get(), sorted.size() / seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                bytes.get() / 1024.0 / 1024.0 / seconds, failures);
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))));
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import com.ziptooss.platform.zip.config.ThreadPoolConfig;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.service.SpoolManager;
+import com.ziptooss.platform.zip.service.UploadCheckpointStore;
+import com.ziptooss.platform.zip.service.ZipMetrics;
+import com.ziptooss.platform.zip.service.ZipResultCache;
+import com.ziptooss.platform.zip.util.OssUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.stream.Stream;
+
+/**
+ * @author yukun.yan
+ * @description BenchmarkSupport 不启动spring容器, 手动装配OssUtils和它依赖的组件
+ * @date 2023/8/18 10:40
+ */
+public class BenchmarkSupport {
+
+    private static final String[] WORDS = {"zip", "oss", "bucket", "object", "stream", "part", "upload",
+            "deflate", "entry", "archive", "serverless", "callback", "task", "biz", "source", "file"};
+
+    private final ExecutorService uploadPoolExecutor;
+
+    private final ExecutorService downloadPoolExecutor;
+
+    private final ExecutorService rangePoolExecutor;
+
+    private final ThreadPoolExecutor volumePoolExecutor;
+
+    private final ThreadPoolExecutor compressPoolExecutor;
+
+    private final SpoolManager spoolManager;
+
+    private final Path workDir;
+
+    private BenchmarkSupport(ExecutorService uploadPoolExecutor, ExecutorService downloadPoolExecutor,
+                             ExecutorService rangePoolExecutor, ThreadPoolExecutor volumePoolExecutor,
+                             ThreadPoolExecutor compressPoolExecutor, SpoolManager spoolManager, Path workDir) {
+        this.uploadPoolExecutor = uploadPoolExecutor;
+        this.downloadPoolExecutor = downloadPoolExecutor;
+        this.rangePoolExecutor = rangePoolExecutor;
+        this.volumePoolExecutor = volumePoolExecutor;
+        this.compressPoolExecutor = compressPoolExecutor;
+        this.spoolManager = spoolManager;
+        this.workDir = workDir;
+    }
+
+    /**
+     * 装配OssUtils, 断点和临时文件放在单独的临时目录, 断点和结果缓存默认关闭
+     *
+     * @param oss
+     * @param zipConfigBean
+     * @return
+     * @throws IOException
+     */
+    public static BenchmarkSupport install(InMemoryOss oss, ZipConfigBean zipConfigBean) throws IOException {
+        Path workDir = Files.createTempDirectory("zip-to-oss-benchmark");
+        zipConfigBean.getCheckpoint().setDir(workDir.resolve("checkpoint").toString());
+        zipConfigBean.getSpool().setDir(workDir.resolve("spool").toString());
+
+        UploadCheckpointStore checkpointStore = new UploadCheckpointStore();
+        ReflectionTestUtils.setField(checkpointStore, "zipConfigBean", zipConfigBean);
+        checkpointStore.init();
+        SpoolManager spoolManager = new SpoolManager();
+        ReflectionTestUtils.setField(spoolManager, "zipConfigBean", zipConfigBean);
+        spoolManager.init();
+
+        ExecutorService uploadPoolExecutor = ThreadPoolConfig.uploadPoolExecutor(zipConfigBean);
+        ExecutorService downloadPoolExecutor = ThreadPoolConfig.downloadPoolExecutor(zipConfigBean);
+        ExecutorService rangePoolExecutor = ThreadPoolConfig.rangePoolExecutor(zipConfigBean);
+        ThreadPoolExecutor volumePoolExecutor = ThreadPoolConfig.volumePoolExecutor(zipConfigBean);
+        ThreadPoolExecutor compressPoolExecutor = ThreadPoolConfig.compressPoolExecutor(zipConfigBean);
+        OssUtils ossUtils = new OssUtils(oss.asOss(), "benchmark", "oss-cn-hangzhou", "http://localhost");
+        ReflectionTestUtils.setField(ossUtils, "zipConfigBean", zipConfigBean);
+        ReflectionTestUtils.setField(ossUtils, "uploadCheckpointStore", checkpointStore);
+        ReflectionTestUtils.setField(ossUtils, "spoolManager", spoolManager);
+        // 只记录阶段指标, 不绑定线程池和连接池
+        ZipMetrics zipMetrics = new ZipMetrics();
+        ReflectionTestUtils.setField(zipMetrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(ossUtils, "zipMetrics", zipMetrics);
+        ZipResultCache zipResultCache = new ZipResultCache();
+        ReflectionTestUtils.setField(zipResultCache, "zipConfigBean", zipConfigBean);
+        ReflectionTestUtils.setField(zipResultCache, "zipMetrics", zipMetrics);
+        zipResultCache.init();
+        ReflectionTestUtils.setField(ossUtils, "zipResultCache", zipResultCache);
+        ReflectionTestUtils.setField(ossUtils, "uploadPoolExecutor", uploadPoolExecutor);
+        ReflectionTestUtils.setField(ossUtils, "downloadPoolExecutor", downloadPoolExecutor);
+        ReflectionTestUtils.setField(ossUtils, "rangePoolExecutor", rangePoolExecutor);
+        ReflectionTestUtils.setField(ossUtils, "volumePoolExecutor", volumePoolExecutor);
+        ReflectionTestUtils.setField(ossUtils, "compressPoolExecutor", compressPoolExecutor);
+        ReflectionTestUtils.invokeMethod(ossUtils, "init");
+        return new BenchmarkSupport(uploadPoolExecutor, downloadPoolExecutor, rangePoolExecutor, volumePoolExecutor, compressPoolExecutor,
+                spoolManager, workDir);
+    }
+
+    public static ZipConfigBean defaultConfig() {
+        ZipConfigBean zipConfigBean = new ZipConfigBean();
+        zipConfigBean.getCheckpoint().setEnabled(false);
+        // 每次迭代都要真正压缩
+        zipConfigBean.getCache().setEnabled(false);
+        return zipConfigBean;
+    }
+
+    /**
+     * 生成测试内容, text是可压缩的单词序列, random是压缩不了的随机字节
+     *
+     * @param size
+     * @param content text 或 random
+     * @param seed
+     * @return
+     */
+    public static byte[] generate(int size, String content, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        if ("random".equals(content)) {
+            random.nextBytes(data);
+            return data;
+        }
+        int pos = 0;
+        while (pos < size) {
+            byte[] word = (WORDS[random.nextInt(WORDS.length)] + (random.nextInt(8) == 0 ? "\n" : " "))
+                    .getBytes(StandardCharsets.US_ASCII);
+            int n = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, data, pos, n);
+            pos += n;
+        }
+        return data;
+    }
+
+    public SpoolManager getSpoolManager() {
+        return spoolManager;
+    }
+
+    public Path getWorkDir() {
+        return workDir;
+    }
+
+    public void shutdown() throws IOException {
+        uploadPoolExecutor.shutdownNow();
+        downloadPoolExecutor.shutdownNow();
+        rangePoolExecutor.shutdownNow();
+        volumePoolExecutor.shutdownNow();
+        compressPoolExecutor.shutdownNow();
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import com.aliyun.oss.OSSException;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author yukun.yan
+ * @description FaultInjectingOss 在InMemoryOss上注入故障: 单连接带宽限制, 503限流和传输中途断开连接
+ * 注入的错误相当于sdk自身重试用完后抛出的异常
+ * @date 2023/8/21 10:20
+ */
+public class FaultInjectingOss extends InMemoryOss {
+
+    /**
+     * 单个连接每秒字节数, 小于等于0不限速
+     */
+    private volatile long bandwidthBytesPerSecond;
+
+    /**
+     * 请求返回503的概率
+     */
+    private volatile double throttleRate;
+
+    /**
+     * 传输中途断开连接的概率, 断开位置随机
+     */
+    private volatile double resetRate;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong resets = new AtomicLong();
+
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    @Override
+    protected void beforeRequest(String methodName) throws Exception {
+        super.beforeRequest(methodName);
+        if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throttled.incrementAndGet();
+            throw new OSSException("Please reduce your request rate.", "ServiceUnavailable", null, null, null, null, methodName);
+        }
+    }
+
+    @Override
+    protected InputStream openContent(String key, byte[] content, int offset, int length) {
+        return inject(new ByteArrayInputStream(content, offset, length), length);
+    }
+
+    @Override
+    protected InputStream openUpload(InputStream inputStream) {
+        return inject(inputStream, -1);
+    }
+
+    /**
+     * @param inputStream
+     * @param length      已知长度时断开位置在长度内随机, 未知时在前8MB内随机
+     * @return
+     */
+    private InputStream inject(InputStream inputStream, long length) {
+        long resetAt = -1;
+        if (resetRate > 0 && ThreadLocalRandom.current().nextDouble() < resetRate) {
+            resetAt = ThreadLocalRandom.current().nextLong(Math.max(1, length > 0 ? length : 8L * 1024 * 1024));
+        }
+        long bandwidth = bandwidthBytesPerSecond;
+        if (resetAt < 0 && bandwidth <= 0) {
+            return inputStream;
+        }
+        return new FaultyInputStream(inputStream, bandwidth > 0 ? RateLimiter.create(bandwidth) : null, resetAt);
+    }
+
+    private class FaultyInputStream extends FilterInputStream {
+
+        private final RateLimiter rateLimiter;
+
+        private final long resetAt;
+
+        private long position;
+
+        FaultyInputStream(InputStream in, RateLimiter rateLimiter, long resetAt) {
+            super(in);
+            this.rateLimiter = rateLimiter;
+            this.resetAt = resetAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (resetAt >= 0) {
+                if (position >= resetAt) {
+                    resets.incrementAndGet();
+                    throw new SocketException("Connection reset");
+                }
+                len = (int) Math.min(len, resetAt - position);
+            }
+            if (rateLimiter != null) {
+                // 每次最多读64KB, 让限速更平滑
+                len = Math.min(len, 64 * 1024);
+            }
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                position += n;
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(n);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.util.OssUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yukun.yan
+ * @description FragmentUploadBenchmark 大文件分片上传吞吐, 对比不同的并发数和分片大小
+ * 运行: mvn -Pbenchmark compile exec:exec -Dbenchmark.args="FragmentUploadBenchmark -p latencyMillis=20 -prof gc"
+ * @date 2023/8/18 11:35
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+public class FragmentUploadBenchmark {
+
+    @Param({"256MB"})
+    public String fileSize;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    @Param({"4", "16"})
+    public int concurrency;
+
+    /**
+     * 分片大小下限, 分片大小由文件大小和并发数算出后再限制在上下限之间
+     */
+    @Param({"5MB"})
+    public String minPartSize;
+
+    @Param({"64MB"})
+    public String maxPartSize;
+
+    private BenchmarkSupport support;
+
+    private Path file;
+
+    private FileChannel channel;
+
+    private long fileLength;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InMemoryOss oss = new InMemoryOss();
+        oss.setLatencyMillis(latencyMillis);
+        ZipConfigBean zipConfigBean = BenchmarkSupport.defaultConfig();
+        zipConfigBean.getUpload().setConcurrency(concurrency);
+        zipConfigBean.getUpload().setMinPartSize(DataSize.parse(minPartSize));
+        zipConfigBean.getUpload().setMaxPartSize(DataSize.parse(maxPartSize));
+        support = BenchmarkSupport.install(oss, zipConfigBean);
+
+        fileLength = DataSize.parse(fileSize).toBytes();
+        file = support.getWorkDir().resolve("upload.dat");
+        byte[] block = BenchmarkSupport.generate(1024 * 1024, "random", 0);
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            for (long written = 0; written < fileLength; written += block.length) {
+                outputStream.write(block, 0, (int) Math.min(block.length, fileLength - written));
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        support.shutdown();
+    }
+
+    @Benchmark
+    public String fragmentUpload(ThroughputCounters counters) {
+        // 直接从已落盘的文件上传, 不计MultipartFile转存的开销
+        String result = ReflectionTestUtils.invokeMethod(OssUtils.class, "fragmentUpload",
+                channel, fileLength, "benchmark", "dat", "upload.dat");
+        counters.add(fileLength);
+        return result;
+    }
+
+}
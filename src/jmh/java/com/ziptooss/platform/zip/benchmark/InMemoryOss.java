@@ -0,0 +1,313 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.OSSException;
+import com.aliyun.oss.common.comm.ResponseMessage;
+import com.aliyun.oss.common.utils.CRC64;
+import com.aliyun.oss.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author yukun.yan
+ * @description InMemoryOss 进程内的oss, 只实现压缩和上传用到的接口, 每个请求可以模拟固定延迟
+ * @date 2023/8/18 10:15
+ */
+public class InMemoryOss implements InvocationHandler {
+
+    /**
+     * 预置的源文件, key -> 内容, 按key排序, 列举时和oss一样按字典序返回
+     */
+    private final ConcurrentSkipListMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+
+    /**
+     * 源文件的ETag, 随内容变化, 覆盖写入后增量压缩和结果缓存才能发现文件变了
+     */
+    private final Map<String, String> eTags = new ConcurrentHashMap<>();
+
+    /**
+     * 上传完成的文件只记大小, 不保留内容
+     */
+    private final Map<String, Long> uploadedObjects = new ConcurrentHashMap<>();
+
+    /**
+     * uploadId -> 已上传的分片, 只记分片号, 大小和etag
+     */
+    private final Map<String, Map<Integer, PartSummary>> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private volatile long latencyMillis;
+
+    public OSS asOss() {
+        return (OSS) Proxy.newProxyInstance(OSS.class.getClassLoader(), new Class[]{OSS.class}, this);
+    }
+
+    public void putObject(String key, byte[] content) {
+        eTags.put(key, "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"");
+        objects.put(key, content);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public Map<String, Long> getUploadedObjects() {
+        return uploadedObjects;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            try {
+                return method.invoke(this, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        switch (method.getName()) {
+            case "shutdown":
+                return null;
+            case "doesBucketExist":
+                return true;
+            case "generatePresignedUrl":
+                return new URL("http://localhost/" + args[1]);
+            default:
+                break;
+        }
+        requestCount.incrementAndGet();
+        beforeRequest(method.getName());
+        switch (method.getName()) {
+            case "getObject":
+                return args[0] instanceof GetObjectRequest
+                        ? getObject((GetObjectRequest) args[0])
+                        : getObject((String) args[1], null);
+            case "getObjectMetadata":
+                return metadataOf((String) args[1], get((String) args[1]).length);
+            case "doesObjectExist":
+                return objects.containsKey((String) args[1]) || uploadedObjects.containsKey((String) args[1]);
+            case "putObject":
+                return putObject(args);
+            case "initiateMultipartUpload":
+                return initiateMultipartUpload();
+            case "uploadPart":
+                return uploadPart((UploadPartRequest) args[0]);
+            case "completeMultipartUpload":
+                return completeMultipartUpload((CompleteMultipartUploadRequest) args[0]);
+            case "abortMultipartUpload":
+                uploads.remove(((AbortMultipartUploadRequest) args[0]).getUploadId());
+                return null;
+            case "listParts":
+                return listParts((ListPartsRequest) args[0]);
+            case "listMultipartUploads":
+                return new MultipartUploadListing();
+            case "listObjectsV2":
+                return listObjectsV2((ListObjectsV2Request) args[0]);
+            case "deleteObject":
+                uploadedObjects.remove((String) args[1]);
+                return null;
+            default:
+                throw new UnsupportedOperationException("InMemoryOss does not support " + method.getName());
+        }
+    }
+
+    /**
+     * 每个请求处理前调用, 默认只模拟延迟
+     *
+     * @param methodName
+     * @throws Exception
+     */
+    protected void beforeRequest(String methodName) throws Exception {
+        if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+    }
+
+    /**
+     * 上传的请求体, 默认原样读取
+     *
+     * @param inputStream
+     * @return
+     */
+    protected InputStream openUpload(InputStream inputStream) {
+        return inputStream;
+    }
+
+    protected byte[] get(String key) {
+        byte[] content = objects.get(key);
+        if (content == null) {
+            throw new OSSException("The specified key does not exist.", "NoSuchKey", null, null, null, null, null);
+        }
+        return content;
+    }
+
+    protected InputStream openContent(String key, byte[] content, int offset, int length) {
+        return new ByteArrayInputStream(content, offset, length);
+    }
+
+    /**
+     * 只列举预置的源文件, continuationToken就是上一页最后一个key
+     */
+    private ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String after = request.getContinuationToken() == null ? prefix : request.getContinuationToken();
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(prefix);
+        String lastKey = null;
+        for (Map.Entry<String, byte[]> entry : objects.tailMap(after, request.getContinuationToken() == null).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (result.getObjectSummaries().size() == request.getMaxKeys()) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(lastKey);
+                break;
+            }
+            OSSObjectSummary summary = new OSSObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(entry.getKey());
+            summary.setSize(entry.getValue().length);
+            summary.setETag(eTags.get(entry.getKey()));
+            result.addObjectSummary(summary);
+            lastKey = entry.getKey();
+        }
+        result.setKeyCount(result.getObjectSummaries().size());
+        return result;
+    }
+
+    private OSSObject getObject(GetObjectRequest request) {
+        List<String> matchingETags = request.getMatchingETagConstraints();
+        if (matchingETags != null && !matchingETags.isEmpty()
+                && !matchingETags.contains(metadataOf(request.getKey(), 0).getETag())) {
+            throw new OSSException("At least one of the pre-conditions you specified did not hold.", "PreconditionFailed",
+                    null, null, null, null, null);
+        }
+        return getObject(request.getKey(), request.getRange());
+    }
+
+    private OSSObject getObject(String key, long[] range) {
+        byte[] content = get(key);
+        int start = 0;
+        int end = content.length - 1;
+        if (range != null) {
+            start = (int) range[0];
+            end = range[1] < 0 ? end : (int) Math.min(range[1], end);
+        }
+        OSSObject ossObject = new OSSObject();
+        ossObject.setKey(key);
+        ossObject.setObjectMetadata(metadataOf(key, end - start + 1));
+        ossObject.setObjectContent(openContent(key, content, start, end - start + 1));
+        // forcedClose会调用response.abort
+        ossObject.setResponse(new ResponseMessage(null));
+        return ossObject;
+    }
+
+    private ObjectMetadata metadataOf(String key, long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        metadata.setContentType("application/octet-stream");
+        metadata.setHeader("ETag", eTags.getOrDefault(key, "\"" + Integer.toHexString(key.hashCode()) + "\""));
+        return metadata;
+    }
+
+    private PutObjectResult putObject(Object[] args) throws IOException {
+        String key = (String) args[1];
+        long size;
+        if (args[2] instanceof File) {
+            try (InputStream inputStream = new FileInputStream((File) args[2])) {
+                size = drain(openUpload(inputStream), Long.MAX_VALUE, null);
+            }
+        } else {
+            size = drain(openUpload((InputStream) args[2]), Long.MAX_VALUE, null);
+        }
+        uploadedObjects.put(key, size);
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(UUID.randomUUID().toString());
+        return result;
+    }
+
+    private InitiateMultipartUploadResult initiateMultipartUpload() {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    private UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+        Map<Integer, PartSummary> parts = partsOf(request.getUploadId());
+        CRC64 crc = new CRC64();
+        long size = drain(openUpload(request.getInputStream()), request.getPartSize(), crc);
+        PartSummary part = new PartSummary();
+        part.setPartNumber(request.getPartNumber());
+        part.setETag(Long.toHexString(crc.getValue()));
+        part.setSize(size);
+        parts.put(request.getPartNumber(), part);
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Long.toHexString(crc.getValue()));
+        result.setPartSize(size);
+        result.setClientCRC(crc.getValue());
+        return result;
+    }
+
+    private CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Map<Integer, PartSummary> parts = partsOf(request.getUploadId());
+        uploads.remove(request.getUploadId());
+        uploadedObjects.put(request.getKey(), parts.values().stream().mapToLong(PartSummary::getSize).sum());
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setKey(request.getKey());
+        return result;
+    }
+
+    private PartListing listParts(ListPartsRequest request) {
+        PartListing listing = new PartListing();
+        listing.setUploadId(request.getUploadId());
+        partsOf(request.getUploadId()).values().forEach(listing::addPart);
+        return listing;
+    }
+
+    private Map<Integer, PartSummary> partsOf(String uploadId) {
+        Map<Integer, PartSummary> parts = uploads.get(uploadId);
+        if (parts == null) {
+            throw new OSSException("The specified upload does not exist.", "NoSuchUpload", null, null, null, null, null);
+        }
+        return parts;
+    }
+
+    private static long drain(InputStream inputStream, long limit, CRC64 crc) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while (total < limit && (n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) > 0) {
+            if (crc != null) {
+                crc.update(buffer, n);
+            }
+            total += n;
+        }
+        return total;
+    }
+
+}
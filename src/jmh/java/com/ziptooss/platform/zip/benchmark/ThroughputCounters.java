@@ -0,0 +1,34 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * @author yukun.yan
+ * @description ThroughputCounters 按处理的源数据量统计吞吐, jmh输出为 MB/s
+ * @date 2023/8/18 11:02
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ThroughputCounters {
+
+    private static final double MB = 1024 * 1024;
+
+    /**
+     * 源数据MB数, OPERATIONS类型的计数器按每秒输出
+     */
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+    }
+
+    public void add(long bytes) {
+        megabytes += bytes / MB;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.ziptooss.platform.zip.benchmark;
+
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.service.ZipProgress;
+import com.ziptooss.platform.zip.util.ComEnum;
+import com.ziptooss.platform.zip.util.OssUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yukun.yan
+ * @description ZipBenchmark 压缩流水线吞吐, 对比串行/并行压缩, 流式上传/临时文件和不同的分片大小
+ * 运行: mvn -Pbenchmark compile exec:exec -Dbenchmark.args="ZipBenchmark -p objectSize=1MB -prof gc"
+ * @date 2023/8/18 11:10
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+public class ZipBenchmark {
+
+    @Param({"64KB", "1MB", "16MB"})
+    public String objectSize;
+
+    @Param({"64"})
+    public int objectCount;
+
+    /**
+     * 每个oss请求的模拟延迟
+     */
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    /**
+     * text 可压缩, random 压缩不了
+     */
+    @Param({"text", "random"})
+    public String content;
+
+    @Param({"auto"})
+    public String compressMethod;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    /**
+     * stream 边压缩边分片上传, ossByTempFile 先压缩到临时文件再上传, tempFile 只压缩到临时文件
+     */
+    @Param({"stream"})
+    public String output;
+
+    @Param({"8MB"})
+    public String partSize;
+
+    @Param({"8MB"})
+    public String prefetchMaxObjectSize;
+
+    private BenchmarkSupport support;
+
+    private ZipRequest zipRequest;
+
+    private long totalBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InMemoryOss oss = new InMemoryOss();
+        int size = (int) DataSize.parse(objectSize).toBytes();
+        List<String> paths = new ArrayList<>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            String path = "benchmark/source/" + i + ".dat";
+            oss.putObject(path, BenchmarkSupport.generate(size, content, i));
+            paths.add(path);
+        }
+        totalBytes = (long) size * objectCount;
+        oss.setLatencyMillis(latencyMillis);
+
+        ZipConfigBean zipConfigBean = BenchmarkSupport.defaultConfig();
+        zipConfigBean.getCompress().setParallel(parallel);
+        zipConfigBean.getStream().setEnabled(!"ossByTempFile".equals(output));
+        zipConfigBean.getStream().setPartSize(DataSize.parse(partSize));
+        zipConfigBean.getPrefetch().setMaxObjectSize(DataSize.parse(prefetchMaxObjectSize));
+        zipConfigBean.getSpool().setQuota(DataSize.ofBytes(Long.MAX_VALUE / 2));
+        zipConfigBean.getSpool().setDownloadedGrace(Duration.ZERO);
+        support = BenchmarkSupport.install(oss, zipConfigBean);
+
+        zipRequest = new ZipRequest();
+        zipRequest.setBizSource("benchmark");
+        zipRequest.setOssFilePathList(paths);
+        zipRequest.setCompressMethod(ComEnum.CompressMethodEnum.valueOf(compressMethod));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        support.shutdown();
+    }
+
+    @Benchmark
+    public String zip(ThroughputCounters counters) {
+        String result;
+        if ("tempFile".equals(output)) {
+            result = OssUtils.putZipToTempFile(zipRequest, new ZipProgress());
+            // 立即过期, 避免临时文件占满磁盘
+            support.getSpoolManager().markDownloaded(new File(result));
+            support.getSpoolManager().sweep();
+        } else {
+            result = OssUtils.putZipToOss(zipRequest, new ZipProgress());
+        }
+        counters.add(totalBytes);
+        return result;
+    }
+
+}
@@ -2,12 +2,14 @@ package com.ziptooss.platform.zip;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * @author yukun.yan
  * @description ZipServicePlatform
  * @date 2023/7/19 18:16
  */
+@EnableScheduling
 @SpringBootApplication
 public class ZipServicePlatformApplication {
 
@@ -3,6 +3,8 @@ package com.ziptooss.platform.zip.api;
 import lombok.Builder;
 import lombok.Data;
 
+import java.util.List;
+
 /**
  * @author yukun.yan
  * @description ServerlessCallbackRsp
@@ -21,6 +23,11 @@ public class ServerlessCallbackRsp {
      */
     private String data;
 
+    /**
+     * 分卷压缩时每一卷的url, 按part-001, part-002顺序, data是第一卷; 不分卷时为空
+     */
+    private List<String> volumes;
+
     /**
      * 任务id
      */
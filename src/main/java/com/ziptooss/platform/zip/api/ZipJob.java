@@ -0,0 +1,66 @@
+package com.ziptooss.platform.zip.api;
+
+import com.ziptooss.platform.zip.util.ComEnum;
+import lombok.Data;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * @author yukun.yan
+ * @description ZipJob 异步压缩任务状态
+ * @date 2023/8/7 16:02
+ */
+@Data
+public class ZipJob {
+
+    /**
+     * 任务id, 提交时立即返回
+     */
+    private String jobId;
+
+    private ComEnum.JobTypeEnum type;
+
+    private volatile ComEnum.JobStatusEnum status;
+
+    private String bizSource;
+
+    /**
+     * 调用方的任务id
+     */
+    private Long taskId;
+
+    /**
+     * zip url 或临时文件路径
+     */
+    private volatile String result;
+
+    /**
+     * 分卷压缩时每一卷的url, result是第一卷
+     */
+    private volatile List<String> volumes;
+
+    private volatile String errorMsg;
+
+    /**
+     * 已写入压缩包的文件数, 查询时更新
+     */
+    private volatile long entriesDone;
+
+    /**
+     * 已读取的源文件字节数
+     */
+    private volatile long bytesRead;
+
+    /**
+     * 已写出的压缩包字节数, 分卷时是所有卷的和
+     */
+    private volatile long bytesWritten;
+
+    private Date createTime;
+
+    private volatile Date startTime;
+
+    private volatile Date finishTime;
+
+}
@@ -1,5 +1,6 @@
 package com.ziptooss.platform.zip.api;
 
+import com.ziptooss.platform.zip.util.ComEnum;
 import lombok.Data;
 
 import java.util.List;
@@ -17,6 +18,21 @@ public class ZipRequest {
      */
     private List<String> ossFilePathList;
 
+    /**
+     * 源文件所在的bucket, 需要在ali.oss里配置, 为空时用第一个配置的bucket, 压缩包总是上传到第一个配置的bucket
+     */
+    private String bucket;
+
+    /**
+     * 压缩这个oss前缀下的所有文件, 边分页列举边压缩, 和ossFilePathList, manifestPath三选一
+     */
+    private String ossPrefix;
+
+    /**
+     * oss上的清单文件, url或oss路径, 每行一个文件路径, 边读边压缩, 文件很多时代替ossFilePathList
+     */
+    private String manifestPath;
+
     /**
      * 调用方系统，需要授权
      */
@@ -37,4 +53,20 @@ public class ZipRequest {
      */
     private Boolean isNeedCallback;
 
+    /**
+     * 压缩方式, 为空时按文件类型自动选择, 已经压缩过的图片视频等只打包不压缩
+     */
+    private ComEnum.CompressMethodEnum compressMethod;
+
+    /**
+     * 上一次压缩返回的url或oss路径, 不为空时增量压缩, ETag没变的文件直接从这个压缩包复制
+     */
+    private String baseZipUrl;
+
+    /**
+     * 单个分卷的大小上限, 单位字节, 不为空时按文件边界拆成 part-001.zip, part-002.zip 等多个压缩包并行压缩上传,
+     * 超过上限的单个文件单独成一卷, 只对zipToOss生效
+     */
+    private Long maxVolumeSize;
+
 }
@@ -0,0 +1,395 @@
+package com.ziptooss.platform.zip.config;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author yukun.yan
+ * @description FairJobQueue 压缩任务线程池的工作队列, 每个业务系统一个队列, 按权重做差额轮询(DRR),
+ * 每个业务系统执行中的任务数有上限, 到达上限的业务系统本轮跳过, 一个业务系统提交大量大任务时其他业务系统的任务
+ * 不会排在它后面, 有其他业务系统排队时也不会占满所有线程; 入队的任务必须是TenantTask, 线程池需要预先启动全部核心线程, 保证任务都经过队列
+ * @date 2023/8/26 10:00
+ */
+public class FairJobQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ZipConfigBean.Fair fairConfig;
+
+    private final int workers;
+
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Map<String, Tenant> tenants = new HashMap<>();
+
+    /**
+     * 有排队任务的业务系统, 队首是当前轮到的
+     */
+    private final ArrayDeque<Tenant> active = new ArrayDeque<>();
+
+    private int count;
+
+    public FairJobQueue(ZipConfigBean.Fair fairConfig, int workers, int capacity) {
+        this.fairConfig = fairConfig;
+        this.workers = workers;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 总排队数或业务系统自己的排队数到达上限时返回false, 线程池据此拒绝
+     */
+    @Override
+    public boolean offer(Runnable runnable) {
+        TenantTask task = toTenantTask(runnable);
+        lock.lock();
+        try {
+            return enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) throws InterruptedException {
+        TenantTask task = toTenantTask(runnable);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(task)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) throws InterruptedException {
+        TenantTask task = toTenantTask(runnable);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(task)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(TenantTask task) {
+        if (count >= capacity) {
+            return false;
+        }
+        Tenant tenant = tenants.computeIfAbsent(task.tenant, Tenant::new);
+        if (tenant.tasks.size() >= fairConfig.getTenantQueueCapacity()) {
+            return false;
+        }
+        if (tenant.tasks.isEmpty()) {
+            active.addLast(tenant);
+        }
+        tenant.tasks.addLast(task);
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            TenantTask task;
+            while ((task = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            TenantTask task;
+            while ((task = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 差额轮询, 每个任务消耗一个额度, 业务系统轮到时补充权重个额度, 额度用完或队列空了换下一个,
+     * 执行中的任务数到达上限时跳过, 所有有排队任务的业务系统都到达上限时返回null
+     */
+    private TenantTask dequeue() {
+        for (int i = 0, size = active.size(); i < size; i++) {
+            Tenant tenant = active.peekFirst();
+            if (tenant.running >= maxRunning(tenant.name, size > 1)) {
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            if (tenant.deficit <= 0) {
+                tenant.deficit += weight(tenant.name);
+            }
+            TenantTask task = tenant.tasks.pollFirst();
+            tenant.deficit--;
+            tenant.running++;
+            task.dequeued = true;
+            count--;
+            notFull.signalAll();
+            if (tenant.tasks.isEmpty()) {
+                // 没有排队任务时不保留额度, 下次提交时重新开始一轮
+                active.pollFirst();
+                tenant.deficit = 0;
+            } else if (tenant.deficit <= 0) {
+                active.addLast(active.pollFirst());
+            }
+            return task;
+        }
+        return null;
+    }
+
+    /**
+     * 任务执行结束, 释放业务系统的执行名额, 唤醒等待中的线程重新选择
+     */
+    private void finished(TenantTask task) {
+        if (!task.dequeued) {
+            return;
+        }
+        lock.lock();
+        try {
+            Tenant tenant = tenants.get(task.tenant);
+            tenant.running--;
+            if (tenant.running == 0 && tenant.tasks.isEmpty()) {
+                tenants.remove(task.tenant);
+            }
+            if (count > 0) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int weight(String tenant) {
+        return Math.max(1, fairConfig.getWeights().getOrDefault(tenant, fairConfig.getDefaultWeight()));
+    }
+
+    /**
+     * 没有单独配置时取默认值, 配置的上限总是生效; 都没有配置时, 其他业务系统有排队任务才限制为线程数减一,
+     * 给它们留一个线程, 只有一个业务系统有任务时可以用满所有线程
+     *
+     * @param tenant
+     * @param contended 其他业务系统是否也有排队任务
+     */
+    private int maxRunning(String tenant, boolean contended) {
+        Integer maxRunning = fairConfig.getMaxRunning().get(tenant);
+        if (maxRunning == null || maxRunning <= 0) {
+            maxRunning = fairConfig.getDefaultMaxRunning();
+        }
+        if (maxRunning <= 0) {
+            maxRunning = contended ? workers - 1 : workers;
+        }
+        return Math.max(1, maxRunning);
+    }
+
+    private static TenantTask toTenantTask(Runnable runnable) {
+        if (runnable instanceof TenantTask) {
+            return (TenantTask) runnable;
+        }
+        throw new IllegalArgumentException("fair job queue only accepts TenantTask");
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Tenant tenant = active.peekFirst();
+            return tenant == null ? null : tenant.tasks.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof TenantTask)) {
+            return false;
+        }
+        TenantTask task = (TenantTask) o;
+        lock.lock();
+        try {
+            Tenant tenant = tenants.get(task.tenant);
+            if (tenant == null || !tenant.tasks.remove(task)) {
+                return false;
+            }
+            count--;
+            notFull.signalAll();
+            if (tenant.tasks.isEmpty()) {
+                active.remove(tenant);
+                tenant.deficit = 0;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 线程池shutdownNow时取出所有排队任务, 不受执行名额限制
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !active.isEmpty()) {
+                Tenant tenant = active.peekFirst();
+                c.add(tenant.tasks.pollFirst());
+                count--;
+                drained++;
+                if (tenant.tasks.isEmpty()) {
+                    active.pollFirst();
+                    tenant.deficit = 0;
+                }
+            }
+            if (drained > 0) {
+                notFull.signalAll();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 排队任务的快照, 不支持删除
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(count);
+            active.forEach(tenant -> snapshot.addAll(tenant.tasks));
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Tenant {
+
+        private final String name;
+
+        private final ArrayDeque<TenantTask> tasks = new ArrayDeque<>();
+
+        private int deficit;
+
+        private int running;
+
+        Tenant(String name) {
+            this.name = name;
+        }
+
+    }
+
+    /**
+     * 带业务系统的任务, 执行结束后释放执行名额
+     */
+    public static class TenantTask implements Runnable {
+
+        private final FairJobQueue queue;
+
+        private final String tenant;
+
+        private final Runnable task;
+
+        /**
+         * 由队列分配给线程时设置, 只有经过队列的任务才释放名额
+         */
+        private boolean dequeued;
+
+        public TenantTask(BlockingQueue<Runnable> queue, String tenant, Runnable task) {
+            this.queue = queue instanceof FairJobQueue ? (FairJobQueue) queue : null;
+            this.tenant = StringUtils.defaultString(tenant);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                if (queue != null) {
+                    queue.finished(this);
+                }
+            }
+        }
+
+    }
+
+}
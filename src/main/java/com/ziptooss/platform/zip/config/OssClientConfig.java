@@ -2,6 +2,8 @@ package com.ziptooss.platform.zip.config;
 
 import lombok.Data;
 
+import java.time.Duration;
+
 /**
  * @author yukun.yan
  * @description ServerlessOssClientConfigProperties
@@ -28,4 +30,34 @@ public class OssClientConfig {
 
     private String regionId;
 
+    /**
+     * 完整的endpoint, 为空时按region拼接
+     */
+    private String endpoint;
+
+    /**
+     * 是否走内网endpoint, 为空时服务和bucket在同一地域就走内网
+     */
+    private Boolean internal;
+
+    /**
+     * 客户端最大连接数
+     */
+    private int maxConnections = 1024;
+
+    /**
+     * 建立连接超时
+     */
+    private Duration connectionTimeout = Duration.ofSeconds(50);
+
+    /**
+     * 读写数据超时
+     */
+    private Duration socketTimeout = Duration.ofSeconds(50);
+
+    /**
+     * 上传下载时是否校验crc64
+     */
+    private boolean crcCheckEnabled = true;
+
 }
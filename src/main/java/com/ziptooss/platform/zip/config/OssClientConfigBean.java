@@ -24,6 +24,11 @@ public class OssClientConfigBean {
 
     private List<OssClientConfig> oss;
 
+    /**
+     * 服务所在地域, 如cn-hangzhou, 和bucket同地域时走内网, 为空时取函数计算的FC_REGION环境变量
+     */
+    private String runtimeRegion;
+
     @PostConstruct
     public void testWechatConfig() {
         if (CollectionUtils.isEmpty(oss)) {
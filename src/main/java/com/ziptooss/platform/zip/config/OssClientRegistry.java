@@ -0,0 +1,135 @@
+package com.ziptooss.platform.zip.config;
+
+import com.aliyun.oss.ClientBuilderConfiguration;
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.OSSClientBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author yukun.yan
+ * @description OssClientRegistry 每个配置的bucket一个oss客户端, 连接数, 超时和crc校验分别配置,
+ * 服务和bucket在同一地域时走内网endpoint, 不占公网带宽也没有外网流出流量费用; 第一个配置的bucket是默认bucket
+ * @date 2023/8/25 18:00
+ */
+@Slf4j
+public class OssClientRegistry {
+
+    /**
+     * 函数计算运行时注入的地域, 如cn-hangzhou
+     */
+    private static final String FC_REGION_ENV = "FC_REGION";
+
+    /**
+     * bucket -> 客户端, 按配置顺序
+     */
+    private final Map<String, OSS> clients;
+
+    private final String defaultBucket;
+
+    /**
+     * @param clients bucket -> 客户端, 第一个是默认bucket
+     */
+    public OssClientRegistry(Map<String, OSS> clients) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("oss clients is empty");
+        }
+        this.clients = Collections.unmodifiableMap(new LinkedHashMap<>(clients));
+        this.defaultBucket = clients.keySet().iterator().next();
+    }
+
+    /**
+     * 按配置创建所有客户端, 创建失败时关闭已经创建的
+     *
+     * @param configs
+     * @param runtimeRegion 服务所在地域, 为空时取FC_REGION环境变量, 都为空时不走内网
+     * @return
+     */
+    public static OssClientRegistry build(List<OssClientConfig> configs, String runtimeRegion) {
+        if (StringUtils.isBlank(runtimeRegion)) {
+            runtimeRegion = System.getenv(FC_REGION_ENV);
+        }
+        Map<String, OSS> clients = new LinkedHashMap<>();
+        try {
+            for (OssClientConfig config : configs) {
+                if (clients.containsKey(config.getBucket())) {
+                    throw new IllegalArgumentException("duplicate oss bucket, bucket=" + config.getBucket());
+                }
+                String endpoint = endpoint(config, runtimeRegion);
+                ClientBuilderConfiguration clientConfiguration = new ClientBuilderConfiguration();
+                clientConfiguration.setMaxConnections(config.getMaxConnections());
+                clientConfiguration.setConnectionTimeout((int) config.getConnectionTimeout().toMillis());
+                clientConfiguration.setSocketTimeout((int) config.getSocketTimeout().toMillis());
+                clientConfiguration.setCrcCheckEnabled(config.isCrcCheckEnabled());
+                clients.put(config.getBucket(), new OSSClientBuilder().build(endpoint, config.getAccessKeyId(),
+                        config.getAccessKeySecret(), clientConfiguration));
+                log.info("[OssClientRegistry] build client, bucket={}, endpoint={}, maxConnections={}, crcCheckEnabled={}",
+                        config.getBucket(), endpoint, config.getMaxConnections(), config.isCrcCheckEnabled());
+            }
+        } catch (RuntimeException e) {
+            clients.values().forEach(OSS::shutdown);
+            throw e;
+        }
+        return new OssClientRegistry(clients);
+    }
+
+    /**
+     * 配置了endpoint时直接使用, 否则按地域拼接, internal为空时服务和bucket在同一地域就走内网
+     *
+     * @param config
+     * @param runtimeRegion
+     * @return
+     */
+    static String endpoint(OssClientConfig config, String runtimeRegion) {
+        if (StringUtils.isNotBlank(config.getEndpoint())) {
+            return config.getEndpoint();
+        }
+        boolean internal = config.getInternal() != null ? config.getInternal() : sameRegion(config.getRegion(), runtimeRegion);
+        return "https://" + config.getRegion() + (internal ? "-internal" : "") + ".aliyuncs.com";
+    }
+
+    /**
+     * oss的地域带oss-前缀, 如oss-cn-hangzhou, 运行时的地域不带
+     */
+    private static boolean sameRegion(String ossRegion, String runtimeRegion) {
+        if (StringUtils.isBlank(ossRegion) || StringUtils.isBlank(runtimeRegion)) {
+            return false;
+        }
+        return StringUtils.removeStart(ossRegion, "oss-").equals(StringUtils.removeStart(runtimeRegion, "oss-"));
+    }
+
+    /**
+     * 获取bucket的客户端
+     *
+     * @param bucket 为空时返回默认bucket的客户端
+     * @return
+     */
+    public OSS getClient(String bucket) {
+        OSS client = clients.get(StringUtils.isBlank(bucket) ? defaultBucket : bucket);
+        if (client == null) {
+            throw new IllegalArgumentException("oss bucket not configured, bucket=" + bucket);
+        }
+        return client;
+    }
+
+    public boolean contains(String bucket) {
+        return clients.containsKey(bucket);
+    }
+
+    public String getDefaultBucket() {
+        return defaultBucket;
+    }
+
+    public void shutdown() {
+        clients.forEach((bucket, client) -> {
+            client.shutdown();
+            log.info("[OssClientRegistry] client shutdown, bucket={}", bucket);
+        });
+    }
+
+}
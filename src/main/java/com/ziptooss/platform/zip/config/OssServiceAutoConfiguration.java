@@ -1,7 +1,5 @@
 package com.ziptooss.platform.zip.config;
 
-import com.aliyun.oss.OSS;
-import com.aliyun.oss.OSSClientBuilder;
 import com.aliyun.oss.model.CannedAccessControlList;
 import com.ziptooss.platform.zip.util.OssUtils;
 import lombok.extern.slf4j.Slf4j;
@@ -27,25 +25,27 @@ public class OssServiceAutoConfiguration {
      */
     @Bean(destroyMethod = "destroy")
     public OssUtils ossUtils(final OssClientConfigBean clientConfigBean) {
+        clientConfigBean.getOss().forEach(this::configVerify);
+        // 第一个bucket存放压缩包和上传的文件, 返回的是公网url
         OssClientConfig ossClientConfig = clientConfigBean.getOss().get(0);
-        configVerify(ossClientConfig);
         String bucketName = ossClientConfig.getBucket();
         String region = ossClientConfig.getRegion();
         String endpoint = "https://" + ossClientConfig.getRegion() + ".aliyuncs.com";
-        OSS ossClient = null;
+        OssClientRegistry ossClientRegistry = null;
         try {
-            ossClient = new OSSClientBuilder().build(endpoint, ossClientConfig.getAccessKeyId(), ossClientConfig.getAccessKeySecret());
-            ossClient.setBucketAcl(bucketName, CannedAccessControlList.PublicRead);
+            ossClientRegistry = OssClientRegistry.build(clientConfigBean.getOss(), clientConfigBean.getRuntimeRegion());
+            ossClientRegistry.getClient(bucketName).setBucketAcl(bucketName, CannedAccessControlList.PublicRead);
         } catch (Exception e) {
             log.error("[OssClientAutoConfiguration] OssClient init error, ", e);
             System.exit(1);
         }
-        OssUtils ossUtils = new OssUtils(ossClient, bucketName, region, endpoint);
+        OssUtils ossUtils = new OssUtils(ossClientRegistry, region, endpoint);
         log.info("[OssClientAutoConfiguration] properties={}", clientConfigBean.getOss());
         return ossUtils;
     }
 
     private void configVerify(OssClientConfig ossClientConfig) {
+        Assert.notNull(ossClientConfig.getBucket(), "Bucket not be null");
         Assert.notNull(ossClientConfig.getRegion(), "Region not be null");
         Assert.notNull(ossClientConfig.getAccessKeyId(), "AccessKeyId not be null");
         Assert.notNull(ossClientConfig.getAccessKeySecret(), "AccessKeySecret not be null");
@@ -0,0 +1,125 @@
+package com.ziptooss.platform.zip.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author yukun.yan
+ * @description SharedExecutorView 共用线程池上的一个任务视图, 提交的任务在共用线程池执行,
+ * shutdown只影响这个视图, 不关闭共用线程池, awaitTermination等待通过这个视图提交的任务结束, shutdownNow只取消这些任务;
+ * ParallelScatterZipCreator合并时会关闭传给它的线程池, 用它把共用的压缩线程池借给单个压缩任务
+ * @date 2023/8/27 19:00
+ */
+public class SharedExecutorView extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+
+    private final Queue<Future<?>> futures = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean shutdown;
+
+    public SharedExecutorView(ExecutorService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return track(() -> delegate.submit(task));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return track(() -> delegate.submit(task));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return track(() -> delegate.submit(task, result));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submit(command);
+    }
+
+    private <T> Future<T> track(Callable<Future<T>> submit) {
+        if (shutdown) {
+            throw new RejectedExecutionException("executor view shutdown");
+        }
+        Future<T> future;
+        try {
+            future = submit.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RejectedExecutionException(e);
+        }
+        futures.add(future);
+        return future;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * 取消通过这个视图提交还没结束的任务, 执行中的任务会被中断
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!shutdown) {
+            return false;
+        }
+        for (Future<?> future : futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 取消的任务在共用线程池里可能还没停下, 这里只等到Future结束
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<?> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | CancellationException e) {
+                // 任务的结果由提交方处理
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+        return shutdown;
+    }
+
+}
@@ -1,9 +1,15 @@
 package com.ziptooss.platform.zip.config;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -12,20 +18,200 @@ import java.util.concurrent.TimeUnit;
  * @description ThreadPoolConfig 微服务线程池
  * @date 2022/2/01 11:34
  */
+@Slf4j
 @Configuration
 public class ThreadPoolConfig {
 
     /**
-     * 自定义线程池
+     * 分片上传线程池, 只跑上传任务, 请求入口按队列剩余位置做准入, 已经开始的上传在队列满时等待, 不在tomcat请求线程或压缩线程上执行
      *
      * @return
      */
-    @Bean("thread-pool")
-    public static ThreadPoolExecutor threadPoolExecutor() {
-        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(200, 400, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
-                new NamedThreadFactory("oss-service"), new ThreadPoolExecutor.CallerRunsPolicy());
+    @Bean("upload-pool")
+    public static ExecutorService uploadPoolExecutor(ZipConfigBean zipConfigBean) {
+        ZipConfigBean.Upload uploadConfig = zipConfigBean.getUpload();
+        int maxConcurrency = zipConfigBean.getVirtualThread().getMaxConcurrency();
+        return ioPoolExecutor(zipConfigBean, "oss-upload", uploadConfig.getPoolSize(), maxConcurrency,
+                uploadConfig.getQueueCapacity(), true);
+    }
+
+    /**
+     * oss文件预取线程池, 无界队列按提交顺序执行, 不能让预取任务在压缩线程上执行
+     *
+     * @return
+     */
+    @Bean("download-pool")
+    public static ExecutorService downloadPoolExecutor(ZipConfigBean zipConfigBean) {
+        int maxConcurrency = zipConfigBean.getVirtualThread().getMaxConcurrency();
+        return ioPoolExecutor(zipConfigBean, "oss-download", zipConfigBean.getPrefetch().getPoolSize(), maxConcurrency,
+                Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * 大文件分块下载线程池, 和预取线程池分开, 预取任务等待内存额度时不会占住分块下载需要的线程
+     *
+     * @return
+     */
+    @Bean("range-pool")
+    public static ExecutorService rangePoolExecutor(ZipConfigBean zipConfigBean) {
+        int maxConcurrency = zipConfigBean.getVirtualThread().getMaxConcurrency();
+        return ioPoolExecutor(zipConfigBean, "oss-range", zipConfigBean.getRanged().getPoolSize(), maxConcurrency,
+                Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * 压缩任务线程池, 队列满了直接拒绝, 不能占用tomcat请求线程, 默认按业务系统公平调度, 见FairJobQueue
+     *
+     * @return
+     */
+    @Bean("zip-job-pool")
+    public static ThreadPoolExecutor zipJobPoolExecutor(ZipConfigBean zipConfigBean) {
+        ZipConfigBean.Job jobConfig = zipConfigBean.getJob();
+        BlockingQueue<Runnable> workQueue = zipConfigBean.getFair().isEnabled()
+                ? new FairJobQueue(zipConfigBean.getFair(), jobConfig.getWorkers(), jobConfig.getQueueCapacity())
+                : new ArrayBlockingQueue<>(jobConfig.getQueueCapacity());
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(jobConfig.getWorkers(), jobConfig.getWorkers(), 0, TimeUnit.MILLISECONDS,
+                workQueue, new NamedThreadFactory("zip-job"), new ThreadPoolExecutor.AbortPolicy());
+        // 核心线程没启动时新任务直接交给新线程, 不经过队列, 公平调度和执行名额都不生效
+        threadPoolExecutor.prestartAllCoreThreads();
+        return threadPoolExecutor;
+    }
+
+    /**
+     * 分卷压缩线程池, 一个压缩任务的多个分卷在这里并行压缩上传, 压缩占用cpu, 默认和cpu核数一样,
+     * 任务数已经由压缩任务线程池限制, 这里不再拒绝
+     *
+     * @return
+     */
+    @Bean("volume-pool")
+    public static ThreadPoolExecutor volumePoolExecutor(ZipConfigBean zipConfigBean) {
+        int poolSize = zipConfigBean.getVolume().getPoolSize();
+        if (poolSize <= 0) {
+            poolSize = Runtime.getRuntime().availableProcessors();
+        }
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new NamedThreadFactory("zip-volume"));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * 并行压缩线程池, 所有压缩任务的deflate共用, 占用cpu, 默认和cpu核数一样,
+     * 队列满时提交的压缩线程等待, 单个任务提交的条目多也不会撑爆内存
+     *
+     * @return
+     */
+    @Bean("compress-pool")
+    public static ThreadPoolExecutor compressPoolExecutor(ZipConfigBean zipConfigBean) {
+        ZipConfigBean.Compress compressConfig = zipConfigBean.getCompress();
+        int poolSize = compressConfig.getPoolSize();
+        if (poolSize <= 0) {
+            poolSize = Runtime.getRuntime().availableProcessors();
+        }
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1000, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(compressConfig.getQueueCapacity()), new NamedThreadFactory("zip-deflate"), new BlockingPolicy());
         threadPoolExecutor.allowCoreThreadTimeOut(true);
         return threadPoolExecutor;
     }
 
+    /**
+     * 回调线程池, okhttp的Dispatcher按maxRequests控制同时发出的回调数, 线程数不会超过它, 排不上的回调留在Dispatcher里
+     *
+     * @return
+     */
+    @Bean("callback-pool")
+    public static ExecutorService callbackPoolExecutor(ZipConfigBean zipConfigBean) {
+        // 虚拟线程模式下仍由Dispatcher的maxRequests限制并发
+        int poolSize = zipConfigBean.getCallback().getMaxRequests();
+        return ioPoolExecutor(zipConfigBean, "callback", poolSize, poolSize, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * 阻塞在网络io上的线程池, 开启虚拟线程且jdk支持时换成VirtualThreadExecutor, 每个任务一个新的虚拟线程,
+     * 同时执行的任务数由信号量限制, 不复用线程, 排队上限和满时的处理和平台线程池一致
+     *
+     * @param name           线程名前缀
+     * @param poolSize       平台线程池大小
+     * @param maxConcurrency 虚拟线程模式下同时执行的任务上限
+     * @param queueCapacity  排队上限, Integer.MAX_VALUE为无界队列
+     * @param blockWhenFull  队列满时提交线程等待, 否则拒绝
+     * @return
+     */
+    private static ExecutorService ioPoolExecutor(ZipConfigBean zipConfigBean, String name, int poolSize, int maxConcurrency,
+                                                  int queueCapacity, boolean blockWhenFull) {
+        if (zipConfigBean.getVirtualThread().isEnabled()) {
+            if (VirtualThreads.isSupported()) {
+                return new VirtualThreadExecutor(VirtualThreads.factory(name), maxConcurrency, queueCapacity, blockWhenFull);
+            }
+            log.warn("[ThreadPoolConfig] virtual threads not supported, fallback to platform threads, pool={}, java.version={}",
+                    name, System.getProperty("java.version"));
+        }
+        BlockingQueue<Runnable> workQueue = queueCapacity == Integer.MAX_VALUE
+                ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+        RejectedExecutionHandler handler = blockWhenFull ? new BlockingPolicy() : new ThreadPoolExecutor.AbortPolicy();
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1000, TimeUnit.MILLISECONDS, workQueue,
+                new NamedThreadFactory(name), handler);
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * io线程池排队中的任务数
+     *
+     * @param executorService
+     * @return
+     */
+    public static int queuedTasks(ExecutorService executorService) {
+        if (executorService instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) executorService).getQueueSize();
+        }
+        return ((ThreadPoolExecutor) executorService).getQueue().size();
+    }
+
+    /**
+     * io线程池队列剩余位置
+     *
+     * @param executorService
+     * @return
+     */
+    public static int remainingQueueCapacity(ExecutorService executorService) {
+        if (executorService instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) executorService).getRemainingQueueCapacity();
+        }
+        return ((ThreadPoolExecutor) executorService).getQueue().remainingCapacity();
+    }
+
+    /**
+     * io线程池同时执行的任务上限
+     *
+     * @param executorService
+     * @return
+     */
+    public static int maxConcurrency(ExecutorService executorService) {
+        if (executorService instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) executorService).getMaxConcurrency();
+        }
+        return ((ThreadPoolExecutor) executorService).getMaximumPoolSize();
+    }
+
+    /**
+     * 队列满时提交线程等待队列空出位置, 线程池关闭后拒绝
+     */
+    static class BlockingPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor shutdown");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for queue", e);
+            }
+        }
+
+    }
+
 }
@@ -0,0 +1,272 @@
+package com.ziptooss.platform.zip.config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author yukun.yan
+ * @description VirtualThreadExecutor 每个任务一个新的虚拟线程, 不复用线程, 同时执行的任务数由信号量限制,
+ * 拿不到名额的任务按提交顺序排队, 任务结束时把名额直接交给队首任务, 和ThreadPoolExecutor一样先进先开始,
+ * 预取的内存额度按提交顺序发放, 依赖这个顺序; 超过排队上限时按配置拒绝或让提交线程等待
+ * @date 2023/8/27 16:00
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private final ThreadFactory threadFactory;
+
+    private final int maxConcurrency;
+
+    private final int queueCapacity;
+
+    private final boolean blockWhenFull;
+
+    /**
+     * 执行名额, 只在持有lock时获取, 任务结束时有排队任务就转交, 没有才释放
+     */
+    private final Semaphore running;
+
+    /**
+     * 执行中加排队中的任务名额, 用完时拒绝或等待
+     */
+    private final Semaphore admitted;
+
+    /**
+     * 等待执行名额的任务, 按提交顺序
+     */
+    private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition terminated = lock.newCondition();
+
+    /**
+     * 已提交还没结束的任务数, shutdown后降到0时终止
+     */
+    private int tasks;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param threadFactory  每次创建一个新的虚拟线程
+     * @param maxConcurrency 同时执行的任务上限
+     * @param queueCapacity  等待执行名额的任务上限
+     * @param blockWhenFull  排满时提交线程等待, 否则抛出RejectedExecutionException
+     */
+    public VirtualThreadExecutor(ThreadFactory threadFactory, int maxConcurrency, int queueCapacity, boolean blockWhenFull) {
+        this.threadFactory = threadFactory;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.blockWhenFull = blockWhenFull;
+        this.running = new Semaphore(this.maxConcurrency);
+        this.admitted = new Semaphore((int) Math.min(Integer.MAX_VALUE, (long) this.maxConcurrency + this.queueCapacity));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (blockWhenFull) {
+            try {
+                admitted.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for queue", e);
+            }
+        } else if (!admitted.tryAcquire()) {
+            throw new RejectedExecutionException("queue full, maxConcurrency=" + maxConcurrency + ", queueCapacity=" + queueCapacity);
+        }
+        lock.lock();
+        try {
+            if (shutdown) {
+                admitted.release();
+                throw new RejectedExecutionException("executor shutdown");
+            }
+            tasks++;
+            // 有排队任务时不能插队, 即使刚好有名额空出来
+            if (!pending.isEmpty() || !running.tryAcquire()) {
+                pending.addLast(command);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            start(command);
+        } catch (RuntimeException | Error e) {
+            finished();
+            startNext();
+            throw e;
+        }
+    }
+
+    /**
+     * 在新的虚拟线程上执行, 调用方已经持有一个执行名额
+     */
+    private void start(Runnable command) {
+        Thread thread = threadFactory.newThread(() -> run(command));
+        threads.add(thread);
+        try {
+            thread.start();
+        } catch (RuntimeException | Error e) {
+            threads.remove(thread);
+            throw e;
+        }
+    }
+
+    private void run(Runnable command) {
+        try {
+            command.run();
+        } finally {
+            threads.remove(Thread.currentThread());
+            finished();
+            startNext();
+        }
+    }
+
+    /**
+     * 把当前持有的执行名额交给队首任务, 没有排队任务时释放名额
+     */
+    private void startNext() {
+        while (true) {
+            Runnable next;
+            lock.lock();
+            try {
+                next = pending.pollFirst();
+                if (next == null) {
+                    running.release();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                start(next);
+                return;
+            } catch (RuntimeException | Error e) {
+                // 线程创建失败的任务丢弃, 名额继续交给下一个
+                finished();
+            }
+        }
+    }
+
+    private void finished() {
+        admitted.release();
+        lock.lock();
+        try {
+            if (--tasks == 0 && shutdown) {
+                terminated.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待执行名额的任务数
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 还能排队的任务数
+     */
+    public int getRemainingQueueCapacity() {
+        return Math.max(0, Math.min(queueCapacity, admitted.availablePermits()));
+    }
+
+    public int getActiveCount() {
+        return maxConcurrency - running.availablePermits();
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            if (tasks == 0) {
+                terminated.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 中断所有执行中任务的线程, 返回还在排队没有开始的任务
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped;
+        lock.lock();
+        try {
+            shutdown = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            tasks -= dropped.size();
+            admitted.release(dropped.size());
+            if (tasks == 0) {
+                terminated.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        threads.forEach(Thread::interrupt);
+        return dropped;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        lock.lock();
+        try {
+            return shutdown && tasks == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!(shutdown && tasks == 0)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
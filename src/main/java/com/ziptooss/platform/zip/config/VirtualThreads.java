@@ -0,0 +1,74 @@
+package com.ziptooss.platform.zip.config;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author yukun.yan
+ * @description VirtualThreads 通过反射创建虚拟线程工厂, 项目按jdk8编译, 运行在jdk21及以上时可用,
+ * jdk19/20没有开启预览特性时ofVirtual会抛出异常, 同样视为不支持
+ * @date 2023/8/25 16:00
+ */
+@Slf4j
+public class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            // 试着创建一次, 预览特性没开启时在这里失败
+            factory.invoke(ofVirtual.invoke(null));
+        } catch (Exception | LinkageError e) {
+            ofVirtual = null;
+            log.info("[VirtualThreads] virtual threads not supported, java.version={}", System.getProperty("java.version"));
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 当前jdk是否支持虚拟线程
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 虚拟线程工厂, 每次创建一个新的虚拟线程, 线程名为 prefix-virtual-序号
+     *
+     * @param prefix
+     * @return
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("virtual threads not supported, java.version=" + System.getProperty("java.version"));
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-virtual-", 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("create virtual thread factory error", e);
+        }
+    }
+
+}
@@ -0,0 +1,474 @@
+package com.ziptooss.platform.zip.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author yukun.yan
+ * @description ZipConfigBean 压缩流水线相关配置
+ * @date 2023/8/2 14:21
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "zip")
+@PropertySource("classpath:application.properties")
+public class ZipConfigBean {
+
+    /**
+     * 压缩包边压缩边分片上传到oss
+     */
+    private Stream stream = new Stream();
+
+    /**
+     * 压缩前并发预取oss文件
+     */
+    private Prefetch prefetch = new Prefetch();
+
+    /**
+     * 大文件分块并发下载
+     */
+    private Ranged ranged = new Ranged();
+
+    /**
+     * 异步压缩任务
+     */
+    private Job job = new Job();
+
+    /**
+     * 压缩方式
+     */
+    private Compress compress = new Compress();
+
+    /**
+     * 大文件分片上传
+     */
+    private Upload upload = new Upload();
+
+    /**
+     * 分片上传断点续传
+     */
+    private Checkpoint checkpoint = new Checkpoint();
+
+    /**
+     * 本地临时压缩包
+     */
+    private Spool spool = new Spool();
+
+    /**
+     * 异步回调业务系统
+     */
+    private Callback callback = new Callback();
+
+    /**
+     * 压缩结果缓存
+     */
+    private Cache cache = new Cache();
+
+    /**
+     * 增量压缩
+     */
+    private Incremental incremental = new Incremental();
+
+    /**
+     * 线程池满时的准入控制
+     */
+    private Admission admission = new Admission();
+
+    /**
+     * 虚拟线程配置
+     */
+    private VirtualThread virtualThread = new VirtualThread();
+
+    /**
+     * 分卷压缩
+     */
+    private Volume volume = new Volume();
+
+    /**
+     * 压缩任务按业务系统公平调度
+     */
+    private Fair fair = new Fair();
+
+    @Data
+    public static class Stream {
+
+        /**
+         * 是否开启流式上传, 关闭后退回到临时文件压缩再上传
+         */
+        private boolean enabled = true;
+
+        /**
+         * 分片大小, oss要求除最后一片外不小于100KB
+         */
+        private DataSize partSize = DataSize.ofMegabytes(8);
+
+        /**
+         * 同时上传的分片数, 峰值内存约为 (concurrency + 1) * partSize
+         */
+        private int concurrency = 4;
+
+    }
+
+    @Data
+    public static class Prefetch {
+
+        /**
+         * 单个压缩任务同时预取的文件数
+         */
+        private int concurrency = 8;
+
+        /**
+         * 单个压缩任务已预取未写入的文件最多占用的内存
+         */
+        private DataSize maxInFlightBytes = DataSize.ofMegabytes(64);
+
+        /**
+         * 超过该大小的文件不预取, 轮到写入时再流式下载
+         */
+        private DataSize maxObjectSize = DataSize.ofMegabytes(8);
+
+        /**
+         * 所有任务共用的下载线程数
+         */
+        private int poolSize = 64;
+
+        /**
+         * 下载线程池排队任务数超过这个值时, 新的边压缩边下载请求返回429, 已经开始的任务不受影响
+         */
+        private int queueCapacity = 512;
+
+    }
+
+    @Data
+    public static class Ranged {
+
+        /**
+         * 达到该大小的文件按range分块并发下载, 单连接带宽不够时使用
+         */
+        private DataSize threshold = DataSize.ofMegabytes(64);
+
+        /**
+         * 分块大小
+         */
+        private DataSize chunkSize = DataSize.ofMegabytes(8);
+
+        /**
+         * 单个文件同时下载的分块数, 每个文件峰值内存约为 (concurrency + 1) * chunkSize, 小于2时不分块
+         */
+        private int concurrency = 4;
+
+        /**
+         * 所有任务共用的分块下载线程数
+         */
+        private int poolSize = 32;
+
+    }
+
+    @Data
+    public static class Job {
+
+        /**
+         * 执行压缩任务的线程数
+         */
+        private int workers = 4;
+
+        /**
+         * 排队任务数上限, 超过后拒绝新任务
+         */
+        private int queueCapacity = 100;
+
+        /**
+         * 已结束的任务状态保留时长
+         */
+        private Duration retention = Duration.ofHours(1);
+
+    }
+
+    @Data
+    public static class Compress {
+
+        /**
+         * 是否多核并行压缩, 需要和压缩包差不多大的scatter临时文件
+         */
+        private boolean parallel = false;
+
+        /**
+         * 并行压缩线程池大小, 所有压缩任务共用, 小于等于0时取cpu核数
+         */
+        private int poolSize = 0;
+
+        /**
+         * 并行压缩线程池排队上限, 排满时压缩线程等待, 排满后新的并行压缩任务被拒绝
+         */
+        private int queueCapacity = 256;
+
+    }
+
+    @Data
+    public static class Upload {
+
+        /**
+         * 单个文件同时上传的分片数
+         */
+        private int concurrency = 16;
+
+        /**
+         * 分片大小下限, 太小的分片请求开销占比高
+         */
+        private DataSize minPartSize = DataSize.ofMegabytes(5);
+
+        /**
+         * 分片大小上限, 太大的分片失败重传代价高
+         */
+        private DataSize maxPartSize = DataSize.ofMegabytes(64);
+
+        /**
+         * 单个分片失败后的重试次数
+         */
+        private int partRetries = 3;
+
+        /**
+         * 所有上传共用的分片上传线程数
+         */
+        private int poolSize = 64;
+
+        /**
+         * 分片上传排队上限, 剩余位置不够一个文件的并发分片数时新的上传请求返回429
+         */
+        private int queueCapacity = 1000;
+
+        /**
+         * 边解析请求体边上传分片, 不落盘但失败后不能续传; 默认关闭, 先写到临时文件再分片上传, 支持断点续传
+         */
+        private boolean streaming = false;
+
+        /**
+         * 边接收边上传时单个文件同时上传的分片数, 占用内存为 (streamConcurrency + 1) * 分片大小
+         */
+        private int streamConcurrency = 4;
+
+        /**
+         * 单个上传文件的大小上限
+         */
+        private DataSize maxFileSize = DataSize.ofMegabytes(800);
+
+    }
+
+    @Data
+    public static class Checkpoint {
+
+        /**
+         * 是否记录断点, 失败后重传同一个文件只上传缺少的分片
+         */
+        private boolean enabled = true;
+
+        /**
+         * 断点文件目录, 为空时使用 java.io.tmpdir/zip-to-oss/checkpoint
+         */
+        private String dir;
+
+        /**
+         * 断点超过该时长没更新视为废弃, 取消断点记录的分片上传并删除断点
+         */
+        private Duration staleAfter = Duration.ofHours(24);
+
+        /**
+         * 清理废弃分片上传的间隔
+         */
+        private Duration sweepInterval = Duration.ofHours(1);
+
+    }
+
+    @Data
+    public static class Spool {
+
+        /**
+         * 临时压缩包目录, 为空时使用 java.io.tmpdir/zip-to-oss/spool
+         */
+        private String dir;
+
+        /**
+         * 临时压缩包总大小上限, 包括正在压缩的预估大小
+         */
+        private DataSize quota = DataSize.ofGigabytes(20);
+
+        /**
+         * 磁盘至少保留的剩余空间
+         */
+        private DataSize minFreeSpace = DataSize.ofGigabytes(1);
+
+        /**
+         * 压缩完成后保留时长, 超时没下载也删除
+         */
+        private Duration ttl = Duration.ofHours(1);
+
+        /**
+         * 完整下载后再保留的时长, 给并发的range请求和断点续传留时间
+         */
+        private Duration downloadedGrace = Duration.ofMinutes(5);
+
+        /**
+         * 下载临时压缩包时是否交给tomcat sendfile, sendfile拿不到发送完成的时机, 下载完不会提前清理, 只能等ttl过期
+         */
+        private boolean sendfile = false;
+
+        /**
+         * 清理过期临时压缩包的间隔
+         */
+        private Duration sweepInterval = Duration.ofMinutes(1);
+
+    }
+
+    @Data
+    public static class Callback {
+
+        /**
+         * 回调发件箱目录, 为空时使用 java.io.tmpdir/zip-to-oss/callback
+         */
+        private String dir;
+
+        /**
+         * 每条回调落盘后再发送, 关闭后重启时可能丢失最近的回调
+         */
+        private boolean fsync = true;
+
+        /**
+         * 最多发送次数, 超过后放弃并记录错误日志
+         */
+        private int maxAttempts = 12;
+
+        /**
+         * 第一次重试的间隔, 之后每次翻倍
+         */
+        private Duration initialBackoff = Duration.ofSeconds(1);
+
+        /**
+         * 重试间隔上限
+         */
+        private Duration maxBackoff = Duration.ofMinutes(5);
+
+        /**
+         * 同时发送的回调数
+         */
+        private int maxRequests = 64;
+
+        /**
+         * 每个回调域名同时发送的回调数, 一个业务系统变慢不会占满所有回调
+         */
+        private int maxRequestsPerHost = 4;
+
+        /**
+         * 发件箱累计这么多条已完成的回调后压缩一次
+         */
+        private int compactThreshold = 1000;
+
+    }
+
+    @Data
+    public static class Cache {
+
+        /**
+         * 源文件没变的重复请求直接返回上次上传到oss的压缩包, 只对zipToOss生效
+         */
+        private boolean enabled = true;
+
+        /**
+         * 缓存时长, 不超过oss上压缩包的生命周期
+         */
+        private Duration ttl = Duration.ofHours(24);
+
+        /**
+         * 最多缓存的压缩包数, 超过后淘汰最近最少使用的
+         */
+        private long maxEntries = 10000;
+
+    }
+
+    @Data
+    public static class Incremental {
+
+        /**
+         * 读取上一个压缩包的中央目录和本地文件头时每次range请求的大小, 不超过这个大小的文件也从同一块里复制
+         */
+        private DataSize blockSize = DataSize.ofKilobytes(256);
+
+    }
+
+    @Data
+    public static class Admission {
+
+        /**
+         * 返回429时建议客户端等待的时间, 写在Retry-After里
+         */
+        private Duration retryAfter = Duration.ofSeconds(5);
+
+    }
+
+    @Data
+    public static class VirtualThread {
+
+        /**
+         * 上传, 预取, 分块下载和回调线程池改为每个任务一个虚拟线程, 只在jdk21及以上生效, 低版本jdk仍使用平台线程池
+         */
+        private boolean enabled = false;
+
+        /**
+         * 虚拟线程模式下每个线程池同时执行的任务上限, 代替pool-size, 超过oss客户端连接数的请求排队等连接
+         */
+        private int maxConcurrency = 1000;
+
+    }
+
+    @Data
+    public static class Volume {
+
+        /**
+         * 分卷并行压缩上传的线程数, 所有任务共用, 小于等于0时取cpu核数
+         */
+        private int poolSize = 0;
+
+    }
+
+    @Data
+    public static class Fair {
+
+        /**
+         * 关闭时所有业务系统共用一个先进先出队列
+         */
+        private boolean enabled = true;
+
+        /**
+         * 没有单独配置权重的业务系统的权重
+         */
+        private int defaultWeight = 1;
+
+        /**
+         * 业务系统 -> 权重, 每轮连续执行的任务数
+         */
+        private Map<String, Integer> weights = new HashMap<>();
+
+        /**
+         * 每个业务系统执行中的任务数上限, 小于等于0时不固定上限, 其他业务系统有排队任务时取线程数减一, 否则可以用满所有线程
+         */
+        private int defaultMaxRunning = 0;
+
+        /**
+         * 业务系统 -> 执行中的任务数上限
+         */
+        private Map<String, Integer> maxRunning = new HashMap<>();
+
+        /**
+         * 每个业务系统排队任务数上限, 一个业务系统不能占满整个队列
+         */
+        private int tenantQueueCapacity = 50;
+
+    }
+
+}
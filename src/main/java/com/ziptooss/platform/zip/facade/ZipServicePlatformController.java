@@ -1,14 +1,32 @@
 package com.ziptooss.platform.zip.facade;
 
+import com.ziptooss.platform.zip.api.ZipJob;
 import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.service.AdmissionControl;
+import com.ziptooss.platform.zip.service.AdmissionRejectedException;
+import com.ziptooss.platform.zip.service.OssPathIterator;
+import com.ziptooss.platform.zip.service.SpoolCapacityException;
+import com.ziptooss.platform.zip.service.ZipJobService;
 import com.ziptooss.platform.zip.service.ZipService;
+import com.ziptooss.platform.zip.util.ComEnum;
+import com.ziptooss.platform.zip.util.MultipartStreamUtils;
 import com.ziptooss.platform.zip.util.OssUtils;
 import com.ziptooss.platform.zip.util.ServerlessResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author yukun.yan
@@ -22,65 +40,212 @@ public class ZipServicePlatformController {
     @Resource
     private ZipService zipService;
 
+    @Resource
+    private ZipJobService zipJobService;
+
+    @Resource
+    private ZipConfigBean zipConfigBean;
+
+    @Resource
+    private AdmissionControl admissionControl;
+
     /**
      * 通过文件路径从oss下载文件流, 在serverless压缩为zip, 并上传到oss, 返回zip的url地址
      *
      * @param zipRequest
-     * @return 上传到oss的zip文件路径
+     * @return 任务id, 上传到oss的zip文件路径通过回调或 /jobs/{jobId} 获取
      */
     @PostMapping("/zipToOss")
     public ServerlessResponse<String> zipToOss(@RequestBody ZipRequest zipRequest) {
-        zipService.zipToOss(zipRequest);
-        return ServerlessResponse.ok("请求serverless成功, 异步处理中");
+        return submitJob(ComEnum.JobTypeEnum.zipToOss, zipRequest);
     }
 
     /**
-     * 小文件不分片上传
+     * 小文件不分片上传, multipart请求体边解析边上传
      *
-     * @param multipartFile
-     * @param bizSource
+     * @param request   multipart/form-data, 文件字段名为file
+     * @param bizSource url参数, 也可以作为放在file之前的表单字段
      * @return
      */
     @PostMapping("/fileUpload")
-    public ServerlessResponse<String> fileUpload(@RequestPart("file") MultipartFile multipartFile,
-                                                 @RequestParam("bizSource") String bizSource) {
-        return ServerlessResponse.ok(OssUtils.fileUpload(multipartFile, bizSource));
+    public ServerlessResponse<String> fileUpload(HttpServletRequest request,
+                                                 @RequestParam(value = "bizSource", required = false) String bizSource) {
+        admissionControl.admitUpload();
+        return MultipartStreamUtils.handleFile(request, bizSource, zipConfigBean.getUpload().getMaxFileSize().toBytes(),
+                OssUtils::fileUpload);
     }
 
     /**
-     * 大文件分片上传
+     * 大文件分片上传, 默认先写到临时文件再分片上传, 失败后可以续传; zip.upload.streaming开启时边解析请求体边上传分片
      *
-     * @param multipartFile
-     * @param bizSource
+     * @param request   multipart/form-data, 文件字段名为file
+     * @param bizSource url参数, 也可以作为放在file之前的表单字段
      * @return
      */
     @PostMapping("/fragmentUpload")
-    public ServerlessResponse<String> fragmentUpload(@RequestPart("file") MultipartFile multipartFile,
-                                                     @RequestParam("bizSource") String bizSource) {
-        return ServerlessResponse.ok(OssUtils.fragmentUploadMultipartFile(multipartFile, bizSource));
+    public ServerlessResponse<String> fragmentUpload(HttpServletRequest request,
+                                                     @RequestParam(value = "bizSource", required = false) String bizSource) {
+        admissionControl.admitUpload();
+        long sizeHint = request.getContentLengthLong();
+        return MultipartStreamUtils.handleFile(request, bizSource, zipConfigBean.getUpload().getMaxFileSize().toBytes(),
+                (inputStream, fileName, source) -> OssUtils.fragmentUpload(inputStream, fileName, sizeHint, source));
     }
 
     /**
      * 通过文件路径从oss下载文件流, 在serverless压缩为zip, 并写入到临时文件, 返回临时文件在磁盘的地址
      *
      * @param zipRequest
-     * @return 上传到oss的zip文件路径
+     * @return 任务id, 临时文件路径通过回调或 /jobs/{jobId} 获取
      */
     @PostMapping("/zipToTempFile")
     public ServerlessResponse<String> zipToTempFile(@RequestBody ZipRequest zipRequest) {
-        zipService.zipToTempFile(zipRequest);
-        return ServerlessResponse.ok("请求serverless成功, 异步处理中");
+        return submitJob(ComEnum.JobTypeEnum.zipToTempFile, zipRequest);
+    }
+
+    /**
+     * 边从oss下载边压缩, 直接写到http响应里, 不经过临时文件和回调, 压缩包大小事先不知道, 按chunked发送
+     *
+     * @param zipRequest ossFilePathList等放在url参数或表单里, 文件多时用post表单
+     * @param fileName   下载的文件名, 默认download.zip
+     * @param response
+     */
+    @RequestMapping(value = "/zipDownload", method = {RequestMethod.GET, RequestMethod.POST})
+    public void zipDownload(ZipRequest zipRequest, @RequestParam(value = "fileName", required = false) String fileName,
+                            HttpServletResponse response) {
+        admissionControl.admitDownload();
+        admissionControl.admitCompress();
+        String error = checkPathSource(zipRequest);
+        if (error != null) {
+            sendBadRequest(response, error);
+            return;
+        }
+        zipService.zipDownload(zipRequest, fileName, response);
+    }
+
+    /**
+     * 同 /zipDownload, 请求体是json格式的ZipRequest
+     *
+     * @param zipRequest
+     * @param fileName
+     * @param response
+     */
+    @PostMapping(value = "/zipDownload", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void zipDownloadJson(@RequestBody ZipRequest zipRequest, @RequestParam(value = "fileName", required = false) String fileName,
+                                HttpServletResponse response) {
+        admissionControl.admitDownload();
+        admissionControl.admitCompress();
+        String error = checkPathSource(zipRequest);
+        if (error != null) {
+            sendBadRequest(response, error);
+            return;
+        }
+        zipService.zipDownload(zipRequest, fileName, response);
+    }
+
+    /**
+     * 查询压缩任务状态
+     *
+     * @param jobId
+     * @return
+     */
+    @GetMapping("/jobs/{jobId}")
+    public ServerlessResponse<ZipJob> getJob(@PathVariable String jobId) {
+        ZipJob job = zipJobService.getJob(jobId);
+        if (job == null) {
+            return ServerlessResponse.fail("任务不存在或已过期");
+        }
+        return ServerlessResponse.ok(job);
+    }
+
+    /**
+     * 取消压缩任务, 停止下载和压缩, 取消分片上传, 删除临时文件, 不再回调; 清理完成后任务状态变为cancelled
+     *
+     * @param jobId
+     * @return 任务当前状态
+     */
+    @PostMapping("/jobs/{jobId}/cancel")
+    public ServerlessResponse<ZipJob> cancelJob(@PathVariable String jobId) {
+        if (!zipJobService.cancel(jobId)) {
+            return ServerlessResponse.fail("任务不存在, 已过期或已结束");
+        }
+        return ServerlessResponse.ok(zipJobService.getJob(jobId), "已取消");
     }
 
     /**
-     * 网盘系统重定向到这个路径, 下载临时文件
+     * 网盘系统重定向到这个路径, 下载临时文件, 支持Range断点续传
      *
      * @param filePath
+     * @param request
      * @param response
      */
     @GetMapping("/downloadZipFile")
-    public void streamDownload(@RequestParam String filePath, HttpServletResponse response) {
-        zipService.streamDownload(filePath, response);
+    public void streamDownload(@RequestParam String filePath, HttpServletRequest request, HttpServletResponse response) {
+        zipService.streamDownload(filePath, request, response);
+    }
+
+    private ServerlessResponse<String> submitJob(ComEnum.JobTypeEnum type, ZipRequest zipRequest) {
+        String error = checkPathSource(zipRequest);
+        if (error != null) {
+            return ServerlessResponse.fail(error);
+        }
+        if (zipRequest.getMaxVolumeSize() != null && zipRequest.getMaxVolumeSize() <= 0) {
+            return ServerlessResponse.fail("maxVolumeSize必须大于0");
+        }
+        admissionControl.admitCompress();
+        try {
+            return ServerlessResponse.ok(zipJobService.submit(type, zipRequest), "请求serverless成功, 异步处理中");
+        } catch (RejectedExecutionException e) {
+            throw admissionControl.reject("zip-job-pool", "任务队列已满, 请稍后重试");
+        } catch (SpoolCapacityException e) {
+            return ServerlessResponse.fail(e.getMessage());
+        }
+    }
+
+    private static void sendBadRequest(HttpServletResponse response, String message) {
+        try {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 文件列表, oss前缀, 清单文件三选一, 前缀和清单边列举边压缩, 不支持需要事先拿到所有文件的增量压缩和分卷; 源bucket需要已经配置
+     *
+     * @param zipRequest
+     * @return 不合法时返回原因
+     */
+    private static String checkPathSource(ZipRequest zipRequest) {
+        int sources = (CollectionUtils.isEmpty(zipRequest.getOssFilePathList()) ? 0 : 1)
+                + (StringUtils.isBlank(zipRequest.getOssPrefix()) ? 0 : 1)
+                + (StringUtils.isBlank(zipRequest.getManifestPath()) ? 0 : 1);
+        if (sources == 0) {
+            return "ossFilePathList, ossPrefix, manifestPath不能都为空";
+        }
+        if (sources > 1) {
+            return "ossFilePathList, ossPrefix, manifestPath只能指定一个";
+        }
+        if (StringUtils.isNotBlank(zipRequest.getBucket()) && !OssUtils.isBucketConfigured(zipRequest.getBucket())) {
+            return "bucket未配置, bucket=" + zipRequest.getBucket();
+        }
+        if (OssPathIterator.isListing(zipRequest)
+                && (StringUtils.isNotBlank(zipRequest.getBaseZipUrl()) || zipRequest.getMaxVolumeSize() != null)) {
+            return "ossPrefix和manifestPath不支持baseZipUrl和maxVolumeSize";
+        }
+        return null;
+    }
+
+    /**
+     * 线程池排满, 返回429, 客户端按Retry-After等待后重试
+     *
+     * @param e
+     * @return
+     */
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ResponseEntity<ServerlessResponse<String>> admissionRejected(AdmissionRejectedException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfter().getSeconds())))
+                .body(ServerlessResponse.fail(e.getMessage()));
     }
 
 }
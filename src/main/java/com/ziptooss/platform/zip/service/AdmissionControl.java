@@ -0,0 +1,84 @@
+package com.ziptooss.platform.zip.service;
+
+import com.ziptooss.platform.zip.config.ThreadPoolConfig;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * @author yukun.yan
+ * @description AdmissionControl 请求进来时按对应线程池的排队深度决定是否接收, 排满时返回429,
+ * 任务开始后不再拒绝, 一个大上传或大压缩包不会拖慢其他类型的请求
+ * @date 2023/8/25 14:30
+ */
+@Slf4j
+@Component
+public class AdmissionControl {
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private ZipMetrics zipMetrics;
+
+    @Autowired
+    @Qualifier("upload-pool")
+    private ExecutorService uploadPoolExecutor;
+
+    @Autowired
+    @Qualifier("download-pool")
+    private ExecutorService downloadPoolExecutor;
+
+    @Autowired
+    @Qualifier("compress-pool")
+    private ThreadPoolExecutor compressPoolExecutor;
+
+    /**
+     * 上传请求: 队列剩余位置要放得下一个文件同时上传的分片
+     */
+    public void admitUpload() {
+        ZipConfigBean.Upload uploadConfig = zipConfigBean.getUpload();
+        int required = uploadConfig.isStreaming() ? uploadConfig.getStreamConcurrency() : uploadConfig.getConcurrency();
+        if (ThreadPoolConfig.remainingQueueCapacity(uploadPoolExecutor) < required) {
+            throw reject("upload-pool", "上传繁忙, 请稍后重试");
+        }
+    }
+
+    /**
+     * 边压缩边下载请求: 下载线程池排队的预取任务加上这次的预取并发不超过上限
+     */
+    public void admitDownload() {
+        ZipConfigBean.Prefetch prefetchConfig = zipConfigBean.getPrefetch();
+        if (ThreadPoolConfig.queuedTasks(downloadPoolExecutor) + prefetchConfig.getConcurrency() > prefetchConfig.getQueueCapacity()) {
+            throw reject("download-pool", "下载繁忙, 请稍后重试");
+        }
+    }
+
+    /**
+     * 开启并行压缩时的压缩请求: 压缩线程池队列已经排满时不再接收新的压缩任务
+     */
+    public void admitCompress() {
+        if (zipConfigBean.getCompress().isParallel() && compressPoolExecutor.getQueue().remainingCapacity() == 0) {
+            throw reject("compress-pool", "压缩繁忙, 请稍后重试");
+        }
+    }
+
+    /**
+     * 记录一次拒绝
+     *
+     * @param pool    排满的线程池
+     * @param message 返回给调用方的提示
+     * @return
+     */
+    public AdmissionRejectedException reject(String pool, String message) {
+        log.warn("[AdmissionControl] reject, pool={}", pool);
+        zipMetrics.admissionRejected(pool);
+        return new AdmissionRejectedException(message, zipConfigBean.getAdmission().getRetryAfter());
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.ziptooss.platform.zip.service;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * @author yukun.yan
+ * @description AdmissionRejectedException 线程池排满, 拒绝新请求, 返回429和Retry-After
+ * @date 2023/8/25 14:20
+ */
+@Getter
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public AdmissionRejectedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+}
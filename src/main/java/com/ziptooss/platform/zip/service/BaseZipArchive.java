@@ -0,0 +1,143 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.ziptooss.platform.zip.util.ComEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.UnrecognizedExtraField;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipExtraField;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * @author yukun.yan
+ * @description BaseZipArchive 增量压缩时的上一个压缩包, 只读取中央目录, ETag没变的文件按压缩后的原始数据复制, 不再下载和压缩
+ * @date 2023/8/24 10:40
+ */
+@Slf4j
+public class BaseZipArchive implements Closeable {
+
+    /**
+     * 记录源文件ETag的扩展字段, 本地文件头和中央目录里都写, 并行压缩合并scatter文件时只保留本地文件头的扩展字段
+     */
+    private static final ZipShort ETAG_EXTRA_ID = new ZipShort(0x4f45);
+
+    private final String objectName;
+
+    private final OssObjectChannel channel;
+
+    private final ZipFile zipFile;
+
+    private BaseZipArchive(String objectName, OssObjectChannel channel, ZipFile zipFile) {
+        this.objectName = objectName;
+        this.channel = channel;
+        this.zipFile = zipFile;
+    }
+
+    /**
+     * 打开oss上的压缩包, 只下载文件尾部的中央目录, 本地文件头在复制时再读取
+     *
+     * @param objectName
+     * @param blockSize  每次range请求的大小
+     * @return
+     * @throws IOException
+     */
+    public static BaseZipArchive open(OSS ossClient, String bucketName, String objectName, int blockSize) throws IOException {
+        ObjectMetadata metadata = ossClient.getObjectMetadata(bucketName, objectName);
+        OssObjectChannel channel = new OssObjectChannel(ossClient, bucketName, objectName, metadata.getETag(),
+                metadata.getContentLength(), blockSize);
+        try {
+            return new BaseZipArchive(objectName, channel,
+                    new ZipFile(channel, objectName, StandardCharsets.UTF_8.name(), true, true));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 记录源文件的ETag, 之后可以作为增量压缩的基础
+     *
+     * @param entry
+     * @param eTag
+     */
+    public static void setETag(ZipArchiveEntry entry, String eTag) {
+        if (StringUtils.isEmpty(eTag)) {
+            return;
+        }
+        UnrecognizedExtraField extraField = new UnrecognizedExtraField();
+        extraField.setHeaderId(ETAG_EXTRA_ID);
+        extraField.setLocalFileDataData(eTag.getBytes(StandardCharsets.UTF_8));
+        entry.addExtraField(extraField);
+    }
+
+    /**
+     * 找出内容没变的文件: 压缩包里有同名文件, 记录的ETag和当前一致, 且压缩方式符合这次的要求
+     *
+     * @param paths
+     * @param eTags          和paths一一对应, 获取失败的为null
+     * @param compressMethod
+     * @return 文件路径 -> 上一个压缩包里的entry
+     */
+    public Map<String, ZipArchiveEntry> findUnchanged(List<String> paths, List<String> eTags,
+                                                      ComEnum.CompressMethodEnum compressMethod) {
+        Map<String, ZipArchiveEntry> unchanged = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            String eTag = eTags.get(i);
+            ZipArchiveEntry entry = zipFile.getEntry(paths.get(i));
+            if (eTag == null || entry == null || !matchMethod(entry, compressMethod)) {
+                continue;
+            }
+            ZipExtraField extraField = entry.getExtraField(ETAG_EXTRA_ID);
+            if (extraField != null && eTag.equals(new String(extraField.getCentralDirectoryData(), StandardCharsets.UTF_8))) {
+                unchanged.put(paths.get(i), entry);
+            }
+        }
+        log.info("[BaseZipArchive] find unchanged entries, objectName={}, entries={}, unchanged={}",
+                objectName, paths.size(), unchanged.size());
+        return unchanged;
+    }
+
+    private static boolean matchMethod(ZipArchiveEntry entry, ComEnum.CompressMethodEnum compressMethod) {
+        if (compressMethod == ComEnum.CompressMethodEnum.deflated) {
+            return entry.getMethod() == ZipEntry.DEFLATED;
+        }
+        if (compressMethod == ComEnum.CompressMethodEnum.stored) {
+            return entry.getMethod() == ZipEntry.STORED;
+        }
+        return true;
+    }
+
+    /**
+     * 打开entry压缩后的原始数据, 小于一块的从块缓存读, 相邻的小文件共用一次range请求, 大文件单独发一次range请求
+     *
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    public InputStream openRaw(ZipArchiveEntry entry) throws IOException {
+        // 没有读取本地文件头时getRawInputStream返回null, getInputStream会先读取本地文件头算出数据开始的位置, 不读取数据
+        zipFile.getInputStream(entry).close();
+        if (entry.getCompressedSize() <= channel.getBlockSize()) {
+            return zipFile.getRawInputStream(entry);
+        }
+        return channel.openRange(entry.getDataOffset(), entry.getCompressedSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+
+}
@@ -0,0 +1,300 @@
+package com.ziptooss.platform.zip.service;
+
+import com.alibaba.fastjson.JSON;
+import com.ziptooss.platform.zip.config.NamedThreadFactory;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.util.ComEnum;
+import com.ziptooss.platform.zip.util.OkHttpUtils;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.*;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author yukun.yan
+ * @description CallbackDispatcher 异步回调业务系统, 先追加到本地发件箱再用okhttp异步发送, 失败按指数退避重试,
+ * 重启后重发发件箱里没送达的回调, 压缩线程不用等业务系统响应
+ * @date 2023/8/22 15:35
+ */
+@Slf4j
+@Component
+public class CallbackDispatcher {
+
+    private static final String OUTBOX = "outbox.log";
+
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * 还没送达的回调
+     */
+    private final Map<String, CallbackRecord> pending = new ConcurrentHashMap<>();
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private ZipMetrics zipMetrics;
+
+    @Autowired
+    @Qualifier("callback-pool")
+    private ExecutorService callbackPoolExecutor;
+
+    private Path dir;
+
+    private FileChannel outbox;
+
+    /**
+     * 上次压缩后追加的完成记录数
+     */
+    private int doneSinceCompact;
+
+    private OkHttpClient client;
+
+    private ScheduledExecutorService retryScheduler;
+
+    private volatile boolean closed;
+
+    @PostConstruct
+    public void init() throws IOException {
+        ZipConfigBean.Callback callbackConfig = zipConfigBean.getCallback();
+        String configDir = callbackConfig.getDir();
+        dir = StringUtils.isBlank(configDir)
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "zip-to-oss", "callback")
+                : Paths.get(configDir);
+        Files.createDirectories(dir);
+
+        // 按域名限制并发, 和同步调用共用连接池
+        Dispatcher dispatcher = new Dispatcher(callbackPoolExecutor);
+        dispatcher.setMaxRequests(callbackConfig.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(callbackConfig.getMaxRequestsPerHost());
+        client = OkHttpUtils.getInstance().getClient().newBuilder().dispatcher(dispatcher).build();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("callback-retry"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        retryScheduler = scheduler;
+
+        List<CallbackRecord> replay = load();
+        synchronized (this) {
+            rewrite(replay);
+        }
+        zipMetrics.registerCallbackPending(pending::size);
+        log.info("[CallbackDispatcher] outbox dir={}, replay={}", dir, replay.size());
+        for (CallbackRecord record : replay) {
+            pending.put(record.getId(), record);
+            send(record);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        closed = true;
+        retryScheduler.shutdownNow();
+        synchronized (this) {
+            outbox.close();
+        }
+        // 没送达的回调留在发件箱, 下次启动重发
+        log.info("[CallbackDispatcher] shutdown, pending={}", pending.size());
+    }
+
+    /**
+     * 写入发件箱后异步发送, 不抛出异常
+     *
+     * @param url
+     * @param body      json请求体
+     * @param bizSource
+     */
+    public void dispatch(String url, String body, String bizSource) {
+        CallbackRecord record = new CallbackRecord();
+        record.setId(UUID.randomUUID().toString().replace("-", ""));
+        record.setUrl(url);
+        record.setBody(body);
+        record.setBizSource(bizSource);
+        record.setCreateTime(System.currentTimeMillis());
+        // 和压缩发件箱用同一把锁, 压缩时要么还没看到这条回调, 要么已经在pending里, 不会在重写时丢掉
+        synchronized (this) {
+            pending.put(record.getId(), record);
+            try {
+                append(record, zipConfigBean.getCallback().isFsync());
+            } catch (IOException e) {
+                // 落盘失败也照常发送, 只是重启后不能重发
+                log.error("[CallbackDispatcher] append outbox error, url={}, e={}", url, e);
+            }
+        }
+        send(record);
+    }
+
+    private void send(CallbackRecord record) {
+        if (closed) {
+            return;
+        }
+        record.setAttempts(record.getAttempts() + 1);
+        ZipMetrics.StageMetrics callbackMetrics = zipMetrics.stage(ComEnum.StageEnum.callback, record.getBizSource());
+        long startNanos = System.nanoTime();
+        Request request;
+        try {
+            request = new Request.Builder()
+                    .url(record.getUrl())
+                    .post(RequestBody.create(JSON_TYPE, record.getBody()))
+                    .build();
+        } catch (RuntimeException e) {
+            // 地址为空或不合法, 重试也没用
+            log.error("[CallbackDispatcher] invalid callback url, url={}, e={}", record.getUrl(), e.getMessage());
+            complete(record);
+            return;
+        }
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                callbackMetrics.failure(startNanos);
+                retry(record, e.toString());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response closeable = response) {
+                    if (closeable.isSuccessful()) {
+                        callbackMetrics.success(startNanos, 0);
+                        complete(record);
+                        log.info("[CallbackDispatcher] callback success, url={}, attempts={}", record.getUrl(), record.getAttempts());
+                    } else {
+                        callbackMetrics.failure(startNanos);
+                        retry(record, "http " + closeable.code());
+                    }
+                }
+            }
+        });
+    }
+
+    private void retry(CallbackRecord record, String reason) {
+        ZipConfigBean.Callback callbackConfig = zipConfigBean.getCallback();
+        if (record.getAttempts() >= callbackConfig.getMaxAttempts()) {
+            log.error("[CallbackDispatcher] callback give up, url={}, attempts={}, reason={}, body={}",
+                    record.getUrl(), record.getAttempts(), reason, record.getBody());
+            complete(record);
+            return;
+        }
+        // 指数退避加随机抖动, 业务系统恢复时回调不会同时涌过去
+        long backoff = callbackConfig.getInitialBackoff().toMillis() << Math.min(record.getAttempts() - 1, 20);
+        backoff = Math.min(backoff, callbackConfig.getMaxBackoff().toMillis());
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        log.warn("[CallbackDispatcher] callback retry, url={}, attempts={}, backoffMillis={}, reason={}",
+                record.getUrl(), record.getAttempts(), backoff, reason);
+        if (!closed) {
+            try {
+                retryScheduler.schedule(() -> send(record), backoff, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // 关闭中, 留给下次启动重发
+                log.warn("[CallbackDispatcher] schedule retry rejected, url={}", record.getUrl());
+            }
+        }
+    }
+
+    /**
+     * 送达或放弃, 从发件箱移除
+     */
+    private void complete(CallbackRecord record) {
+        if (pending.remove(record.getId()) == null) {
+            return;
+        }
+        CallbackRecord done = new CallbackRecord();
+        done.setId(record.getId());
+        done.setDone(true);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                append(done, false);
+                if (++doneSinceCompact >= zipConfigBean.getCallback().getCompactThreshold()) {
+                    rewrite(pending.values());
+                }
+            } catch (IOException e) {
+                // 重启后可能重发一次, 业务系统按taskId去重
+                log.error("[CallbackDispatcher] mark done error, id={}, e={}", record.getId(), e);
+            }
+        }
+    }
+
+    private synchronized void append(CallbackRecord record, boolean fsync) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((JSON.toJSONString(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            outbox.write(line);
+        }
+        if (fsync) {
+            outbox.force(false);
+        }
+    }
+
+    /**
+     * 只保留没送达的回调, 写到临时文件后替换发件箱
+     */
+    private void rewrite(Iterable<CallbackRecord> records) throws IOException {
+        Path file = dir.resolve(OUTBOX);
+        Path temp = dir.resolve(OUTBOX + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (CallbackRecord record : records) {
+                ByteBuffer line = ByteBuffer.wrap((JSON.toJSONString(record) + "\n").getBytes(StandardCharsets.UTF_8));
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            }
+            channel.force(false);
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        outbox = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        doneSinceCompact = 0;
+    }
+
+    /**
+     * 读取发件箱里没送达的回调, 最后一行写了一半时忽略该行
+     */
+    private List<CallbackRecord> load() throws IOException {
+        Path file = dir.resolve(OUTBOX);
+        Map<String, CallbackRecord> records = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                CallbackRecord record;
+                try {
+                    record = JSON.parseObject(line, CallbackRecord.class);
+                } catch (Exception e) {
+                    log.warn("[CallbackDispatcher] skip broken outbox line");
+                    continue;
+                }
+                if (record == null || record.getId() == null) {
+                    continue;
+                }
+                if (record.isDone()) {
+                    records.remove(record.getId());
+                } else {
+                    records.put(record.getId(), record);
+                }
+            }
+        }
+        return new ArrayList<>(records.values());
+    }
+
+}
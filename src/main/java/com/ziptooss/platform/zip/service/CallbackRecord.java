@@ -0,0 +1,35 @@
+package com.ziptooss.platform.zip.service;
+
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.Data;
+
+/**
+ * @author yukun.yan
+ * @description CallbackRecord 回调发件箱的一行, 新增回调写完整记录, 送达或放弃后追加一行只有id和done的记录
+ * @date 2023/8/22 15:20
+ */
+@Data
+public class CallbackRecord {
+
+    private String id;
+
+    private String url;
+
+    /**
+     * json请求体
+     */
+    private String body;
+
+    private String bizSource;
+
+    private long createTime;
+
+    private boolean done;
+
+    /**
+     * 已发送次数, 不落盘, 重启后重新计数
+     */
+    @JSONField(serialize = false, deserialize = false)
+    private int attempts;
+
+}
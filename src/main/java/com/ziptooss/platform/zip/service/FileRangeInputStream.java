@@ -0,0 +1,101 @@
+package com.ziptooss.platform.zip.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author yukun.yan
+ * @description FileRangeInputStream 按位置读取文件的一段, 多个分片共用一个FileChannel互不影响
+ * @date 2023/8/11 15:32
+ */
+public class FileRangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+
+    private final long start;
+
+    private final long end;
+
+    private long position;
+
+    private long mark;
+
+    /**
+     * 关闭流不关闭channel, channel由调用方统一关闭
+     *
+     * @param channel
+     * @param start   起始位置
+     * @param length  读取长度
+     */
+    public FileRangeInputStream(FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.start = start;
+        this.end = start + length;
+        this.position = start;
+        this.mark = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long remaining = end - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    /**
+     * oss sdk重试时会reset到mark的位置
+     */
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * 回到分片开头, 整个分片重传时使用
+     */
+    public void rewind() {
+        position = start;
+        mark = start;
+    }
+
+}
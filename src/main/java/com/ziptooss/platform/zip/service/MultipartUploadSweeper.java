@@ -0,0 +1,35 @@
+package com.ziptooss.platform.zip.service;
+
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.util.OssUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author yukun.yan
+ * @description MultipartUploadSweeper 定时取消废弃的分片上传, 删除过期断点
+ * @date 2023/8/14 15:20
+ */
+@Slf4j
+@Component
+public class MultipartUploadSweeper {
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Scheduled(initialDelayString = "#{@zipConfigBean.checkpoint.sweepInterval.toMillis()}",
+            fixedDelayString = "#{@zipConfigBean.checkpoint.sweepInterval.toMillis()}")
+    public void sweep() {
+        if (!zipConfigBean.getCheckpoint().isEnabled()) {
+            return;
+        }
+        try {
+            OssUtils.sweepStaleMultipartUploads();
+        } catch (Exception e) {
+            log.error("[MultipartUploadSweeper] sweep error, ", e);
+        }
+    }
+
+}
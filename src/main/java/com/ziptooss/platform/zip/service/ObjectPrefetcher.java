@@ -0,0 +1,276 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author yukun.yan
+ * @description ObjectPrefetcher 并发预取后面N个oss文件, 按请求顺序交给唯一的写入线程
+ * @date 2023/8/4 10:12
+ */
+@Slf4j
+public class ObjectPrefetcher implements Closeable {
+
+    private final OSS ossClient;
+    private final String bucketName;
+    private final Iterator<String> paths;
+    private final int concurrency;
+    private final long maxObjectSize;
+    private final ExecutorService executor;
+    private final ZipMetrics.StageMetrics fetchMetrics;
+    private final ZipConfigBean.Ranged rangedConfig;
+    private final ExecutorService rangeExecutor;
+    private final ZipProgress progress;
+
+    /**
+     * 已提交还没被写入线程取走的预取任务, 按请求顺序排列
+     */
+    private final Deque<Future<PrefetchedObject>> window = new ArrayDeque<>();
+
+    private final ByteBudget budget;
+
+    private long nextTicket;
+
+    private volatile boolean closed;
+
+    /**
+     * @param paths          按压缩包内顺序排列的文件路径
+     * @param concurrency    同时预取的文件数
+     * @param maxInFlightBytes 已预取未写入的文件最多占用的内存
+     * @param maxObjectSize  超过该大小的文件不预取内容, 轮到写入时再流式下载
+     * @param fetchMetrics   下载耗时和字节数
+     * @param rangedConfig   流式下载的大文件超过阈值时分块并发下载
+     * @param rangeExecutor  分块下载线程池
+     * @param progress       取消时断开进行中的下载
+     */
+    public ObjectPrefetcher(OSS ossClient, String bucketName, Iterator<String> paths, int concurrency,
+                            long maxInFlightBytes, long maxObjectSize, ExecutorService executor,
+                            ZipMetrics.StageMetrics fetchMetrics, ZipConfigBean.Ranged rangedConfig,
+                            ExecutorService rangeExecutor, ZipProgress progress) {
+        this.ossClient = ossClient;
+        this.bucketName = bucketName;
+        this.paths = paths;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxObjectSize = Math.min(maxObjectSize, maxInFlightBytes);
+        this.budget = new ByteBudget(maxInFlightBytes);
+        this.executor = executor;
+        this.fetchMetrics = fetchMetrics;
+        this.rangedConfig = rangedConfig;
+        this.rangeExecutor = rangeExecutor;
+        this.progress = progress;
+    }
+
+    /**
+     * 按请求顺序取下一个文件, 没有更多文件时返回null, 调用方用完后需要close
+     *
+     * @return
+     * @throws IOException
+     */
+    public PrefetchedObject next() throws IOException {
+        fill();
+        Future<PrefetchedObject> head = window.poll();
+        if (head == null) {
+            return null;
+        }
+        // 先补满窗口再等待, 写入当前文件时后面的文件已经在下载
+        fill();
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for prefetch");
+        } catch (ExecutionException e) {
+            throw new IOException("prefetch error", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        budget.close();
+        Future<PrefetchedObject> future;
+        while ((future = window.poll()) != null) {
+            if (!future.cancel(true) && future.isDone()) {
+                try {
+                    future.get().close();
+                } catch (Exception e) {
+                    // 任务本身的异常已经记录过
+                }
+            }
+        }
+    }
+
+    private void fill() {
+        while (!closed && window.size() < concurrency && paths.hasNext()) {
+            String path = paths.next();
+            long ticket = nextTicket++;
+            window.add(executor.submit(() -> fetch(ticket, path)));
+        }
+    }
+
+    private PrefetchedObject fetch(long ticket, String path) {
+        boolean reserved = false;
+        // 已占用还没交给PrefetchedObject的额度, 读取失败时归还
+        long reservedBytes = 0;
+        OSSObject ossObject = null;
+        Closeable abort = null;
+        long startNanos = System.nanoTime();
+        try {
+            progress.checkCancelled();
+            ossObject = ossClient.getObject(bucketName, path);
+            abort = ossObject::forcedClose;
+            progress.register(abort);
+            ObjectMetadata metadata = ossObject.getObjectMetadata();
+            long contentLength = metadata.getContentLength();
+            if (contentLength > maxObjectSize) {
+                // 大文件不占用预取内存, 断开连接避免把剩余内容读完
+                budget.reserve(ticket, 0);
+                reserved = true;
+                forcedClose(ossObject);
+                ossObject = null;
+                // 大文件只计到拿到响应头, 内容在写入时边下载边压缩, 耗时算在compress阶段
+                fetchMetrics.success(startNanos, contentLength);
+                return new PrefetchedObject(path, contentLength, metadata.getETag(), metadata.getContentType(),
+                        null, ossClient, bucketName, rangedConfig, rangeExecutor, progress, null);
+            }
+            // 按顺序占用额度, 保证窗口最前面的文件总能拿到内存, 不会和后面的文件互相等待
+            budget.reserve(ticket, contentLength);
+            reserved = true;
+            reservedBytes = contentLength;
+            byte[] data = new byte[(int) contentLength];
+            try (InputStream inputStream = ossObject.getObjectContent()) {
+                if (IOUtils.readFully(inputStream, data) != data.length) {
+                    throw new EOFException("unexpected end of object, path=" + path);
+                }
+            }
+            fetchMetrics.success(startNanos, contentLength);
+            PrefetchedObject prefetched = new PrefetchedObject(path, contentLength, metadata.getETag(), metadata.getContentType(),
+                    data, ossClient, bucketName, null, null, progress, () -> budget.release(contentLength));
+            reservedBytes = 0;
+            if (closed) {
+                prefetched.close();
+            }
+            return prefetched;
+        } catch (Throwable t) {
+            if (!closed && !progress.isCancelled()) {
+                fetchMetrics.failure(startNanos);
+                log.error("[ObjectPrefetcher] getObject error, path={}, e={}", path, t);
+            }
+            if (!reserved) {
+                budget.skip(ticket);
+            } else if (reservedBytes > 0) {
+                budget.release(reservedBytes);
+            }
+            return new PrefetchedObject(path, t);
+        } finally {
+            if (abort != null) {
+                progress.unregister(abort);
+            }
+            if (ossObject != null) {
+                try {
+                    ossObject.close();
+                } catch (IOException e) {
+                    log.error("Error closing OSSObject", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接断开连接, close会把剩余内容读完才归还连接
+     */
+    private static void forcedClose(OSSObject ossObject) {
+        try {
+            ossObject.forcedClose();
+        } catch (Exception e) {
+            log.warn("[ObjectPrefetcher] forcedClose error, key={}, e={}", ossObject.getKey(), e.getMessage());
+        }
+    }
+
+    /**
+     * 预取内存额度, 按票号顺序分配
+     */
+    static class ByteBudget {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private long available;
+        private long nextTicket;
+        private boolean closed;
+
+        ByteBudget(long capacity) {
+            this.available = capacity;
+        }
+
+        void reserve(long ticket, long bytes) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (!closed && (ticket != nextTicket || bytes > available)) {
+                    changed.await();
+                }
+                if (closed) {
+                    throw new CancellationException("prefetcher closed");
+                }
+                available -= bytes;
+                nextTicket++;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 失败的任务也要让出票号, 否则后面的任务永远排不到
+         */
+        void skip(long ticket) {
+            lock.lock();
+            try {
+                while (!closed && ticket != nextTicket) {
+                    changed.awaitUninterruptibly();
+                }
+                nextTicket++;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long bytes) {
+            lock.lock();
+            try {
+                available += bytes;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
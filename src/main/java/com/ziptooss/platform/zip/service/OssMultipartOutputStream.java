@@ -0,0 +1,267 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @author yukun.yan
+ * @description OssMultipartOutputStream 写满一个分片就提交上传, 压缩和上传同时进行, 不落盘
+ * @date 2023/8/2 15:06
+ */
+@Slf4j
+public class OssMultipartOutputStream extends OutputStream {
+
+    /**
+     * oss单次分片上传最多10000片
+     */
+    private static final int MAX_PART_COUNT = 10000;
+
+    /**
+     * 重试间隔基数, 每次翻倍
+     */
+    private static final long RETRY_BACKOFF_MILLIS = 200L;
+
+    private final OSS ossClient;
+    private final String bucketName;
+    private final String objectName;
+    private final int partSize;
+    private final int concurrency;
+    private final Executor executor;
+    private final int maxRetries;
+    private final ZipMetrics.StageMetrics uploadPartMetrics;
+    private final ZipMetrics.StageMetrics completeMetrics;
+
+    /**
+     * 正在上传的分片数许可, 写满时阻塞压缩线程, 内存不会无限增长
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * 上传完成后归还的分片缓冲区, 循环使用
+     */
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    private final List<PartETag> partEtagList = new ArrayList<>();
+
+    private final String uploadId;
+
+    private byte[] buffer;
+    private int position;
+    private int partNumber;
+    private boolean closed;
+
+    /**
+     * 只有写入线程修改, 查询任务进度时在其他线程读取
+     */
+    private volatile long totalBytes;
+
+    private volatile Throwable failure;
+
+    public OssMultipartOutputStream(OSS ossClient, String bucketName, String objectName,
+                                    int partSize, int concurrency, Executor executor, int maxRetries,
+                                    ZipMetrics.StageMetrics uploadPartMetrics, ZipMetrics.StageMetrics completeMetrics) {
+        this.ossClient = ossClient;
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.executor = executor;
+        this.maxRetries = maxRetries;
+        this.uploadPartMetrics = uploadPartMetrics;
+        this.completeMetrics = completeMetrics;
+        this.inFlight = new Semaphore(concurrency);
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, objectName);
+        this.uploadId = ossClient.initiateMultipartUpload(request).getUploadId();
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (position == partSize) {
+            flushPart();
+        }
+        buffer[position++] = (byte) b;
+        totalBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (position == partSize) {
+                flushPart();
+            }
+            int n = Math.min(len, partSize - position);
+            System.arraycopy(b, off, buffer, position, n);
+            position += n;
+            off += n;
+            len -= n;
+            totalBytes += n;
+        }
+    }
+
+    /**
+     * 上传剩余数据, 等待所有分片完成后合并; 任一分片失败则取消整个上传
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            ensureOpen();
+            // 空文件也需要一个分片才能合并
+            if (position > 0 || partNumber == 0) {
+                flushPart();
+            }
+            awaitInFlight();
+            rethrowFailure();
+            partEtagList.sort(Comparator.comparingInt(PartETag::getPartNumber));
+            long startNanos = System.nanoTime();
+            try {
+                ossClient.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, objectName, uploadId, partEtagList));
+            } catch (RuntimeException e) {
+                completeMetrics.failure(startNanos);
+                throw e;
+            }
+            completeMetrics.success(startNanos, totalBytes);
+            closed = true;
+            log.info("[OssMultipartOutputStream] complete, objectName={}, parts={}, bytes={}", objectName, partNumber, totalBytes);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * 放弃上传, 清理oss上已上传的分片, 之后的close不再合并
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            awaitInFlight();
+        } catch (InterruptedIOException e) {
+            log.warn("[OssMultipartOutputStream] abort interrupted while waiting parts, objectName={}", objectName);
+        }
+        try {
+            ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectName, uploadId));
+            log.info("[OssMultipartOutputStream] abort, objectName={}, uploadId={}", objectName, uploadId);
+        } catch (Exception e) {
+            log.error("[OssMultipartOutputStream] abort error, objectName={}, e={}", objectName, e);
+        }
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void flushPart() throws IOException {
+        rethrowFailure();
+        if (partNumber >= MAX_PART_COUNT) {
+            throw new IOException("partCount > " + MAX_PART_COUNT + ", increase zip.stream.part-size");
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for part upload");
+        }
+        byte[] data = buffer;
+        int length = position;
+        int number = ++partNumber;
+        try {
+            executor.execute(() -> uploadPart(data, length, number));
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw new IOException("submit part upload error", e);
+        }
+        byte[] next = freeBuffers.poll();
+        buffer = next != null ? next : new byte[partSize];
+        position = 0;
+    }
+
+    private void uploadPart(byte[] data, int length, int number) {
+        try {
+            for (int attempt = 0; ; attempt++) {
+                if (failure != null) {
+                    return;
+                }
+                // 分片缓冲区在上传成功前不会复用, 失败时可以直接重传
+                long startNanos = System.nanoTime();
+                try {
+                    UploadPartRequest uploadPartRequest = new UploadPartRequest();
+                    uploadPartRequest.setBucketName(bucketName);
+                    uploadPartRequest.setKey(objectName);
+                    uploadPartRequest.setUploadId(uploadId);
+                    uploadPartRequest.setInputStream(new ByteArrayInputStream(data, 0, length));
+                    uploadPartRequest.setPartSize(length);
+                    uploadPartRequest.setPartNumber(number);
+                    UploadPartResult uploadPartResult = ossClient.uploadPart(uploadPartRequest);
+                    synchronized (partEtagList) {
+                        partEtagList.add(uploadPartResult.getPartETag());
+                    }
+                    uploadPartMetrics.success(startNanos, length);
+                    return;
+                } catch (Exception e) {
+                    uploadPartMetrics.failure(startNanos);
+                    if (attempt >= maxRetries || failure != null) {
+                        throw e;
+                    }
+                    log.warn("[OssMultipartOutputStream] uploadPart retry, objectName={}, partNumber={}, attempt={}, e={}",
+                            objectName, number, attempt + 1, e.getMessage());
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                }
+            }
+        } catch (Throwable t) {
+            log.error("[OssMultipartOutputStream] uploadPart error, objectName={}, partNumber={}, e={}", objectName, number, t);
+            if (failure == null) {
+                failure = t;
+            }
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            freeBuffers.offer(data);
+            inFlight.release();
+        }
+    }
+
+    private void awaitInFlight() throws InterruptedIOException {
+        try {
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for part upload");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("OssMultipartOutputStream closed, objectName=" + objectName);
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("upload part failed, objectName=" + objectName, failure);
+        }
+    }
+
+}
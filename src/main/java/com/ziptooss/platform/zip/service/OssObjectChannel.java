@@ -0,0 +1,167 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.OSSObject;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collections;
+
+/**
+ * @author yukun.yan
+ * @description OssObjectChannel 只读的oss文件随机访问, 按块range下载并缓存最近的一块, 给ZipFile读取中央目录和本地文件头用
+ * @date 2023/8/24 10:15
+ */
+public class OssObjectChannel implements SeekableByteChannel {
+
+    private final OSS ossClient;
+    private final String bucketName;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    private final int blockSize;
+
+    private long position;
+
+    private long blockStart = -1;
+
+    private byte[] block;
+
+    private boolean closed;
+
+    /**
+     * @param eTag      每次range请求都校验ETag, 读取期间文件被覆盖时失败
+     * @param size      文件大小
+     * @param blockSize 每次range请求下载的大小
+     */
+    public OssObjectChannel(OSS ossClient, String bucketName, String key, String eTag, long size, int blockSize) {
+        this.ossClient = ossClient;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.eTag = eTag;
+        this.size = size;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            if (block == null || position < blockStart || position >= blockStart + block.length) {
+                loadBlock(position - position % blockSize);
+            }
+            int offset = (int) (position - blockStart);
+            int n = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, n);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position < 0");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        block = null;
+    }
+
+    /**
+     * 打开一段内容的输入流, 单独发一次range请求, 用于读取大块数据
+     *
+     * @param start
+     * @param length
+     * @return
+     */
+    public InputStream openRange(long start, long length) throws IOException {
+        ensureOpen();
+        OSSObject ossObject = ossClient.getObject(rangeRequest(start, start + length - 1));
+        if (ossObject.getObjectMetadata().getContentLength() != length) {
+            ossObject.forcedClose();
+            throw new IOException("range not satisfied, key=" + key + ", range=" + start + "-" + (start + length - 1));
+        }
+        return ossObject.getObjectContent();
+    }
+
+    private void loadBlock(long start) throws IOException {
+        long end = Math.min(start + blockSize, size) - 1;
+        byte[] data = new byte[(int) (end - start + 1)];
+        try (OSSObject ossObject = ossClient.getObject(rangeRequest(start, end));
+             InputStream inputStream = ossObject.getObjectContent()) {
+            // range不合法时oss会返回整个文件
+            if (ossObject.getObjectMetadata().getContentLength() != data.length
+                    || IOUtils.readFully(inputStream, data) != data.length) {
+                throw new EOFException("unexpected range content, key=" + key + ", range=" + start + "-" + end);
+            }
+        }
+        block = data;
+        blockStart = start;
+    }
+
+    private GetObjectRequest rangeRequest(long start, long end) {
+        GetObjectRequest request = new GetObjectRequest(bucketName, key);
+        request.setRange(start, end);
+        if (eTag != null) {
+            request.setMatchingETagConstraints(Collections.singletonList(eTag));
+        }
+        return request;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.ListObjectsV2Request;
+import com.aliyun.oss.model.ListObjectsV2Result;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.util.CollectionUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * @author yukun.yan
+ * @description OssPathIterator 压缩请求里的文件路径, 可以是请求体里的列表, oss前缀或oss上的清单文件,
+ * 前缀按页列举, 清单按range分块读取, 边读边交给预取, 内存里只有当前一页或一块
+ * @date 2023/8/25 17:00
+ */
+public abstract class OssPathIterator implements Iterator<String>, Closeable {
+
+    /**
+     * listObjectsV2每页最多1000个
+     */
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    private String next;
+
+    private boolean done;
+
+    private long count;
+
+    /**
+     * 请求里没有文件列表, 而是指定了前缀或清单文件
+     *
+     * @param zipRequest
+     * @return
+     */
+    public static boolean isListing(ZipRequest zipRequest) {
+        return CollectionUtils.isEmpty(zipRequest.getOssFilePathList())
+                && (StringUtils.isNotBlank(zipRequest.getOssPrefix()) || StringUtils.isNotBlank(zipRequest.getManifestPath()));
+    }
+
+    /**
+     * 按请求打开文件路径, 列表, 前缀, 清单依次优先
+     *
+     * @param manifestObjectName 清单文件的oss路径, 只有按清单压缩时使用
+     * @return
+     */
+    public static OssPathIterator open(OSS ossClient, String bucketName, ZipRequest zipRequest, String manifestObjectName) {
+        if (!CollectionUtils.isEmpty(zipRequest.getOssFilePathList())) {
+            return new ListIterator(zipRequest.getOssFilePathList());
+        }
+        if (StringUtils.isNotBlank(zipRequest.getOssPrefix())) {
+            return new PrefixIterator(ossClient, bucketName, zipRequest.getOssPrefix());
+        }
+        if (StringUtils.isNotBlank(manifestObjectName)) {
+            return new ManifestIterator(ossClient, bucketName, manifestObjectName);
+        }
+        return new ListIterator(Collections.emptyList());
+    }
+
+    /**
+     * 读取下一个路径
+     *
+     * @return 没有更多时返回null
+     * @throws IOException
+     */
+    protected abstract String read() throws IOException;
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String path = next;
+        next = null;
+        count++;
+        return path;
+    }
+
+    /**
+     * 已经取出的路径数
+     *
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+    }
+
+    private static class ListIterator extends OssPathIterator {
+
+        private final Iterator<String> paths;
+
+        ListIterator(List<String> paths) {
+            this.paths = paths.iterator();
+        }
+
+        @Override
+        protected String read() {
+            return paths.hasNext() ? paths.next() : null;
+        }
+
+    }
+
+    /**
+     * 前缀下的所有文件, 按key的字典序, 跳过以/结尾的目录占位文件
+     */
+    private static class PrefixIterator extends OssPathIterator {
+
+        private final OSS ossClient;
+
+        private final String bucketName;
+
+        private final String prefix;
+
+        private Iterator<OSSObjectSummary> page = Collections.emptyIterator();
+
+        private String continuationToken;
+
+        private boolean lastPage;
+
+        PrefixIterator(OSS ossClient, String bucketName, String prefix) {
+            this.ossClient = ossClient;
+            this.bucketName = bucketName;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected String read() {
+            while (true) {
+                while (page.hasNext()) {
+                    String key = page.next().getKey();
+                    if (!key.endsWith("/")) {
+                        return key;
+                    }
+                }
+                if (lastPage) {
+                    return null;
+                }
+                ListObjectsV2Request request = new ListObjectsV2Request(bucketName, prefix);
+                request.setMaxKeys(LIST_PAGE_SIZE);
+                request.setContinuationToken(continuationToken);
+                ListObjectsV2Result result = ossClient.listObjectsV2(request);
+                page = result.getObjectSummaries().iterator();
+                continuationToken = result.getNextContinuationToken();
+                lastPage = !result.isTruncated();
+            }
+        }
+
+    }
+
+    /**
+     * 清单文件每行一个oss路径, UTF-8编码, 忽略空行和首尾空白; 按range分块读取, 每块读完就关闭连接,
+     * 压缩慢的时候不会一直占着一个GET, 也不会因为连接空闲太久被服务端断开
+     */
+    private static class ManifestIterator extends OssPathIterator {
+
+        /**
+         * 每次读取的分块大小
+         */
+        private static final int RANGE_SIZE = 1024 * 1024;
+
+        private final OSS ossClient;
+
+        private final String bucketName;
+
+        private final String objectName;
+
+        private final long contentLength;
+
+        /**
+         * 每个分块都校验ETag, 读取期间清单被覆盖时失败, 不会前后拼出两个版本的清单
+         */
+        private final String eTag;
+
+        /**
+         * 已读取还没切分的字节, 上一块末尾不完整的一行留在开头
+         */
+        private byte[] buffer = new byte[0];
+
+        private int position;
+
+        private int limit;
+
+        private long fetched;
+
+        ManifestIterator(OSS ossClient, String bucketName, String objectName) {
+            this.ossClient = ossClient;
+            this.bucketName = bucketName;
+            this.objectName = objectName;
+            ObjectMetadata metadata = ossClient.getObjectMetadata(bucketName, objectName);
+            this.contentLength = metadata.getContentLength();
+            this.eTag = metadata.getETag();
+        }
+
+        @Override
+        protected String read() throws IOException {
+            while (true) {
+                // 按换行字节切分, UTF-8的多字节字符里不会出现0x0A
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        String line = new String(buffer, position, i - position, StandardCharsets.UTF_8).trim();
+                        position = i + 1;
+                        if (!line.isEmpty()) {
+                            return line;
+                        }
+                    }
+                }
+                if (fetched >= contentLength) {
+                    // 最后一行没有换行
+                    String line = new String(buffer, position, limit - position, StandardCharsets.UTF_8).trim();
+                    position = limit;
+                    return line.isEmpty() ? null : line;
+                }
+                fetch();
+            }
+        }
+
+        /**
+         * 读取下一块, 追加在没切分完的字节后面
+         */
+        private void fetch() throws IOException {
+            long start = fetched;
+            long end = Math.min(start + RANGE_SIZE, contentLength) - 1;
+            int rangeLength = (int) (end - start + 1);
+            int carry = limit - position;
+            byte[] next = buffer.length >= carry + rangeLength ? buffer : new byte[carry + rangeLength];
+            System.arraycopy(buffer, position, next, 0, carry);
+            GetObjectRequest request = new GetObjectRequest(bucketName, objectName);
+            request.setRange(start, end);
+            if (eTag != null) {
+                request.setMatchingETagConstraints(Collections.singletonList(eTag));
+            }
+            try (OSSObject ossObject = ossClient.getObject(request);
+                 InputStream inputStream = ossObject.getObjectContent()) {
+                // range不合法时oss会返回整个文件
+                if (ossObject.getObjectMetadata().getContentLength() != rangeLength) {
+                    throw new IOException("range not satisfied, key=" + objectName + ", range=" + start + "-" + end);
+                }
+                if (IOUtils.readFully(inputStream, next, carry, rangeLength) != rangeLength) {
+                    throw new EOFException("unexpected end of range, key=" + objectName + ", range=" + start + "-" + end);
+                }
+            }
+            buffer = next;
+            position = 0;
+            limit = carry + rangeLength;
+            fetched = end + 1;
+        }
+
+    }
+
+}
@@ -4,40 +4,55 @@ import com.aliyun.oss.OSS;
 import com.aliyun.oss.model.PartETag;
 import com.aliyun.oss.model.UploadPartRequest;
 import com.aliyun.oss.model.UploadPartResult;
-import org.springframework.web.multipart.MultipartFile;
+import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * @author yukun.yan
  * @description PartUploader
  * @date 2023/7/21 10:53
  */
+@Slf4j
 public class PartUploader implements Runnable {
 
+    /**
+     * 重试间隔基数, 每次翻倍
+     */
+    private static final long RETRY_BACKOFF_MILLIS = 200L;
+
     private final int i;
     private final long partSize;
     private final int partCount;
     private final String bucketName;
-    private final MultipartFile file;
+    private final FileChannel channel;
     private final long fileLength;
     private final String objectName;
     private final String uploadId;
     private final OSS ossClient;
     private final List<PartETag> partEtagList;
     private final CountDownLatch countDownLatch;
+    private final Semaphore inFlight;
+    private final int maxRetries;
+    private final AtomicReference<Throwable> failure;
+    private final Consumer<PartETag> onPartUploaded;
+    private final ZipMetrics.StageMetrics uploadPartMetrics;
 
     public PartUploader(int i, long partSize, int partCount,
-                        MultipartFile file, long fileLength, String objectName,
+                        FileChannel channel, long fileLength, String objectName,
                         String uploadId, OSS ossClient, List<PartETag> partEtagList,
-                        CountDownLatch countDownLatch, String bucketName) {
+                        CountDownLatch countDownLatch, String bucketName,
+                        Semaphore inFlight, int maxRetries, AtomicReference<Throwable> failure,
+                        Consumer<PartETag> onPartUploaded, ZipMetrics.StageMetrics uploadPartMetrics) {
         this.i = i;
         this.partSize = partSize;
         this.partCount = partCount;
-        this.file = file;
+        this.channel = channel;
         this.fileLength = fileLength;
         this.objectName = objectName;
         this.uploadId = uploadId;
@@ -45,38 +60,64 @@ public class PartUploader implements Runnable {
         this.partEtagList = partEtagList;
         this.countDownLatch = countDownLatch;
         this.bucketName = bucketName;
+        this.inFlight = inFlight;
+        this.maxRetries = maxRetries;
+        this.failure = failure;
+        this.onPartUploaded = onPartUploaded;
+        this.uploadPartMetrics = uploadPartMetrics;
     }
 
     @Override
     public void run() {
-        InputStream instream = null;
         try {
+            // 已经有分片失败了, 剩下的分片不用再传
+            if (failure.get() != null) {
+                return;
+            }
             long startPos = i * partSize;
             long curPartSize = (i + 1 == partCount) ? (fileLength - startPos) : partSize;
-            instream = file.getInputStream();
-            instream.skip(startPos);
-            UploadPartRequest uploadPartRequest = new UploadPartRequest();
-            uploadPartRequest.setBucketName(bucketName);
-            uploadPartRequest.setKey(objectName);
-            uploadPartRequest.setUploadId(uploadId);
-            uploadPartRequest.setInputStream(instream);
-            uploadPartRequest.setPartSize(curPartSize);
-            uploadPartRequest.setPartNumber(i + 1);
-            UploadPartResult uploadPartResult = ossClient.uploadPart(uploadPartRequest);
-            synchronized ("lock") {
-                this.partEtagList.add(uploadPartResult.getPartETag());
-            }
-        } catch (Exception e) {
-            //
-        } finally {
-            countDownLatch.countDown();
-            if (instream != null) {
+            // 按位置读取, 不用每个分片都从文件开头skip
+            FileRangeInputStream instream = new FileRangeInputStream(channel, startPos, curPartSize);
+            for (int attempt = 0; ; attempt++) {
+                // 每次重试单独计时, 失败次数能看出oss限流和断连
+                long startNanos = System.nanoTime();
                 try {
-                    instream.close();
-                } catch (IOException e) {
-                    //
+                    instream.rewind();
+                    UploadPartRequest uploadPartRequest = new UploadPartRequest();
+                    uploadPartRequest.setBucketName(bucketName);
+                    uploadPartRequest.setKey(objectName);
+                    uploadPartRequest.setUploadId(uploadId);
+                    uploadPartRequest.setInputStream(instream);
+                    uploadPartRequest.setPartSize(curPartSize);
+                    uploadPartRequest.setPartNumber(i + 1);
+                    UploadPartResult uploadPartResult = ossClient.uploadPart(uploadPartRequest);
+                    uploadPartMetrics.success(startNanos, curPartSize);
+                    synchronized (partEtagList) {
+                        this.partEtagList.add(uploadPartResult.getPartETag());
+                    }
+                    if (onPartUploaded != null) {
+                        onPartUploaded.accept(uploadPartResult.getPartETag());
+                    }
+                    return;
+                } catch (Exception e) {
+                    uploadPartMetrics.failure(startNanos);
+                    if (attempt >= maxRetries || failure.get() != null) {
+                        throw e;
+                    }
+                    log.warn("[PartUploader] uploadPart retry, objectName={}, partNumber={}, attempt={}, e={}",
+                            objectName, i + 1, attempt + 1, e.getMessage());
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
                 }
             }
+        } catch (Throwable t) {
+            log.error("[PartUploader] uploadPart error, objectName={}, partNumber={}, e={}", objectName, i + 1, t);
+            failure.compareAndSet(null, t);
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            inFlight.release();
+            countDownLatch.countDown();
         }
     }
 
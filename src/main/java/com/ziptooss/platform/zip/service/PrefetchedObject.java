@@ -0,0 +1,154 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.OSSObject;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.Getter;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * @author yukun.yan
+ * @description PrefetchedObject 预取好的oss文件, 小文件内容在内存里, 大文件轮到写入时再流式下载
+ * @date 2023/8/4 10:37
+ */
+public class PrefetchedObject implements Closeable {
+
+    @Getter
+    private final String path;
+
+    @Getter
+    private final long contentLength;
+
+    @Getter
+    private final String eTag;
+
+    @Getter
+    private final String contentType;
+
+    /**
+     * 预取失败的原因, 不为空时调用方跳过该文件
+     */
+    @Getter
+    private final Throwable error;
+
+    /**
+     * 预取到内存的内容, 大文件为null
+     */
+    private byte[] data;
+
+    private final OSS ossClient;
+
+    private final String bucketName;
+
+    /**
+     * 大文件分块下载配置和下载线程池, 内存里的文件为null
+     */
+    private final ZipConfigBean.Ranged rangedConfig;
+
+    private final ExecutorService executor;
+
+    /**
+     * 大文件下载中登记到任务进度, 取消时断开
+     */
+    private final ZipProgress progress;
+
+    private final Runnable onClose;
+
+    private boolean closed;
+
+    PrefetchedObject(String path, long contentLength, String eTag, String contentType, byte[] data,
+                     OSS ossClient, String bucketName, ZipConfigBean.Ranged rangedConfig,
+                     ExecutorService executor, ZipProgress progress, Runnable onClose) {
+        this.path = path;
+        this.contentLength = contentLength;
+        this.eTag = eTag;
+        this.contentType = contentType;
+        this.data = data;
+        this.ossClient = ossClient;
+        this.bucketName = bucketName;
+        this.rangedConfig = rangedConfig;
+        this.executor = executor;
+        this.progress = progress;
+        this.onClose = onClose;
+        this.error = null;
+    }
+
+    PrefetchedObject(String path, Throwable error) {
+        this.path = path;
+        this.error = error;
+        this.contentLength = -1;
+        this.eTag = null;
+        this.contentType = null;
+        this.ossClient = null;
+        this.bucketName = null;
+        this.rangedConfig = null;
+        this.executor = null;
+        this.progress = null;
+        this.onClose = null;
+    }
+
+    /**
+     * 预取到内存的内容, 大文件返回null
+     *
+     * @return
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isBuffered() {
+        return data != null;
+    }
+
+    /**
+     * 打开文件内容, 大文件按预取时的ETag重新下载, 防止两次请求之间文件被覆盖, 超过阈值的分块并发下载
+     *
+     * @return
+     */
+    public InputStream openStream() {
+        if (error != null) {
+            throw new IllegalStateException("prefetch failed, path=" + path, error);
+        }
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+        if (rangedConfig != null && rangedConfig.getConcurrency() > 1 && contentLength >= rangedConfig.getThreshold().toBytes()) {
+            return new RangedObjectInputStream(ossClient, bucketName, path, eTag, contentLength,
+                    (int) rangedConfig.getChunkSize().toBytes(), rangedConfig.getConcurrency(), executor, progress);
+        }
+        GetObjectRequest request = new GetObjectRequest(bucketName, path);
+        if (eTag != null) {
+            request.setMatchingETagConstraints(Collections.singletonList(eTag));
+        }
+        OSSObject ossObject = ossClient.getObject(request);
+        Closeable abort = ossObject::forcedClose;
+        progress.register(abort);
+        return new FilterInputStream(ossObject.getObjectContent()) {
+            @Override
+            public void close() throws IOException {
+                progress.unregister(abort);
+                ossObject.close();
+            }
+        };
+    }
+
+    /**
+     * 释放预取占用的内存额度
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        data = null;
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.OSSObject;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * @author yukun.yan
+ * @description RangedObjectInputStream 大文件按range分块并发下载, 按顺序拼回一个输入流,
+ * 最多同时缓存 concurrency + 1 个分块, 单个大文件也能用满带宽
+ * @date 2023/8/23 10:20
+ */
+@Slf4j
+public class RangedObjectInputStream extends InputStream {
+
+    /**
+     * 单个分块下载失败的重试次数
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private final OSS ossClient;
+    private final String bucketName;
+    private final String key;
+    private final String eTag;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final ZipProgress progress;
+
+    /**
+     * 已提交的分块, 按在文件中的顺序排列
+     */
+    private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+
+    private long nextOffset;
+
+    private byte[] current;
+
+    private int position;
+
+    private volatile boolean closed;
+
+    /**
+     * @param eTag        不为空时每个分块都校验ETag, 下载期间文件被覆盖时失败
+     * @param chunkSize   分块大小
+     * @param concurrency 同时下载的分块数
+     * @param progress    取消时断开进行中的分块下载, 不再重试
+     */
+    public RangedObjectInputStream(OSS ossClient, String bucketName, String key, String eTag, long contentLength,
+                                   int chunkSize, int concurrency, ExecutorService executor, ZipProgress progress) {
+        this.ossClient = ossClient;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.eTag = eTag;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+        this.progress = progress;
+        fill();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        current = null;
+        Future<byte[]> future;
+        while ((future = window.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * 当前分块读完后切换到下一个, 没有更多分块时返回false
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed, key=" + key);
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        Future<byte[]> head = window.poll();
+        if (head == null) {
+            current = null;
+            return false;
+        }
+        // 先补满窗口再等待, 读当前分块时后面的分块已经在下载
+        fill();
+        try {
+            current = head.get();
+            position = 0;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for range chunk, key=" + key);
+        } catch (ExecutionException e) {
+            throw new IOException("range download error, key=" + key, e.getCause());
+        }
+    }
+
+    private void fill() {
+        while (window.size() < concurrency && nextOffset < contentLength) {
+            long start = nextOffset;
+            long end = Math.min(start + chunkSize, contentLength) - 1;
+            nextOffset = end + 1;
+            window.add(executor.submit(() -> fetchChunk(start, end)));
+        }
+    }
+
+    private byte[] fetchChunk(long start, long end) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            GetObjectRequest request = new GetObjectRequest(bucketName, key);
+            request.setRange(start, end);
+            if (eTag != null) {
+                request.setMatchingETagConstraints(Collections.singletonList(eTag));
+            }
+            progress.checkCancelled();
+            Closeable abort = null;
+            try (OSSObject ossObject = ossClient.getObject(request);
+                 InputStream inputStream = ossObject.getObjectContent()) {
+                abort = ossObject::forcedClose;
+                progress.register(abort);
+                byte[] data = new byte[(int) (end - start + 1)];
+                // range不合法时oss会返回整个文件
+                if (ossObject.getObjectMetadata().getContentLength() != data.length) {
+                    throw new IOException("range not satisfied, key=" + key + ", range=" + start + "-" + end);
+                }
+                if (IOUtils.readFully(inputStream, data) != data.length) {
+                    throw new EOFException("unexpected end of range, key=" + key + ", range=" + start + "-" + end);
+                }
+                return data;
+            } catch (Exception e) {
+                if (attempt >= MAX_RETRIES || closed || progress.isCancelled() || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn("[RangedObjectInputStream] range retry, key={}, range={}-{}, attempt={}, e={}",
+                        key, start, end, attempt + 1, e.getMessage());
+            } finally {
+                if (abort != null) {
+                    progress.unregister(abort);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.ziptooss.platform.zip.service;
+
+/**
+ * @author yukun.yan
+ * @description SpoolCapacityException 临时压缩包空间不足, 拒绝新任务
+ * @date 2023/8/17 10:12
+ */
+public class SpoolCapacityException extends RuntimeException {
+
+    public SpoolCapacityException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.ziptooss.platform.zip.service;
+
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author yukun.yan
+ * @description SpoolManager 管理本地临时压缩包, 按配额预留空间, 过期或下载完成后删除
+ * @date 2023/8/17 10:20
+ */
+@Slf4j
+@Component
+public class SpoolManager {
+
+    private static final String SUFFIX = ".zip";
+
+    /**
+     * 并行压缩的scatter临时文件, 不能下载, 重启后直接删除
+     */
+    private static final String SCATTER_SUFFIX = ".scatter";
+
+    /**
+     * 文件名 -> 临时压缩包
+     */
+    private final Map<String, SpoolFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * 所有临时压缩包占用的字节数, 压缩中的按预估大小和已写入大小的较大值算
+     */
+    private long usedBytes;
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    private Path dir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        String configDir = zipConfigBean.getSpool().getDir();
+        dir = StringUtils.isBlank(configDir)
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "zip-to-oss", "spool")
+                : Paths.get(configDir);
+        Files.createDirectories(dir);
+        File[] scatterLeftovers = dir.toFile().listFiles((d, name) -> name.endsWith(SCATTER_SUFFIX));
+        if (scatterLeftovers != null) {
+            for (File file : scatterLeftovers) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        // 重启前留下的压缩包按修改时间计算过期, 网盘系统可能还会来下载
+        File[] leftovers = dir.toFile().listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (leftovers != null) {
+            long ttl = zipConfigBean.getSpool().getTtl().toMillis();
+            for (File file : leftovers) {
+                SpoolFile spoolFile = new SpoolFile(file, file.length());
+                spoolFile.completed = true;
+                spoolFile.expireTime = file.lastModified() + ttl;
+                files.put(file.getName(), spoolFile);
+                usedBytes += spoolFile.accountedBytes;
+            }
+        }
+        log.info("[SpoolManager] spool dir={}, files={}, usedBytes={}", dir, files.size(), usedBytes);
+    }
+
+    /**
+     * 提交任务前快速检查, 配额已经用完时直接拒绝
+     */
+    public synchronized void checkAvailable() {
+        long quota = zipConfigBean.getSpool().getQuota().toBytes();
+        if (usedBytes >= quota) {
+            throw new SpoolCapacityException(String.format("临时文件空间不足, 已占用=%d, 配额=%d", usedBytes, quota));
+        }
+    }
+
+    /**
+     * 按预估大小预留空间并分配一个临时压缩包, 超过配额或磁盘剩余空间不足时抛出SpoolCapacityException
+     *
+     * @param projectedBytes 预估的压缩包大小
+     * @return
+     */
+    public SpoolFile allocate(long projectedBytes) {
+        return allocate(projectedBytes, SUFFIX);
+    }
+
+    /**
+     * 分配一个并行压缩的scatter临时文件, 大小事先不知道, 写入时用 reserve 按已写入的大小追加预留
+     *
+     * @return
+     */
+    public SpoolFile allocateScatter() {
+        return allocate(0, SCATTER_SUFFIX);
+    }
+
+    private synchronized SpoolFile allocate(long projectedBytes, String suffix) {
+        checkCapacity(projectedBytes);
+        SpoolFile spoolFile = new SpoolFile(dir.resolve(UUID.randomUUID() + suffix).toFile(), projectedBytes);
+        files.put(spoolFile.file.getName(), spoolFile);
+        usedBytes += projectedBytes;
+        return spoolFile;
+    }
+
+    /**
+     * 写入的大小超过预留时追加预留, 超过配额或磁盘剩余空间不足时抛出SpoolCapacityException
+     *
+     * @param spoolFile
+     * @param projectedBytes 新的预估大小, 不大于已预留的大小时什么也不做
+     */
+    public synchronized void reserve(SpoolFile spoolFile, long projectedBytes) {
+        long extraBytes = projectedBytes - spoolFile.accountedBytes;
+        if (extraBytes <= 0) {
+            return;
+        }
+        checkCapacity(extraBytes);
+        spoolFile.accountedBytes = projectedBytes;
+        if (files.get(spoolFile.file.getName()) == spoolFile) {
+            usedBytes += extraBytes;
+        }
+    }
+
+    private void checkCapacity(long projectedBytes) {
+        ZipConfigBean.Spool spoolConfig = zipConfigBean.getSpool();
+        long quota = spoolConfig.getQuota().toBytes();
+        if (usedBytes + projectedBytes > quota) {
+            throw new SpoolCapacityException(String.format("临时文件空间不足, 预计大小=%d, 已占用=%d, 配额=%d",
+                    projectedBytes, usedBytes, quota));
+        }
+        // 正在压缩的包还会继续写盘, 这部分也要从剩余空间里扣掉
+        long pendingBytes = 0;
+        for (SpoolFile spoolFile : files.values()) {
+            if (!spoolFile.completed) {
+                pendingBytes += Math.max(0, spoolFile.accountedBytes - spoolFile.file.length());
+            }
+        }
+        long freeBytes = dir.toFile().getUsableSpace() - pendingBytes - spoolConfig.getMinFreeSpace().toBytes();
+        if (projectedBytes > freeBytes) {
+            throw new SpoolCapacityException(String.format("磁盘剩余空间不足, 预计大小=%d, 可用=%d",
+                    projectedBytes, Math.max(0, freeBytes)));
+        }
+    }
+
+    /**
+     * 压缩完成, 按实际大小记账, 开始计算过期时间
+     *
+     * @param spoolFile
+     */
+    public synchronized void complete(SpoolFile spoolFile) {
+        long size = spoolFile.file.length();
+        usedBytes += size - spoolFile.accountedBytes;
+        spoolFile.accountedBytes = size;
+        spoolFile.expireTime = System.currentTimeMillis() + zipConfigBean.getSpool().getTtl().toMillis();
+        spoolFile.completed = true;
+    }
+
+    /**
+     * 删除临时压缩包并归还空间
+     *
+     * @param spoolFile
+     */
+    public void release(SpoolFile spoolFile) {
+        synchronized (this) {
+            if (files.remove(spoolFile.file.getName(), spoolFile)) {
+                usedBytes -= spoolFile.accountedBytes;
+            }
+        }
+        try {
+            Files.deleteIfExists(spoolFile.file.toPath());
+        } catch (IOException e) {
+            log.error("[SpoolManager] delete spool file error, file={}, e={}", spoolFile.file, e);
+        }
+    }
+
+    /**
+     * 只允许下载spool目录里已经压缩完成的文件, 其他路径返回null
+     *
+     * @param filePath
+     * @return
+     */
+    public File resolve(String filePath) {
+        if (StringUtils.isBlank(filePath)) {
+            return null;
+        }
+        File requested = new File(filePath).getAbsoluteFile();
+        SpoolFile spoolFile = files.get(requested.getName());
+        if (spoolFile == null || !spoolFile.completed || !spoolFile.file.getAbsoluteFile().equals(requested)) {
+            return null;
+        }
+        return spoolFile.file;
+    }
+
+    /**
+     * 最后一个字节已经发出, 宽限期后删除
+     *
+     * @param file
+     */
+    public void markDownloaded(File file) {
+        SpoolFile spoolFile = files.get(file.getName());
+        if (spoolFile != null) {
+            long expireTime = System.currentTimeMillis() + zipConfigBean.getSpool().getDownloadedGrace().toMillis();
+            spoolFile.expireTime = Math.min(spoolFile.expireTime, expireTime);
+        }
+    }
+
+    @Scheduled(initialDelayString = "#{@zipConfigBean.spool.sweepInterval.toMillis()}",
+            fixedDelayString = "#{@zipConfigBean.spool.sweepInterval.toMillis()}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (SpoolFile spoolFile : files.values()) {
+            if (spoolFile.completed && spoolFile.expireTime <= now) {
+                release(spoolFile);
+                log.info("[SpoolManager] spool file expired, file={}, size={}", spoolFile.file, spoolFile.accountedBytes);
+            }
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public static class SpoolFile {
+
+        @Getter
+        private final File file;
+
+        private long accountedBytes;
+
+        private volatile boolean completed;
+
+        private volatile long expireTime = Long.MAX_VALUE;
+
+        private SpoolFile(File file, long accountedBytes) {
+            this.file = file;
+            this.accountedBytes = accountedBytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.ziptooss.platform.zip.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author yukun.yan
+ * @description SpoolReservingChannel 临时压缩包的写入通道, 写到已预留的大小之外时追加预留,
+ * 按前缀或清单压缩时事先不知道源文件总大小, 从0开始随写入增长, 超过配额或磁盘剩余空间时写入抛出SpoolCapacityException
+ * @date 2023/8/27 17:00
+ */
+public class SpoolReservingChannel implements SeekableByteChannel {
+
+    /**
+     * 每次追加预留的大小, 不用每次写入都加锁记账
+     */
+    private static final long RESERVE_STEP = 8 * 1024 * 1024;
+
+    private final SpoolManager spoolManager;
+
+    private final SpoolManager.SpoolFile spoolFile;
+
+    private final FileChannel channel;
+
+    private long reserved;
+
+    public SpoolReservingChannel(SpoolManager spoolManager, SpoolManager.SpoolFile spoolFile) throws IOException {
+        this.spoolManager = spoolManager;
+        this.spoolFile = spoolFile;
+        this.channel = FileChannel.open(spoolFile.getFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        long end = channel.position() + src.remaining();
+        if (end > reserved) {
+            long projectedBytes = Math.max(end, reserved + RESERVE_STEP);
+            // 已经按预估大小分配的不会重复记账
+            spoolManager.reserve(spoolFile, projectedBytes);
+            reserved = projectedBytes;
+        }
+        return channel.write(src);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
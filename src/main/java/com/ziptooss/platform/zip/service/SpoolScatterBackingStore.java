@@ -0,0 +1,76 @@
+package com.ziptooss.platform.zip.service;
+
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author yukun.yan
+ * @description SpoolScatterBackingStore 并行压缩的scatter临时文件放在spool目录, 写入时按已写入的大小追加预留,
+ * 和临时压缩包一起受配额和磁盘剩余空间限制, 超过时写入抛出SpoolCapacityException
+ * @date 2023/8/27 11:00
+ */
+public class SpoolScatterBackingStore implements ScatterGatherBackingStore {
+
+    /**
+     * 每次追加预留的大小, 不用每次写入都加锁记账
+     */
+    private static final long RESERVE_STEP = 8 * 1024 * 1024;
+
+    private final SpoolManager spoolManager;
+
+    private final SpoolManager.SpoolFile spoolFile;
+
+    private final FileBasedScatterGatherBackingStore delegate;
+
+    private long written;
+
+    private long reserved;
+
+    public SpoolScatterBackingStore(SpoolManager spoolManager) throws IOException {
+        this.spoolManager = spoolManager;
+        this.spoolFile = spoolManager.allocateScatter();
+        try {
+            this.delegate = new FileBasedScatterGatherBackingStore(spoolFile.getFile());
+        } catch (IOException | RuntimeException e) {
+            spoolManager.release(spoolFile);
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeOut(byte[] data, int offset, int length) throws IOException {
+        if (written + length > reserved) {
+            long projectedBytes = Math.max(written + length, reserved + RESERVE_STEP);
+            spoolManager.reserve(spoolFile, projectedBytes);
+            reserved = projectedBytes;
+        }
+        delegate.writeOut(data, offset, length);
+        written += length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return delegate.getInputStream();
+    }
+
+    @Override
+    public void closeForWriting() throws IOException {
+        delegate.closeForWriting();
+    }
+
+    /**
+     * 删除临时文件并归还预留, 可以重复调用
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            spoolManager.release(spoolFile);
+        }
+    }
+
+}
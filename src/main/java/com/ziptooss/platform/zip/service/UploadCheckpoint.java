@@ -0,0 +1,56 @@
+package com.ziptooss.platform.zip.service;
+
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author yukun.yan
+ * @description UploadCheckpoint 分片上传断点, 记录uploadId, 分片大小和已完成的分片
+ * @date 2023/8/14 10:05
+ */
+@Data
+public class UploadCheckpoint {
+
+    /**
+     * 由业务系统, 文件名, 文件大小和文件头尾内容算出
+     */
+    private String key;
+
+    private String objectName;
+
+    private String uploadId;
+
+    private long fileLength;
+
+    private long partSize;
+
+    private int partCount;
+
+    private long createTime;
+
+    /**
+     * 已上传完成的分片, 不写入文件头, 每完成一片追加一行
+     */
+    @JSONField(serialize = false, deserialize = false)
+    private List<Part> parts = new ArrayList<>();
+
+    @Data
+    public static class Part {
+
+        private int partNumber;
+
+        private String etag;
+
+        private long partSize;
+
+        /**
+         * 客户端算出的分片crc64, 续传时和本地文件比对
+         */
+        private Long partCRC;
+
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.ziptooss.platform.zip.service;
+
+import com.alibaba.fastjson.JSON;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * @author yukun.yan
+ * @description UploadCheckpointStore 分片上传断点存储, 一个上传一个文件, 第一行是断点信息, 之后每完成一个分片追加一行
+ * @date 2023/8/14 10:31
+ */
+@Slf4j
+@Component
+public class UploadCheckpointStore {
+
+    private static final String SUFFIX = ".checkpoint";
+
+    /**
+     * 正在上传的断点, 同一个文件同时上传时只有一个能使用断点
+     */
+    private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    private Path dir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        String configDir = zipConfigBean.getCheckpoint().getDir();
+        dir = StringUtils.isBlank(configDir)
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "zip-to-oss", "checkpoint")
+                : Paths.get(configDir);
+        Files.createDirectories(dir);
+        log.info("[UploadCheckpointStore] checkpoint dir={}", dir);
+    }
+
+    public boolean isEnabled() {
+        return zipConfigBean.getCheckpoint().isEnabled();
+    }
+
+    /**
+     * 占用断点, 返回false说明同一个文件正在上传
+     *
+     * @param key
+     * @return
+     */
+    public boolean tryAcquire(String key) {
+        return uploading.add(key);
+    }
+
+    public void release(String key) {
+        uploading.remove(key);
+    }
+
+    /**
+     * 读取断点, 不存在或已损坏时返回null, 最后一行写了一半时忽略该行
+     *
+     * @param key
+     * @return
+     */
+    public UploadCheckpoint load(String key) {
+        Path file = pathOf(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty()) {
+                return null;
+            }
+            UploadCheckpoint checkpoint = JSON.parseObject(lines.get(0), UploadCheckpoint.class);
+            for (String line : lines.subList(1, lines.size())) {
+                try {
+                    checkpoint.getParts().add(JSON.parseObject(line, UploadCheckpoint.Part.class));
+                } catch (Exception e) {
+                    log.warn("[UploadCheckpointStore] skip broken part line, key={}", key);
+                }
+            }
+            return checkpoint;
+        } catch (Exception e) {
+            log.error("[UploadCheckpointStore] load checkpoint error, key={}, e={}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 新建断点, 覆盖旧的断点
+     *
+     * @param checkpoint
+     */
+    public void create(UploadCheckpoint checkpoint) {
+        Path file = pathOf(checkpoint.getKey());
+        Path temp = dir.resolve(checkpoint.getKey() + ".tmp");
+        try {
+            Files.write(temp, (JSON.toJSONString(checkpoint) + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 断点写失败不影响本次上传, 只是不能续传
+            log.error("[UploadCheckpointStore] create checkpoint error, key={}, e={}", checkpoint.getKey(), e);
+        }
+    }
+
+    /**
+     * 追加一个完成的分片
+     *
+     * @param key
+     * @param part
+     */
+    public void appendPart(String key, UploadCheckpoint.Part part) {
+        byte[] line = (JSON.toJSONString(part) + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            try {
+                Files.write(pathOf(key), line, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.error("[UploadCheckpointStore] append part error, key={}, e={}", key, e);
+            }
+        }
+    }
+
+    public void delete(String key) {
+        try {
+            Files.deleteIfExists(pathOf(key));
+        } catch (IOException e) {
+            log.error("[UploadCheckpointStore] delete checkpoint error, key={}, e={}", key, e);
+        }
+    }
+
+    /**
+     * 所有断点的key
+     *
+     * @return
+     */
+    public List<String> listKeys() {
+        if (dir == null || !Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .forEach(name -> keys.add(name.substring(0, name.length() - SUFFIX.length())));
+        } catch (IOException e) {
+            log.error("[UploadCheckpointStore] list checkpoint error, e={}", e);
+        }
+        return keys;
+    }
+
+    public long lastModified(String key) {
+        File file = pathOf(key).toFile();
+        return file.lastModified();
+    }
+
+    private Path pathOf(String key) {
+        return dir.resolve(key + SUFFIX);
+    }
+
+}
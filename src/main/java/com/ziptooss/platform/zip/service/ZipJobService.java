@@ -0,0 +1,39 @@
+package com.ziptooss.platform.zip.service;
+
+import com.ziptooss.platform.zip.api.ZipJob;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.util.ComEnum;
+
+/**
+ * @author yukun.yan
+ * @description ZipJobService
+ * @date 2023/8/7 16:10
+ */
+public interface ZipJobService {
+
+    /**
+     * 提交压缩任务, 立即返回任务id, 队列满时抛出 RejectedExecutionException, 临时文件配额已满时抛出 SpoolCapacityException
+     *
+     * @param type
+     * @param zipRequest
+     * @return
+     */
+    String submit(ComEnum.JobTypeEnum type, ZipRequest zipRequest);
+
+    /**
+     * 查询任务状态, 未结束的任务带上当前进度
+     *
+     * @param jobId
+     * @return 不存在或已过期时返回null
+     */
+    ZipJob getJob(String jobId);
+
+    /**
+     * 取消任务, 排队中的直接移出队列; 执行中的断开下载, 停止压缩, 取消分片上传, 删除临时文件, 清理完成后状态变为cancelled, 不发回调
+     *
+     * @param jobId
+     * @return 任务不存在或已经结束时返回false
+     */
+    boolean cancel(String jobId);
+
+}
@@ -0,0 +1,192 @@
+package com.ziptooss.platform.zip.service;
+
+import com.ziptooss.platform.zip.api.ZipJob;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.FairJobQueue;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.util.ComEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * @author yukun.yan
+ * @description ZipJobServiceImpl 压缩任务放到独立线程池执行, 请求线程只负责入队, 执行中的任务可以查询进度和取消
+ * @date 2023/8/7 16:12
+ */
+@Slf4j
+@Service
+public class ZipJobServiceImpl implements ZipJobService {
+
+    private final Map<String, ZipJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * 未结束任务的进度和提交到线程池的任务, 结束后移除
+     */
+    private final Map<String, ActiveJob> activeJobs = new ConcurrentHashMap<>();
+
+    @Resource
+    private ZipService zipService;
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private SpoolManager spoolManager;
+
+    @Autowired
+    private ZipMetrics zipMetrics;
+
+    @Autowired
+    @Qualifier("zip-job-pool")
+    private ThreadPoolExecutor zipJobPoolExecutor;
+
+    @Override
+    public String submit(ComEnum.JobTypeEnum type, ZipRequest zipRequest) {
+        purgeFinishedJobs();
+        if (type == ComEnum.JobTypeEnum.zipToTempFile) {
+            // 配额已满时直接拒绝, 按源文件大小的精确检查在任务开始时做
+            spoolManager.checkAvailable();
+        }
+        ZipJob job = new ZipJob();
+        job.setJobId(UUID.randomUUID().toString().replace("-", ""));
+        job.setType(type);
+        job.setStatus(ComEnum.JobStatusEnum.queued);
+        job.setBizSource(zipRequest.getBizSource());
+        job.setTaskId(zipRequest.getTaskId());
+        job.setCreateTime(new Date());
+        ZipProgress progress = new ZipProgress();
+        Runnable task = new FairJobQueue.TenantTask(zipJobPoolExecutor.getQueue(), job.getBizSource(), () -> run(job, zipRequest, progress));
+        jobs.put(job.getJobId(), job);
+        activeJobs.put(job.getJobId(), new ActiveJob(progress, task));
+        registerJobGauges(job.getBizSource());
+        try {
+            zipJobPoolExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getJobId());
+            activeJobs.remove(job.getJobId());
+            log.warn("[ZipJobServiceImpl] job queue is full, bizSource={}, taskId={}", zipRequest.getBizSource(), zipRequest.getTaskId());
+            throw e;
+        }
+        log.info("[ZipJobServiceImpl] submit job, jobId={}, type={}, taskId={}", job.getJobId(), type, zipRequest.getTaskId());
+        return job.getJobId();
+    }
+
+    @Override
+    public ZipJob getJob(String jobId) {
+        ZipJob job = jobs.get(jobId);
+        ActiveJob activeJob = activeJobs.get(jobId);
+        if (job != null && activeJob != null) {
+            updateProgress(job, activeJob.progress);
+        }
+        return job;
+    }
+
+    @Override
+    public boolean cancel(String jobId) {
+        ZipJob job = jobs.get(jobId);
+        ActiveJob activeJob = activeJobs.get(jobId);
+        if (job == null || activeJob == null || job.getStatus().isFinished()) {
+            return false;
+        }
+        activeJob.progress.cancel();
+        if (zipJobPoolExecutor.remove(activeJob.task)) {
+            // 还在排队, 直接结束; 已经被线程取走的由run看到取消标记后结束
+            activeJobs.remove(jobId);
+            job.setStatus(ComEnum.JobStatusEnum.cancelled);
+            job.setFinishTime(new Date());
+        }
+        log.info("[ZipJobServiceImpl] cancel job, jobId={}, bizSource={}, taskId={}, status={}",
+                jobId, job.getBizSource(), job.getTaskId(), job.getStatus());
+        return true;
+    }
+
+    private void run(ZipJob job, ZipRequest zipRequest, ZipProgress progress) {
+        job.setStartTime(new Date());
+        job.setStatus(ComEnum.JobStatusEnum.running);
+        try {
+            progress.checkCancelled();
+            String result;
+            if (job.getType() == ComEnum.JobTypeEnum.zipToOss && zipRequest.getMaxVolumeSize() != null) {
+                List<String> volumes = zipService.zipToOssVolumes(zipRequest, progress);
+                job.setVolumes(volumes);
+                result = volumes.isEmpty() ? null : volumes.get(0);
+            } else if (job.getType() == ComEnum.JobTypeEnum.zipToOss) {
+                result = zipService.zipToOss(zipRequest, progress);
+            } else {
+                result = zipService.zipToTempFile(zipRequest, progress);
+            }
+            job.setResult(result);
+            job.setStatus(ComEnum.JobStatusEnum.success);
+        } catch (Throwable t) {
+            if (progress.isCancelled()) {
+                // 分片上传已取消, 临时文件已删除
+                log.info("[ZipJobServiceImpl] job cancelled, jobId={}, entriesDone={}", job.getJobId(), progress.getEntriesDone());
+                job.setStatus(ComEnum.JobStatusEnum.cancelled);
+            } else {
+                // 失败回调已经在zipService里发出
+                log.error("[ZipJobServiceImpl] job failed, jobId={}, e={}", job.getJobId(), t);
+                job.setErrorMsg(t.getMessage());
+                job.setStatus(ComEnum.JobStatusEnum.failed);
+            }
+        } finally {
+            updateProgress(job, progress);
+            activeJobs.remove(job.getJobId());
+            job.setFinishTime(new Date());
+        }
+    }
+
+    private static void updateProgress(ZipJob job, ZipProgress progress) {
+        job.setEntriesDone(progress.getEntriesDone());
+        job.setBytesRead(progress.getBytesRead());
+        job.setBytesWritten(progress.getBytesWritten());
+    }
+
+    /**
+     * 每个业务系统第一次提交任务时注册排队和执行中的任务数, 抓取指标时才遍历任务表
+     */
+    private void registerJobGauges(String bizSource) {
+        for (ComEnum.JobStatusEnum status : new ComEnum.JobStatusEnum[]{ComEnum.JobStatusEnum.queued, ComEnum.JobStatusEnum.running}) {
+            zipMetrics.registerJobGauge(bizSource, status, () -> jobs.values().stream()
+                    .filter(job -> job.getStatus() == status && Objects.equals(job.getBizSource(), bizSource))
+                    .count());
+        }
+    }
+
+    /**
+     * 清理超过保留时长的已结束任务
+     */
+    private void purgeFinishedJobs() {
+        long expireBefore = System.currentTimeMillis() - zipConfigBean.getJob().getRetention().toMillis();
+        jobs.values().removeIf(job -> job.getStatus().isFinished()
+                && job.getFinishTime() != null && job.getFinishTime().getTime() < expireBefore);
+    }
+
+    private static class ActiveJob {
+
+        private final ZipProgress progress;
+
+        /**
+         * 提交到线程池的任务, 排队中取消时从队列里移除
+         */
+        private final Runnable task;
+
+        ActiveJob(ZipProgress progress, Runnable task) {
+            this.progress = progress;
+            this.task = task;
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.ziptooss.platform.zip.service;
+
+import com.google.common.cache.Cache;
+import com.ziptooss.platform.zip.config.VirtualThreadExecutor;
+import com.ziptooss.platform.zip.util.ComEnum;
+import com.ziptooss.platform.zip.util.OkHttpUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import okhttp3.ConnectionPool;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @author yukun.yan
+ * @description ZipMetrics 压缩流水线各阶段的耗时和字节数, 线程池和okhttp连接池的使用情况, 通过 /actuator/prometheus 暴露
+ * @date 2023/8/22 10:05
+ */
+@Component
+public class ZipMetrics {
+
+    private static final String UNKNOWN = "unknown";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    @Qualifier("upload-pool")
+    private ExecutorService uploadPoolExecutor;
+
+    @Autowired
+    @Qualifier("download-pool")
+    private ExecutorService downloadPoolExecutor;
+
+    @Autowired
+    @Qualifier("range-pool")
+    private ExecutorService rangePoolExecutor;
+
+    @Autowired
+    @Qualifier("zip-job-pool")
+    private ThreadPoolExecutor zipJobPoolExecutor;
+
+    @Autowired
+    @Qualifier("volume-pool")
+    private ThreadPoolExecutor volumePoolExecutor;
+
+    @Autowired
+    @Qualifier("compress-pool")
+    private ThreadPoolExecutor compressPoolExecutor;
+
+    @Autowired
+    @Qualifier("callback-pool")
+    private ExecutorService callbackPoolExecutor;
+
+    @PostConstruct
+    public void init() {
+        // executor.active, executor.queued, executor.pool.size 等, 按线程池名区分
+        monitorExecutor(uploadPoolExecutor, "upload-pool");
+        monitorExecutor(downloadPoolExecutor, "download-pool");
+        monitorExecutor(rangePoolExecutor, "range-pool");
+        new ExecutorServiceMetrics(zipJobPoolExecutor, "zip-job-pool", Tags.empty()).bindTo(meterRegistry);
+        new ExecutorServiceMetrics(volumePoolExecutor, "volume-pool", Tags.empty()).bindTo(meterRegistry);
+        new ExecutorServiceMetrics(compressPoolExecutor, "compress-pool", Tags.empty()).bindTo(meterRegistry);
+        monitorExecutor(callbackPoolExecutor, "callback-pool");
+        ConnectionPool connectionPool = OkHttpUtils.getInstance().getClient().connectionPool();
+        Gauge.builder("okhttp.pool.connections", connectionPool, ConnectionPool::connectionCount)
+                .description("okhttp connection pool total connections")
+                .register(meterRegistry);
+        Gauge.builder("okhttp.pool.idle", connectionPool, ConnectionPool::idleConnectionCount)
+                .description("okhttp connection pool idle connections")
+                .register(meterRegistry);
+    }
+
+    /**
+     * io线程池的指标, 虚拟线程模式下ExecutorServiceMetrics不认识VirtualThreadExecutor, 按同样的名字注册排队数和执行中的任务数
+     *
+     * @param executorService
+     * @param name
+     */
+    private void monitorExecutor(ExecutorService executorService, String name) {
+        if (!(executorService instanceof VirtualThreadExecutor)) {
+            new ExecutorServiceMetrics(executorService, name, Tags.empty()).bindTo(meterRegistry);
+            return;
+        }
+        VirtualThreadExecutor virtualThreadExecutor = (VirtualThreadExecutor) executorService;
+        Gauge.builder("executor.queued", virtualThreadExecutor, VirtualThreadExecutor::getQueueSize)
+                .description("The approximate number of tasks that are queued for execution")
+                .tags("name", name)
+                .register(meterRegistry);
+        Gauge.builder("executor.active", virtualThreadExecutor, VirtualThreadExecutor::getActiveCount)
+                .description("The approximate number of threads that are actively executing tasks")
+                .tags("name", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 某个业务系统某个阶段的指标
+     *
+     * @param stage
+     * @param bizSource
+     * @return
+     */
+    public StageMetrics stage(ComEnum.StageEnum stage, String bizSource) {
+        return new StageMetrics(meterRegistry, stage, StringUtils.defaultIfBlank(bizSource, UNKNOWN));
+    }
+
+    /**
+     * 按业务系统统计排队和执行中的任务数, 重复注册时返回已有的gauge
+     *
+     * @param bizSource
+     * @param status
+     * @param count
+     */
+    public void registerJobGauge(String bizSource, ComEnum.JobStatusEnum status, Supplier<Number> count) {
+        Gauge.builder("zip.jobs", count)
+                .description("zip jobs by status")
+                .tags("bizSource", StringUtils.defaultIfBlank(bizSource, UNKNOWN), "status", status.name())
+                .register(meterRegistry);
+    }
+
+    /**
+     * 发件箱里还没送达的回调数
+     *
+     * @param count
+     */
+    public void registerCallbackPending(Supplier<Number> count) {
+        Gauge.builder("zip.callback.pending", count)
+                .description("callbacks waiting to be delivered")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 线程池排满被拒绝的请求数
+     *
+     * @param pool
+     */
+    public void admissionRejected(String pool) {
+        Counter.builder("zip.admission.rejected")
+                .description("requests rejected with 429 because the pool queue was full")
+                .tags("pool", pool)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * 缓存命中率, 淘汰数和大小
+     *
+     * @param cache
+     * @param name
+     */
+    public void monitorCache(Cache<?, ?> cache, String name) {
+        GuavaCacheMetrics.monitor(meterRegistry, cache, name);
+    }
+
+    public static class StageMetrics {
+
+        private final Timer success;
+
+        private final Timer failure;
+
+        private final Counter bytes;
+
+        private StageMetrics(MeterRegistry meterRegistry, ComEnum.StageEnum stage, String bizSource) {
+            this.success = timer(meterRegistry, stage, bizSource, "success");
+            this.failure = timer(meterRegistry, stage, bizSource, "failure");
+            this.bytes = Counter.builder("zip.stage.bytes")
+                    .description("bytes processed by zip pipeline stage")
+                    .baseUnit("bytes")
+                    .tags("stage", stage.name(), "bizSource", bizSource)
+                    .register(meterRegistry);
+        }
+
+        private static Timer timer(MeterRegistry meterRegistry, ComEnum.StageEnum stage, String bizSource, String outcome) {
+            return Timer.builder("zip.stage.duration")
+                    .description("time spent in zip pipeline stage")
+                    .tags("stage", stage.name(), "bizSource", bizSource, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofMinutes(10))
+                    .register(meterRegistry);
+        }
+
+        /**
+         * @param startNanos System.nanoTime() 开始时间
+         * @param byteCount  处理的字节数
+         */
+        public void success(long startNanos, long byteCount) {
+            success.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            if (byteCount > 0) {
+                bytes.increment(byteCount);
+            }
+        }
+
+        public void failure(long startNanos) {
+            failure.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.ziptooss.platform.zip.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @author yukun.yan
+ * @description ZipProgress 一个压缩任务的进度和取消, 分卷时所有卷共用;
+ * 取消时直接断开登记的oss下载连接, oss客户端阻塞在socket读上时不响应中断, 写入线程在文件之间和每次写入前检查取消标记
+ * @date 2023/8/26 14:00
+ */
+@Slf4j
+public class ZipProgress {
+
+    /**
+     * 已写入压缩包的文件数
+     */
+    private final LongAdder entriesDone = new LongAdder();
+
+    /**
+     * 从oss读取并写入压缩包的源文件字节数
+     */
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * 每个输出已经写出的字节数, 分片上传的输出流或本地临时文件
+     */
+    private final List<LongSupplier> outputs = new CopyOnWriteArrayList<>();
+
+    /**
+     * 进行中的下载, 取消时断开
+     */
+    private final Set<Closeable> inFlight = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean cancelled;
+
+    public void entryDone() {
+        entriesDone.increment();
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * 登记一个输出, 写出字节数在查询时读取
+     *
+     * @param bytesWritten
+     */
+    public void addOutput(LongSupplier bytesWritten) {
+        outputs.add(bytesWritten);
+    }
+
+    public long getEntriesDone() {
+        return entriesDone.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        long bytes = 0;
+        for (LongSupplier output : outputs) {
+            bytes += output.getAsLong();
+        }
+        return bytes;
+    }
+
+    /**
+     * 登记进行中的下载, 已经取消时立即断开
+     *
+     * @param abort 断开连接, 不读完剩余内容
+     */
+    public void register(Closeable abort) {
+        inFlight.add(abort);
+        if (cancelled && inFlight.remove(abort)) {
+            closeQuietly(abort);
+        }
+    }
+
+    public void unregister(Closeable abort) {
+        inFlight.remove(abort);
+    }
+
+    /**
+     * 设置取消标记并断开所有进行中的下载, 写入线程随后失败退出, 由原来的异常处理取消分片上传和删除临时文件
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Closeable abort : inFlight) {
+            if (inFlight.remove(abort)) {
+                closeQuietly(abort);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 已经取消时抛出 CancellationException
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("zip job cancelled");
+        }
+    }
+
+    private static void closeQuietly(Closeable abort) {
+        try {
+            abort.close();
+        } catch (Exception e) {
+            log.warn("[ZipProgress] abort in-flight download error, e={}", e.getMessage());
+        }
+    }
+
+}
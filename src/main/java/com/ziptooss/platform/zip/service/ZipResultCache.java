@@ -0,0 +1,124 @@
+package com.ziptooss.platform.zip.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * @author yukun.yan
+ * @description ZipResultCache 压缩结果缓存, key由业务系统, 源bucket, 压缩方式, 分卷大小, 有序的文件路径和每个文件的ETag算出,
+ * 源文件没变时直接返回上次上传的压缩包, 同时到达的相同请求只压缩一次
+ * @date 2023/8/23 15:10
+ */
+@Slf4j
+@Component
+public class ZipResultCache {
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private ZipMetrics zipMetrics;
+
+    private Cache<String, CachedZip> cache;
+
+    @PostConstruct
+    public void init() {
+        ZipConfigBean.Cache cacheConfig = zipConfigBean.getCache();
+        cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(cacheConfig.getTtl().toMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(cacheConfig.getMaxEntries())
+                .recordStats()
+                .build();
+        zipMetrics.monitorCache(cache, "zipResult");
+    }
+
+    public boolean isEnabled() {
+        return zipConfigBean.getCache().isEnabled();
+    }
+
+    /**
+     * 计算缓存key, 获取不到ETag的文件按不存在处理, 之后文件出现时key会变化
+     *
+     * @param zipRequest
+     * @param eTags      和ossFilePathList一一对应, 获取失败的为null
+     * @return
+     */
+    public String key(ZipRequest zipRequest, List<String> eTags) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(String.valueOf(zipRequest.getBizSource()), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(zipRequest.getBucket()), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(zipRequest.getCompressMethod()), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(zipRequest.getMaxVolumeSize()), StandardCharsets.UTF_8).putByte((byte) 0);
+        List<String> paths = zipRequest.getOssFilePathList();
+        for (int i = 0; i < paths.size(); i++) {
+            hasher.putString(paths.get(i), StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(String.valueOf(eTags.get(i)), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * 命中且仍然有效时直接返回, 否则调用loader压缩, 同一个key同时只有一个loader在执行, 其他请求等待它的结果
+     *
+     * @param key
+     * @param valid  校验缓存的压缩包是否还在
+     * @param loader
+     * @return
+     */
+    public CachedZip get(String key, Predicate<CachedZip> valid, Callable<CachedZip> loader) {
+        CachedZip cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (valid.test(cached)) {
+                log.info("[ZipResultCache] hit, key={}, objectNames={}", key, cached.getObjectNames());
+                return cached;
+            }
+            // 压缩包已被删除, 只有仍是这个值时才移除, 不影响别的请求刚放进去的新结果
+            cache.asMap().remove(key, cached);
+        }
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // 失败的结果不缓存, 保持原来的异常类型
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * 上传到oss的压缩包, 分卷时每一卷一个, 按分卷顺序
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CachedZip {
+
+        private final List<String> objectNames;
+
+        private final List<String> urls;
+
+    }
+
+}
@@ -2,7 +2,9 @@ package com.ziptooss.platform.zip.service;
 
 import com.ziptooss.platform.zip.api.ZipRequest;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.List;
 
 /**
  * @author yukun.yan
@@ -11,10 +13,14 @@ import javax.servlet.http.HttpServletResponse;
  */
 public interface ZipService {
 
-    void zipToOss(ZipRequest zipRequest);
+    String zipToOss(ZipRequest zipRequest, ZipProgress progress);
 
-    void zipToTempFile(ZipRequest zipRequest);
+    List<String> zipToOssVolumes(ZipRequest zipRequest, ZipProgress progress);
 
-    void streamDownload(String filePath, HttpServletResponse response);
+    String zipToTempFile(ZipRequest zipRequest, ZipProgress progress);
+
+    void streamDownload(String filePath, HttpServletRequest request, HttpServletResponse response);
+
+    void zipDownload(ZipRequest zipRequest, String fileName, HttpServletResponse response);
 
 }
@@ -3,19 +3,23 @@ package com.ziptooss.platform.zip.service;
 import com.alibaba.fastjson.JSONObject;
 import com.ziptooss.platform.zip.api.ServerlessCallbackRsp;
 import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
 import com.ziptooss.platform.zip.util.ComEnum;
-import com.ziptooss.platform.zip.util.OkHttpUtils;
+import com.ziptooss.platform.zip.util.FileDownloadUtils;
 import com.ziptooss.platform.zip.util.OssUtils;
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.MediaType;
-import okhttp3.Request;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -27,74 +31,115 @@ import java.util.List;
 @Service
 public class ZipServiceImpl implements ZipService {
 
+    private static final String DEFAULT_DOWNLOAD_NAME = "download.zip";
+
+    @Autowired
+    private SpoolManager spoolManager;
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private CallbackDispatcher callbackDispatcher;
+
     /**
      * 通过文件路径从oss下载, 并压缩, 再把压缩包上传到oss, 返回zip的oss的url
      *
      * @param zipRequest
-     * @return
+     * @param progress   任务进度, 取消时抛出 CancellationException, 不发失败回调
+     * @return zip的oss url
      */
     @Override
-    public void zipToOss(ZipRequest zipRequest) {
+    public String zipToOss(ZipRequest zipRequest, ZipProgress progress) {
         List<String> ossFilePathList = zipRequest.getOssFilePathList();
-        if (CollectionUtils.isEmpty(ossFilePathList)) {
+        if (CollectionUtils.isEmpty(ossFilePathList) && !OssPathIterator.isListing(zipRequest)) {
             log.info("ZipServiceImpl get ossUrl is null");
-            return;
+            return null;
         }
+        String zipOssUrl;
         try {
-            String zipOssUrl = OssUtils.putZipToOss(ossFilePathList, zipRequest.getBizSource());
-            log.info("[ZipServiceImpl] zipToOss fetch OSS zip Url={}", zipOssUrl);
-            ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
-                    .code(ComEnum.RspEnum.success.getCode()).msg(ComEnum.RspEnum.success.getMsg())
-                    .data(zipOssUrl).taskId(zipRequest.getTaskId())
-                    .build();
-            String body = JSONObject.toJSONString(callbackRsp);
-            // 回调网盘地址
-            Request request = new Request.Builder()
-                    .url(zipRequest.getCallbackUrl())
-                    .post(okhttp3.RequestBody.create(MediaType.parse("application/json; charset=utf-8"), body))
-                    .build();
-            OkHttpUtils.getInstance().newCall(request).close();
-            log.info("[ZipServiceImpl] zipToOss callback success, request={}", request);
+            zipOssUrl = OssUtils.putZipToOss(zipRequest, progress);
         } catch (Throwable t) {
-            // 压缩打包错误或回调出错
-            errorCallback(zipRequest, t);
+            // 压缩打包错误, 调用方主动取消的不回调
+            if (!progress.isCancelled()) {
+                errorCallback(zipRequest, t);
+            }
             // 全局异常处理器就不写了, 直接抛出来吧
             throw t;
         }
+        log.info("[ZipServiceImpl] zipToOss fetch OSS zip Url={}", zipOssUrl);
+        // 回调网盘地址, 压缩包已经生成, 回调失败只重试回调, 不再发失败回调
+        ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
+                .code(ComEnum.RspEnum.success.getCode()).msg(ComEnum.RspEnum.success.getMsg())
+                .data(zipOssUrl).taskId(zipRequest.getTaskId())
+                .build();
+        callbackDispatcher.dispatch(zipRequest.getCallbackUrl(), JSONObject.toJSONString(callbackRsp), zipRequest.getBizSource());
+        return zipOssUrl;
     }
 
     /**
-     * 通过文件路径从oss下载, 并压缩, 再把压缩包写入到临时文件中, 返回文件路径
+     * 按maxVolumeSize分卷压缩上传到oss, 回调里带上每一卷的url
      *
      * @param zipRequest
-     * @return
+     * @param progress
+     * @return 每一卷的oss url
      */
     @Override
-    public void zipToTempFile(ZipRequest zipRequest) {
+    public List<String> zipToOssVolumes(ZipRequest zipRequest, ZipProgress progress) {
         List<String> ossFilePathList = zipRequest.getOssFilePathList();
         if (CollectionUtils.isEmpty(ossFilePathList)) {
+            log.info("ZipServiceImpl get ossUrl is null");
+            return Collections.emptyList();
+        }
+        List<String> volumeUrls;
+        try {
+            volumeUrls = OssUtils.putZipVolumesToOss(zipRequest, progress);
+        } catch (Throwable t) {
+            if (!progress.isCancelled()) {
+                errorCallback(zipRequest, t);
+            }
+            throw t;
+        }
+        log.info("[ZipServiceImpl] zipToOssVolumes fetch OSS zip Urls={}", volumeUrls);
+        ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
+                .code(ComEnum.RspEnum.success.getCode()).msg(ComEnum.RspEnum.success.getMsg())
+                .data(volumeUrls.get(0)).volumes(volumeUrls).taskId(zipRequest.getTaskId())
+                .build();
+        callbackDispatcher.dispatch(zipRequest.getCallbackUrl(), JSONObject.toJSONString(callbackRsp), zipRequest.getBizSource());
+        return volumeUrls;
+    }
+
+    /**
+     * 通过文件路径从oss下载, 并压缩, 再把压缩包写入到临时文件中, 返回文件路径
+     *
+     * @param zipRequest
+     * @param progress
+     * @return 临时文件路径
+     */
+    @Override
+    public String zipToTempFile(ZipRequest zipRequest, ZipProgress progress) {
+        List<String> ossFilePathList = zipRequest.getOssFilePathList();
+        if (CollectionUtils.isEmpty(ossFilePathList) && !OssPathIterator.isListing(zipRequest)) {
             log.info(" ZipServiceImpl get ossUrl is null");
-            return;
+            return null;
         }
+        String zipTempFilePath;
         try {
-            String zipTempFilePath = OssUtils.putZipToTempFile(ossFilePathList, zipRequest.getBizSource());
-            log.info("[ZipServiceImpl] zipToTempFile fetch zip temp file path={}", zipTempFilePath);
-            // 获取到zipTempFilePath说明文件处理完成, 返回网盘系统路径, 也不能立即重定向, 因为大文件慢...可能请求超时, 所以这个请求需要是异步的
-            ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
-                    .code(ComEnum.RspEnum.success.getCode()).msg(ComEnum.RspEnum.success.getMsg())
-                    .data(zipTempFilePath).taskId(zipRequest.getTaskId())
-                    .build();
-            String body = JSONObject.toJSONString(callbackRsp);
-            Request request = new Request.Builder()
-                    .url(zipRequest.getCallbackUrl())
-                    .post(okhttp3.RequestBody.create(MediaType.parse("application/json; charset=utf-8"), body))
-                    .build();
-            OkHttpUtils.getInstance().newCall(request).close();
-            log.info("[ZipServiceImpl] zipToTempFile callback success, request={}", request);
+            zipTempFilePath = OssUtils.putZipToTempFile(zipRequest, progress);
         } catch (Throwable t) {
-            errorCallback(zipRequest, t);
+            if (!progress.isCancelled()) {
+                errorCallback(zipRequest, t);
+            }
             throw t;
         }
+        log.info("[ZipServiceImpl] zipToTempFile fetch zip temp file path={}", zipTempFilePath);
+        // 获取到zipTempFilePath说明文件处理完成, 返回网盘系统路径, 也不能立即重定向, 因为大文件慢...可能请求超时, 所以这个请求需要是异步的
+        ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
+                .code(ComEnum.RspEnum.success.getCode()).msg(ComEnum.RspEnum.success.getMsg())
+                .data(zipTempFilePath).taskId(zipRequest.getTaskId())
+                .build();
+        callbackDispatcher.dispatch(zipRequest.getCallbackUrl(), JSONObject.toJSONString(callbackRsp), zipRequest.getBizSource());
+        return zipTempFilePath;
     }
 
     /**
@@ -104,25 +149,53 @@ public class ZipServiceImpl implements ZipService {
      * @param response
      */
     @Override
-    public void streamDownload(String filePath, HttpServletResponse response) {
-        log.info("[ZipServiceImpl] streamDownload filePath={}", filePath);
-        File file = new File(filePath);
-        response.setContentType("application/octet-stream");
-        response.setHeader("Content-Disposition", "attachment; filename=" + file.getName());
-        response.setHeader("Content-Length", String.valueOf(file.length()));
-        try (FileInputStream fis = new FileInputStream(file);
-             OutputStream os = response.getOutputStream()) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
+    public void streamDownload(String filePath, HttpServletRequest request, HttpServletResponse response) {
+        log.info("[ZipServiceImpl] streamDownload filePath={}, range={}", filePath, request.getHeader("Range"));
+        // 只能下载spool目录里的压缩包, 不能通过filePath读取服务器上的其他文件
+        File file = spoolManager.resolve(filePath);
+        try {
+            if (file == null || !file.isFile()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            // 完整下载后不立即删除, 断点续传和并发range请求还可能再来; 开启sendfile时拿不到完成时机, 只按ttl过期
+            if (FileDownloadUtils.download(file, request, response, zipConfigBean.getSpool().isSendfile())) {
+                spoolManager.markDownloaded(file);
             }
-            os.flush();
         } catch (Exception e) {
             log.error("[ZipServiceImpl] streamDownload error, ", e);
             throw new RuntimeException(e);
-        } finally {
-            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * 边从oss下载边压缩, 直接写到http响应里, 压缩包大小事先不知道, 不设置Content-Length, 按chunked发送
+     *
+     * @param zipRequest
+     * @param fileName   下载的文件名, 为空时用download.zip
+     * @param response
+     */
+    @Override
+    public void zipDownload(ZipRequest zipRequest, String fileName, HttpServletResponse response) {
+        log.info("[ZipServiceImpl] zipDownload bizSource={}, files={}, ossPrefix={}, manifestPath={}", zipRequest.getBizSource(),
+                zipRequest.getOssFilePathList() == null ? 0 : zipRequest.getOssFilePathList().size(),
+                zipRequest.getOssPrefix(), zipRequest.getManifestPath());
+        try {
+            if (CollectionUtils.isEmpty(zipRequest.getOssFilePathList()) && !OssPathIterator.isListing(zipRequest)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "ossFilePathList不能为空");
+                return;
+            }
+            response.setContentType("application/zip");
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+                    .filename(StringUtils.isBlank(fileName) ? DEFAULT_DOWNLOAD_NAME : fileName, StandardCharsets.UTF_8)
+                    .build().toString());
+            // 先把响应头发出去, 浏览器立即开始下载, 不用等第一个文件下载完
+            response.flushBuffer();
+            OssUtils.writeZipToStream(zipRequest, response.getOutputStream());
+        } catch (Exception e) {
+            // 已经发出的内容撤不回来, 抛出异常让容器断开连接, 客户端看到的是下载中断, 不会拿到一个截断的压缩包
+            log.error("[ZipServiceImpl] zipDownload error, ossFilePath={}, e={}", zipRequest.getOssFilePathList(), e);
+            throw new RuntimeException(e);
         }
     }
 
@@ -134,18 +207,13 @@ public class ZipServiceImpl implements ZipService {
      */
     private void errorCallback(ZipRequest zipRequest, Throwable t) {
         log.error("[ZipServiceImpl] callback error, zipRequest={}, e={}", zipRequest, t.getStackTrace());
-        // 发送错误回调, 通知网盘系统删除任务数据, 终止下载, 想着换成消息队列
+        // 发送错误回调, 通知网盘系统删除任务数据, 终止下载, 由发件箱异步投递和重试
         ServerlessCallbackRsp callbackRsp = ServerlessCallbackRsp.builder()
-                .code(ComEnum.RspEnum.error.getCode()).msg(ComEnum.RspEnum.error.getMsg())
+                .code(ComEnum.RspEnum.error.getCode())
+                .msg(t instanceof SpoolCapacityException ? t.getMessage() : ComEnum.RspEnum.error.getMsg())
                 .taskId(zipRequest.getTaskId())
                 .build();
-        String body = JSONObject.toJSONString(callbackRsp);
-        Request request = new Request.Builder()
-                .url(zipRequest.getCallbackUrl())
-                .post(okhttp3.RequestBody.create(MediaType.parse("application/json; charset=utf-8"), body))
-                // 设置异步请求serverless, 通过回调获取oss的zipUrl
-                .build();
-        OkHttpUtils.getInstance().newCall(request).close();
+        callbackDispatcher.dispatch(zipRequest.getCallbackUrl(), JSONObject.toJSONString(callbackRsp), zipRequest.getBizSource());
     }
 
 }
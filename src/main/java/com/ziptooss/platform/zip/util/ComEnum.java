@@ -23,4 +23,65 @@ public class ComEnum {
 
     }
 
+    @Getter
+    @AllArgsConstructor
+    public enum JobTypeEnum {
+        /**/
+        zipToOss("压缩并上传到oss"),
+        zipToTempFile("压缩到临时文件"),
+
+        ;
+        private final String msg;
+
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public enum JobStatusEnum {
+        /**/
+        queued("排队中"),
+        running("执行中"),
+        success("执行成功"),
+        failed("执行失败"),
+        cancelled("已取消"),
+
+        ;
+        private final String msg;
+
+        public boolean isFinished() {
+            return this == success || this == failed || this == cancelled;
+        }
+
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public enum CompressMethodEnum {
+        /**/
+        auto("按文件类型自动选择"),
+        deflated("全部压缩"),
+        stored("全部只打包不压缩"),
+
+        ;
+        private final String msg;
+
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public enum StageEnum {
+        /**/
+        ossFetch("从oss下载源文件"),
+        compress("写入压缩包"),
+        spoolWrite("压缩到本地临时文件"),
+        uploadPart("上传分片"),
+        completeUpload("合并分片"),
+        callback("回调业务系统"),
+        rawCopy("从上一个压缩包原样复制"),
+
+        ;
+        private final String msg;
+
+    }
+
 }
@@ -0,0 +1,194 @@
+package com.ziptooss.platform.zip.util;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * @author yukun.yan
+ * @description FileDownloadUtils 本地文件下载, 支持Range断点续传, ETag/Last-Modified缓存校验, tomcat sendfile零拷贝,
+ * 不支持sendfile时普通缓冲复制
+ * @date 2023/8/16 11:08
+ */
+public class FileDownloadUtils {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileDownloadUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 下载文件, 返回当前线程是否已经把文件最后一个字节也发送出去了, 304/416/HEAD请求返回false;
+     * 交给tomcat sendfile的在servlet返回之后才开始发送, 拿不到完成的时机, 也返回false
+     *
+     * @param file
+     * @param request
+     * @param response
+     * @return
+     * @throws IOException
+     */
+    public static boolean download(File file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        return download(file, request, response, true);
+    }
+
+    /**
+     * 同 {@link #download(File, HttpServletRequest, HttpServletResponse)}, 需要知道发送完成的时机时关闭sendfile
+     *
+     * @param file
+     * @param request
+     * @param response
+     * @param sendfile tomcat支持时是否交给sendfile发送, false时总是在当前线程复制
+     * @return
+     * @throws IOException
+     */
+    public static boolean download(File file, HttpServletRequest request, HttpServletResponse response,
+                                   boolean sendfile) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + file.getName());
+        // 同时写入ETag和Last-Modified, 命中If-None-Match/If-Modified-Since时返回304
+        if (new ServletWebRequest(request, response).checkNotModified(eTag, lastModified)) {
+            return false;
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = isRangeApplicable(request, eTag, lastModified)
+                    ? HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE))
+                    : null;
+            if (ranges != null) {
+                for (HttpRange range : ranges) {
+                    if (range.getRangeStart(length) >= length) {
+                        throw new IllegalArgumentException("range start exceeds file length");
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return false;
+        }
+
+        boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+        if (ranges == null || ranges.isEmpty()) {
+            response.setContentType("application/octet-stream");
+            response.setContentLengthLong(length);
+            return !head && send(file, 0, length, sendfile, request, response);
+        }
+
+        if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType("application/octet-stream");
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setContentLengthLong(end - start + 1);
+            return !head && send(file, start, end - start + 1, sendfile, request, response) && end == length - 1;
+        }
+
+        // 多段range, multipart/byteranges
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        if (head) {
+            return false;
+        }
+        boolean reachedEnd = false;
+        ServletOutputStream outputStream = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (HttpRange range : ranges) {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                String partHeader = "\r\n--" + boundary + "\r\n"
+                        + "Content-Type: application/octet-stream\r\n"
+                        + "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n\r\n";
+                outputStream.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+                copy(channel, start, end - start + 1, outputStream);
+                reachedEnd |= end == length - 1;
+            }
+            outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+        }
+        return reachedEnd;
+    }
+
+    /**
+     * If-Range和当前文件不一致或者无法解析时忽略Range, 返回整个文件
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastModified) {
+        if (!StringUtils.hasText(request.getHeader(HttpHeaders.RANGE))) {
+            return false;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (!StringUtils.hasText(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        long ifRangeTime;
+        try {
+            ifRangeTime = request.getDateHeader(HttpHeaders.IF_RANGE);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ifRangeTime != -1 && lastModified / 1000 <= ifRangeTime / 1000;
+    }
+
+    /**
+     * tomcat支持sendfile时交给connector直接从文件发送, 否则普通缓冲复制;
+     * 输出流包成channel再transferTo也要经过堆内缓冲区, 不是零拷贝
+     *
+     * @return 当前线程已经发送完时返回true, 交给sendfile时返回false
+     */
+    private static boolean send(File file, long start, long count, boolean sendfile, HttpServletRequest request,
+                                HttpServletResponse response) throws IOException {
+        if (sendfile && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return false;
+        }
+        ServletOutputStream outputStream = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            copy(channel, start, count, outputStream);
+        }
+        outputStream.flush();
+        return true;
+    }
+
+    private static void copy(FileChannel channel, long position, long count, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (count > 0) {
+            int bytesRead = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, count)), position);
+            if (bytesRead < 0) {
+                throw new EOFException("file truncated, position=" + position);
+            }
+            outputStream.write(buffer, 0, bytesRead);
+            position += bytesRead;
+            count -= bytesRead;
+        }
+    }
+
+}
@@ -28,7 +28,10 @@ public class FileUploadUtils {
         if(!isFileExist(file)) {
             throw new RuntimeException("file is null");
         }
-        String originalFilename = file.getOriginalFilename();
+        return getFileType(file.getOriginalFilename());
+    }
+
+    public static String getFileType(String originalFilename) {
         if (StringUtils.isBlank(originalFilename)) {
             return "file";
         }
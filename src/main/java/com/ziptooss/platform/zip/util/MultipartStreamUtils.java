@@ -0,0 +1,123 @@
+package com.ziptooss.platform.zip.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author yukun.yan
+ * @description MultipartStreamUtils 用commons-fileupload的流式api边读边解析multipart请求体, 文件内容不经过本地磁盘,
+ * 需要关闭spring的multipart解析, 否则请求体在进入controller前已经被读完
+ * @date 2023/8/25 10:00
+ */
+@Slf4j
+public class MultipartStreamUtils {
+
+    private static final String FILE_FIELD = "file";
+
+    private static final String BIZ_SOURCE_FIELD = "bizSource";
+
+    /**
+     * 整个请求体比文件多出的边界、part头和bizSource字段
+     */
+    private static final long REQUEST_SIZE_HEADROOM = 1024 * 1024;
+
+    private MultipartStreamUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 处理请求体里的文件内容, 返回上传后的地址
+     */
+    @FunctionalInterface
+    public interface FileHandler {
+
+        /**
+         * @param inputStream 文件内容, 读到结尾即请求体里这个文件结束
+         * @param fileName    原始文件名
+         * @param bizSource
+         * @return
+         */
+        String handle(InputStream inputStream, String fileName, String bizSource);
+
+    }
+
+    /**
+     * 找到名为file的文件交给handler, bizSource可以是url参数, 也可以是放在file之前的表单字段
+     *
+     * @param request
+     * @param bizSource   url参数里的bizSource, 可以为空
+     * @param maxFileSize 文件大小上限
+     * @param handler
+     * @return
+     */
+    public static ServerlessResponse<String> handleFile(HttpServletRequest request, String bizSource,
+                                                        long maxFileSize, FileHandler handler) {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            return ServerlessResponse.fail("请求不是multipart/form-data");
+        }
+        ServletFileUpload upload = new ServletFileUpload();
+        upload.setFileSizeMax(maxFileSize);
+        upload.setSizeMax(maxFileSize + REQUEST_SIZE_HEADROOM);
+        upload.setHeaderEncoding(StandardCharsets.UTF_8.name());
+        try {
+            FileItemIterator iterator = upload.getItemIterator(request);
+            while (iterator.hasNext()) {
+                FileItemStream item = iterator.next();
+                if (item.isFormField()) {
+                    if (BIZ_SOURCE_FIELD.equals(item.getFieldName()) && StringUtils.isBlank(bizSource)) {
+                        try (InputStream inputStream = item.openStream()) {
+                            bizSource = Streams.asString(inputStream, StandardCharsets.UTF_8.name());
+                        }
+                    }
+                    continue;
+                }
+                if (!FILE_FIELD.equals(item.getFieldName())) {
+                    continue;
+                }
+                if (StringUtils.isBlank(bizSource)) {
+                    // 文件之后的字段要读完文件才能拿到, 不再支持
+                    return ServerlessResponse.fail("bizSource需要作为url参数或放在file之前");
+                }
+                try (InputStream inputStream = item.openStream()) {
+                    return ServerlessResponse.ok(handler.handle(inputStream, item.getName(), bizSource));
+                }
+            }
+            return ServerlessResponse.fail("file不能为空");
+        } catch (FileUploadBase.SizeLimitExceededException e) {
+            return ServerlessResponse.fail("文件超过大小限制, maxFileSize=" + maxFileSize);
+        } catch (RuntimeException e) {
+            // 单个文件超限在handler读文件流时抛出, 可能被handler再包一层
+            if (isFileSizeLimitExceeded(e)) {
+                return ServerlessResponse.fail("文件超过大小限制, maxFileSize=" + maxFileSize);
+            }
+            throw e;
+        } catch (FileUploadException | IOException e) {
+            if (isFileSizeLimitExceeded(e)) {
+                return ServerlessResponse.fail("文件超过大小限制, maxFileSize=" + maxFileSize);
+            }
+            log.error("[MultipartStreamUtils] parse multipart error, bizSource={}, e={}", bizSource, e);
+            return ServerlessResponse.fail("解析上传文件失败");
+        }
+    }
+
+    private static boolean isFileSizeLimitExceeded(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof FileUploadBase.FileSizeLimitExceededException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
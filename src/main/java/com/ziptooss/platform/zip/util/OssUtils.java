@@ -1,23 +1,62 @@
 package com.ziptooss.platform.zip.util;
 
 import com.aliyun.oss.OSS;
+import com.aliyun.oss.OSSException;
+import com.aliyun.oss.common.utils.CRC64;
 import com.aliyun.oss.common.utils.HttpUtil;
 import com.aliyun.oss.model.*;
+import com.google.common.base.Suppliers;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import com.ziptooss.platform.zip.config.OssClientRegistry;
+import com.ziptooss.platform.zip.config.SharedExecutorView;
+import com.ziptooss.platform.zip.config.ThreadPoolConfig;
+import com.ziptooss.platform.zip.config.ZipConfigBean;
+import com.ziptooss.platform.zip.service.BaseZipArchive;
+import com.ziptooss.platform.zip.service.FileRangeInputStream;
+import com.ziptooss.platform.zip.service.ObjectPrefetcher;
+import com.ziptooss.platform.zip.service.OssMultipartOutputStream;
+import com.ziptooss.platform.zip.service.OssPathIterator;
 import com.ziptooss.platform.zip.service.PartUploader;
+import com.ziptooss.platform.zip.service.PrefetchedObject;
+import com.ziptooss.platform.zip.service.SpoolManager;
+import com.ziptooss.platform.zip.service.SpoolReservingChannel;
+import com.ziptooss.platform.zip.service.SpoolScatterBackingStore;
+import com.ziptooss.platform.zip.service.UploadCheckpoint;
+import com.ziptooss.platform.zip.service.UploadCheckpointStore;
+import com.ziptooss.platform.zip.service.ZipMetrics;
+import com.ziptooss.platform.zip.service.ZipProgress;
+import com.ziptooss.platform.zip.service.ZipResultCache;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.util.Assert;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.util.DigestUtils;
 
 import javax.annotation.PostConstruct;
 import java.io.*;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 
 import static com.aliyun.oss.internal.OSSConstants.DEFAULT_CHARSET_NAME;
 
@@ -31,6 +70,11 @@ public class OssUtils {
 
     private static OssUtils ossService;
 
+    private final OssClientRegistry ossClientRegistry;
+
+    /**
+     * 默认bucket的客户端, 压缩包和上传的文件都放在默认bucket
+     */
     private final OSS ossClient;
 
     private final String bucketName;
@@ -41,11 +85,60 @@ public class OssUtils {
 
     private final Date expiration;
 
-    private static final long partSize = 20 * 1024 * 1024L;
+    /**
+     * oss单次分片上传最多10000片
+     */
+    private static final int MAX_PART_COUNT = 10000;
+
+    /**
+     * 每个entry的本地文件头, 数据描述符, 中央目录和zip64扩展字段, 不含文件名
+     */
+    private static final long ZIP_ENTRY_OVERHEAD = 160;
+
+    /**
+     * 中央目录结束记录和zip64结束记录
+     */
+    private static final long ZIP_END_OVERHEAD = 128;
+
+    /**
+     * 超过这个大小的entry需要zip64
+     */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    @Autowired
+    @Qualifier("upload-pool")
+    private ExecutorService uploadPoolExecutor;
+
+    @Autowired
+    @Qualifier("download-pool")
+    private ExecutorService downloadPoolExecutor;
+
+    @Autowired
+    @Qualifier("range-pool")
+    private ExecutorService rangePoolExecutor;
+
+    @Autowired
+    @Qualifier("volume-pool")
+    private ThreadPoolExecutor volumePoolExecutor;
+
+    @Autowired
+    @Qualifier("compress-pool")
+    private ThreadPoolExecutor compressPoolExecutor;
+
+    @Autowired
+    private ZipConfigBean zipConfigBean;
+
+    @Autowired
+    private UploadCheckpointStore uploadCheckpointStore;
 
     @Autowired
-    @Qualifier("thread-pool")
-    private ThreadPoolExecutor threadPoolExecutor;
+    private SpoolManager spoolManager;
+
+    @Autowired
+    private ZipMetrics zipMetrics;
+
+    @Autowired
+    private ZipResultCache zipResultCache;
 
     /**
      * 构造器执行之后, 做静态字段注入
@@ -56,8 +149,18 @@ public class OssUtils {
     }
 
     public OssUtils(OSS ossClient, String bucketName, String region, String endpoint) {
-        this.ossClient = ossClient;
-        this.bucketName = bucketName;
+        this(new OssClientRegistry(Collections.singletonMap(bucketName, ossClient)), region, endpoint);
+    }
+
+    /**
+     * @param ossClientRegistry 所有配置的bucket, 第一个是默认bucket
+     * @param region            默认bucket的地域, 用于拼接公网url
+     * @param endpoint
+     */
+    public OssUtils(OssClientRegistry ossClientRegistry, String region, String endpoint) {
+        this.ossClientRegistry = ossClientRegistry;
+        this.bucketName = ossClientRegistry.getDefaultBucket();
+        this.ossClient = ossClientRegistry.getClient(bucketName);
         this.region = region;
         this.endpoint = endpoint;
         this.expiration = new Date(System.currentTimeMillis() + 3600L * 1000 * 24 * 365 * 10);
@@ -114,22 +217,22 @@ public class OssUtils {
     }
 
     /**
-     * 文件对象上传
+     * 文件流上传, 边读请求体边上传
      *
-     * @param file      文件对象
-     * @param bizSource 文件名
+     * @param inputStream 文件内容
+     * @param fileName    原始文件名
+     * @param bizSource
      * @return 返回有效期x天的url
      */
-    public static String fileUpload(MultipartFile file, String bizSource) {
-        Assert.isTrue(FileUploadUtils.isFileExist(file), "File does not exist");
+    public static String fileUpload(InputStream inputStream, String fileName, String bizSource) {
         // 判断桶名是否存在，如果不存在就新建一个
         if (!ossService.ossClient.doesBucketExist(ossService.bucketName)) {
             ossService.ossClient.createBucket(ossService.bucketName);
         }
-        String fileType = FileUploadUtils.getFileType(file);
-        String filePath = getFilePath(bizSource, fileType, file.getOriginalFilename());
+        String fileType = FileUploadUtils.getFileType(fileName);
+        String filePath = getFilePath(bizSource, fileType, fileName);
         try {
-            ossService.ossClient.putObject(ossService.bucketName, filePath, file.getInputStream());
+            ossService.ossClient.putObject(ossService.bucketName, filePath, inputStream);
             return urlEncodeKey(filePath);
         } catch (Exception e) {
             log.error("[OssService] fileUpload error, bizSource={}, e={}", bizSource, e);
@@ -138,15 +241,20 @@ public class OssUtils {
     }
 
     /**
-     * MultipartFile文件对象上传
+     * 大文件分片上传, zip.upload.streaming开启时边接收边上传分片, 否则先写到临时文件再按断点续传的方式上传
      *
-     * @param file
+     * @param inputStream 文件内容
+     * @param fileName    原始文件名
+     * @param sizeHint    请求体大小, 用来选择分片大小, 未知时为-1
      * @param bizSource
      * @return
      */
-    public static String fragmentUploadMultipartFile(MultipartFile file, String bizSource) {
+    public static String fragmentUpload(InputStream inputStream, String fileName, long sizeHint, String bizSource) {
         try {
-            return fragmentUpload(file, bizSource);
+            if (ossService.zipConfigBean.getUpload().isStreaming()) {
+                return streamingFragmentUpload(inputStream, fileName, sizeHint, bizSource);
+            }
+            return fragmentUploadByTempFile(inputStream, fileName, bizSource);
         } catch (Exception e) {
             log.error("[OssService] fragmentUpload error, ", e);
             throw new RuntimeException("OssService fragmentUpload error");
@@ -154,126 +262,1014 @@ public class OssUtils {
     }
 
     /**
-     * 通过文件路径从oss下载, 并压缩, 再把压缩包上传到oss, 返回zip的oss的url
+     * 通过文件路径从oss下载, 并压缩, 再把压缩包上传到oss, 返回zip的oss的url, 源文件都没变时返回缓存的压缩包
      *
-     * @param ossFilePathList
-     * @param bizSource
+     * @param zipRequest
+     * @param progress   任务进度, 取消时抛出 CancellationException
+     * @return
+     */
+    public static String putZipToOss(ZipRequest zipRequest, ZipProgress progress) {
+        ZipResultCache resultCache = ossService.zipResultCache;
+        Supplier<List<ObjectMetadata>> metadata = sourceMetadata(zipRequest, progress);
+        // 按前缀或清单压缩时事先拿不到所有文件的ETag, 不走缓存
+        if (!resultCache.isEnabled() || OssPathIterator.isListing(zipRequest)) {
+            return urlEncodeKey(uploadZip(zipRequest, getFilePath(zipRequest.getBizSource(), "zip", UUID.randomUUID() + ".zip"), metadata, progress));
+        }
+        return getCachedZip(zipRequest, metadata.get(), progress, () -> {
+            String objectName = uploadZip(zipRequest, getFilePath(zipRequest.getBizSource(), "zip", UUID.randomUUID() + ".zip"), metadata, progress);
+            return new ZipResultCache.CachedZip(Collections.singletonList(objectName), Collections.singletonList(urlEncodeKey(objectName)));
+        }).getUrls().get(0);
+    }
+
+    /**
+     * 按maxVolumeSize在文件边界拆成多个分卷, 每一卷是独立的压缩包, 在分卷线程池里并行压缩上传, 源文件都没变时返回缓存的分卷
+     *
+     * @param zipRequest
+     * @param progress   所有卷共用
+     * @return 每一卷的url, 按part-001, part-002顺序
+     */
+    public static List<String> putZipVolumesToOss(ZipRequest zipRequest, ZipProgress progress) {
+        // 分卷要按文件大小, 不开缓存也要HEAD
+        List<ObjectMetadata> metadataList = headObjects(zipRequest, progress);
+        if (!ossService.zipResultCache.isEnabled()) {
+            return uploadVolumes(zipRequest, metadataList, progress).getUrls();
+        }
+        return getCachedZip(zipRequest, metadataList, progress, () -> uploadVolumes(zipRequest, metadataList, progress)).getUrls();
+    }
+
+    /**
+     * 按源文件ETag查缓存, 缓存的压缩包有一卷不在了就重新压缩;
+     * 相同请求等待的是别的任务的压缩结果, 那个任务被取消时用自己的loader重新压缩
+     *
+     * @param zipRequest
+     * @param metadataList 和ossFilePathList一一对应
+     * @param progress
+     * @param loader
+     * @return
+     */
+    private static ZipResultCache.CachedZip getCachedZip(ZipRequest zipRequest, List<ObjectMetadata> metadataList,
+                                                         ZipProgress progress, Callable<ZipResultCache.CachedZip> loader) {
+        ZipResultCache resultCache = ossService.zipResultCache;
+        List<String> eTags = new ArrayList<>(metadataList.size());
+        for (ObjectMetadata metadata : metadataList) {
+            eTags.add(metadata == null ? null : metadata.getETag());
+        }
+        String key = resultCache.key(zipRequest, eTags);
+        Predicate<ZipResultCache.CachedZip> valid = cached -> cached.getObjectNames().stream()
+                .allMatch(objectName -> ossService.ossClient.doesObjectExist(ossService.bucketName, objectName));
+        try {
+            return resultCache.get(key, valid, loader);
+        } catch (CancellationException e) {
+            progress.checkCancelled();
+            return resultCache.get(key, valid, loader);
+        }
+    }
+
+    /**
+     * 每一卷提交到分卷线程池压缩上传, 有一卷失败时取消其他卷, 删除已经上传的卷
+     *
+     * @param zipRequest
+     * @param metadataList 和ossFilePathList一一对应, 用于分卷, 按卷切分后交给每一卷使用
+     * @param progress
      * @return
      */
-    public static String putZipToOss(List<String> ossFilePathList, String bizSource) {
-        File tempFile = null;
+    private static ZipResultCache.CachedZip uploadVolumes(ZipRequest zipRequest, List<ObjectMetadata> metadataList, ZipProgress progress) {
+        List<List<String>> volumes = planVolumes(zipRequest.getOssFilePathList(), metadataList, zipRequest.getMaxVolumeSize());
+        String dir = getFilePath(zipRequest.getBizSource(), "zip", UUID.randomUUID().toString());
+        List<String> objectNames = new ArrayList<>(volumes.size());
+        List<Future<String>> futures = new ArrayList<>(volumes.size());
+        // 按完成顺序等待, 任意一卷失败立即取消其他卷
+        CompletionService<String> completionService = new ExecutorCompletionService<>(ossService.volumePoolExecutor);
+        int offset = 0;
+        for (int i = 0; i < volumes.size(); i++) {
+            ZipRequest volumeRequest = volumeRequest(zipRequest, volumes.get(i));
+            // 分卷按请求顺序连续切分, 每一卷的元数据就是对应的一段
+            Supplier<List<ObjectMetadata>> volumeMetadata = Suppliers.ofInstance(metadataList.subList(offset, offset + volumes.get(i).size()));
+            offset += volumes.get(i).size();
+            String objectName = dir + "/" + String.format("part-%03d.zip", i + 1);
+            objectNames.add(objectName);
+            futures.add(completionService.submit(() -> uploadZip(volumeRequest, objectName, volumeMetadata, progress)));
+        }
+        log.info("[OssService] putZip volumes, dir={}, files={}, volumes={}", dir, zipRequest.getOssFilePathList().size(), volumes.size());
+        List<String> urls = new ArrayList<>(volumes.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                completionService.take().get();
+            }
+            for (Future<String> future : futures) {
+                urls.add(urlEncodeKey(future.get()));
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            for (String objectName : objectNames) {
+                try {
+                    ossService.ossClient.deleteObject(ossService.bucketName, objectName);
+                } catch (Exception deleteError) {
+                    log.warn("[OssService] delete volume error, objectName={}, e={}", objectName, deleteError.getMessage());
+                }
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (progress.isCancelled()) {
+                log.info("[OssService] putZip volumes cancelled, dir={}", dir);
+                progress.checkCancelled();
+            }
+            log.error("[OssService] putZip volumes error, dir={}, e={}", dir, e);
+            throw new RuntimeException("OssService putZip volumes error");
+        }
+        return new ZipResultCache.CachedZip(objectNames, urls);
+    }
+
+    /**
+     * 按请求顺序把文件分到各卷, 每个文件按不压缩估算大小, 加上这个文件会超过上限时开始新的一卷
+     *
+     * @param ossFilePathList
+     * @param metadataList    获取失败的文件压缩时会跳过, 按0算
+     * @param maxVolumeSize
+     * @return 每一卷的文件路径
+     */
+    static List<List<String>> planVolumes(List<String> ossFilePathList, List<ObjectMetadata> metadataList, long maxVolumeSize) {
+        List<List<String>> volumes = new ArrayList<>();
+        List<String> volume = new ArrayList<>();
+        long volumeBytes = ZIP_END_OVERHEAD;
+        for (int i = 0; i < ossFilePathList.size(); i++) {
+            String path = ossFilePathList.get(i);
+            long contentBytes = metadataList.get(i) == null ? 0 : metadataList.get(i).getContentLength();
+            long entryBytes = contentBytes + contentBytes / 1000 + ZIP_ENTRY_OVERHEAD + 2L * path.getBytes(StandardCharsets.UTF_8).length;
+            if (!volume.isEmpty() && volumeBytes + entryBytes > maxVolumeSize) {
+                volumes.add(volume);
+                volume = new ArrayList<>();
+                volumeBytes = ZIP_END_OVERHEAD;
+            }
+            volume.add(path);
+            volumeBytes += entryBytes;
+        }
+        volumes.add(volume);
+        return volumes;
+    }
+
+    /**
+     * 一卷的压缩请求, 除了文件列表都和原请求一样
+     */
+    private static ZipRequest volumeRequest(ZipRequest zipRequest, List<String> ossFilePathList) {
+        ZipRequest volumeRequest = new ZipRequest();
+        volumeRequest.setOssFilePathList(ossFilePathList);
+        volumeRequest.setBizSource(zipRequest.getBizSource());
+        volumeRequest.setBucket(zipRequest.getBucket());
+        volumeRequest.setTaskId(zipRequest.getTaskId());
+        volumeRequest.setCompressMethod(zipRequest.getCompressMethod());
+        volumeRequest.setBaseZipUrl(zipRequest.getBaseZipUrl());
+        return volumeRequest;
+    }
+
+    /**
+     * 压缩并上传到oss
+     *
+     * @param zipRequest
+     * @param filePath   压缩包在oss的路径
+     * @param metadata   源文件元数据, 用到时才HEAD
+     * @param progress
+     * @return 压缩包在oss的路径
+     */
+    private static String uploadZip(ZipRequest zipRequest, String filePath, Supplier<List<ObjectMetadata>> metadata,
+                                    ZipProgress progress) {
+        if (!ossService.zipConfigBean.getStream().isEnabled()) {
+            return putZipToOssByTempFile(zipRequest, filePath, metadata, progress);
+        }
+        // 压缩输出直接写进分片缓冲区, 写满一片就上传, 不再需要和压缩包一样大的临时文件
+        ZipConfigBean.Stream streamConfig = ossService.zipConfigBean.getStream();
+        OssMultipartOutputStream ossOutStream = new OssMultipartOutputStream(ossService.ossClient, ossService.bucketName, filePath,
+                (int) streamConfig.getPartSize().toBytes(), streamConfig.getConcurrency(), ossService.uploadPoolExecutor,
+                ossService.zipConfigBean.getUpload().getPartRetries(),
+                stage(ComEnum.StageEnum.uploadPart, zipRequest.getBizSource()),
+                stage(ComEnum.StageEnum.completeUpload, zipRequest.getBizSource()));
+        progress.addOutput(ossOutStream::getTotalBytes);
+        try {
+            ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(ossOutStream);
+            writeZipEntries(zipRequest, zipOutStream, ossService.zipConfigBean.getCompress().isParallel(), metadata, progress);
+            // 写完中央目录后合并分片
+            progress.checkCancelled();
+            zipOutStream.close();
+            return filePath;
+        } catch (Exception e) {
+            // 出错时先取消分片上传, 避免close把不完整的压缩包合并出去
+            ossOutStream.abort();
+            if (progress.isCancelled()) {
+                log.info("[OssService] putZip cancelled, filePath={}", filePath);
+                progress.checkCancelled();
+            }
+            log.error("[OssService] putZip error, ossFilePath={}, e={}", zipRequest.getOssFilePathList(), e);
+            throw new RuntimeException("OssService putZip error");
+        }
+    }
+
+    /**
+     * 先压缩到临时文件, 再整体上传到oss
+     *
+     * @param zipRequest
+     * @param filePath   压缩包在oss的路径
+     * @param metadata
+     * @param progress
+     * @return 压缩包在oss的路径
+     */
+    private static String putZipToOssByTempFile(ZipRequest zipRequest, String filePath, Supplier<List<ObjectMetadata>> metadata,
+                                                ZipProgress progress) {
+        SpoolManager.SpoolFile spoolFile = ossService.spoolManager.allocate(projectZipSize(zipRequest, metadata));
         try {
             // 之前在内存里压缩, 几个g的大文件
             // org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream.write 出现了oom
-            // 现在使用临时文件压缩
-            tempFile = File.createTempFile(UUID.randomUUID().toString(), ".zip");
-            try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
-                int batchSize = 10;
-                List<List<String>> batches = splitListIntoBatches(ossFilePathList, batchSize);
-                for (List<String> batch : batches) {
-                    for (String filePathEach : batch) {
-                        OSSObject ossObject;
-                        try {
-                            ossObject = ossService.ossClient.getObject(ossService.bucketName, filePathEach);
-                        } catch (Exception e) {
-                            log.error("[OssService] putZip getObject error, ", e);
-                            continue;
-                        }
-                        try (InputStream inputStream = new BufferedInputStream(ossObject.getObjectContent())) {
-                            ZipArchiveEntry entry = new ZipArchiveEntry(filePathEach);
-                            zipOutStream.putArchiveEntry(entry);
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                zipOutStream.write(buffer, 0, bytesRead);
-                            }
-                            zipOutStream.closeArchiveEntry();
-                        } finally {
-                            if (ossObject != null) {
-                                try {
-                                    ossObject.close();
-                                } catch (IOException e) {
-                                    log.error("Error closing OSSObject", e);
-                                }
-                            }
-                        }
-                    }
-                }
+            // 现在使用临时文件压缩, 可随机写的文件上不需要提前算crc就能只打包不压缩
+            File tempFile = spoolFile.getFile();
+            writeZipToSpool(zipRequest, spoolFile, metadata, progress);
+            progress.checkCancelled();
+            // 整个压缩包一次上传, 按一个分片计
+            ZipMetrics.StageMetrics uploadMetrics = stage(ComEnum.StageEnum.uploadPart, zipRequest.getBizSource());
+            long startNanos = System.nanoTime();
+            try {
+                ossService.ossClient.putObject(ossService.bucketName, filePath, tempFile);
+            } catch (RuntimeException e) {
+                uploadMetrics.failure(startNanos);
+                throw e;
             }
-            String filePath = getFilePath(bizSource, "zip", tempFile.getName());
-            ossService.ossClient.putObject(ossService.bucketName, filePath, tempFile);
-            return urlEncodeKey(filePath);
+            uploadMetrics.success(startNanos, tempFile.length());
+            return filePath;
         } catch (Exception e) {
-            log.error("[OssService] putZip error, ossFilePath={}, e={}", ossFilePathList, e);
+            if (progress.isCancelled()) {
+                log.info("[OssService] putZip cancelled, filePath={}", filePath);
+                progress.checkCancelled();
+            }
+            log.error("[OssService] putZip error, ossFilePath={}, e={}", zipRequest.getOssFilePathList(), e);
             throw new RuntimeException("OssService putZip error");
         } finally {
-            if (tempFile != null) {
-                if (tempFile.delete()) {
-                    log.info("OssService putZip deleteTempFile");
+            ossService.spoolManager.release(spoolFile);
+        }
+    }
+
+    /**
+     * 压缩到spool目录里的临时文件, 耗时包含下载和压缩, 写到预留的大小之外时追加预留
+     *
+     * @param zipRequest
+     * @param spoolFile
+     * @param metadata
+     * @param progress
+     * @throws IOException
+     */
+    private static void writeZipToSpool(ZipRequest zipRequest, SpoolManager.SpoolFile spoolFile, Supplier<List<ObjectMetadata>> metadata,
+                                        ZipProgress progress) throws IOException {
+        ZipMetrics.StageMetrics spoolMetrics = stage(ComEnum.StageEnum.spoolWrite, zipRequest.getBizSource());
+        long startNanos = System.nanoTime();
+        File file = spoolFile.getFile();
+        progress.addOutput(file::length);
+        try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(new SpoolReservingChannel(ossService.spoolManager, spoolFile))) {
+            writeZipEntries(zipRequest, zipOutStream, ossService.zipConfigBean.getCompress().isParallel(), metadata, progress);
+        } catch (IOException | RuntimeException e) {
+            spoolMetrics.failure(startNanos);
+            throw e;
+        }
+        spoolMetrics.success(startNanos, file.length());
+    }
+
+    /**
+     * 压缩后直接写到输出流, 不落盘也不上传, 输出流不可随机写, entry的大小和crc写在数据描述符里;
+     * 按请求顺序单线程压缩, 每个文件压缩完就能发出去, 并行压缩要等所有文件压完才开始合并
+     *
+     * @param zipRequest
+     * @param outputStream 调用方负责关闭
+     * @throws IOException
+     */
+    public static void writeZipToStream(ZipRequest zipRequest, OutputStream outputStream) throws IOException {
+        ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(outputStream);
+        // 客户端断开时写响应失败, 不需要取消
+        ZipProgress progress = new ZipProgress();
+        writeZipEntries(zipRequest, zipOutStream, false, sourceMetadata(zipRequest, progress), progress);
+        // 只写中央目录, 不关闭底层输出流
+        zipOutStream.finish();
+        zipOutStream.flush();
+    }
+
+    /**
+     * 并发预取oss文件写入压缩包, 下载失败的文件跳过, 指定了上一个压缩包时ETag没变的文件原样复制
+     *
+     * @param zipRequest
+     * @param zipOutStream
+     * @param parallel     是否多核并行压缩
+     * @param metadata     源文件元数据, 只有增量压缩用到
+     * @param progress
+     * @throws IOException
+     */
+    private static void writeZipEntries(ZipRequest zipRequest, ZipArchiveOutputStream zipOutStream, boolean parallel,
+                                        Supplier<List<ObjectMetadata>> metadata, ZipProgress progress) throws IOException {
+        if (OssPathIterator.isListing(zipRequest)) {
+            writeListedEntries(zipRequest, zipOutStream, parallel, progress);
+            return;
+        }
+        ZipConfigBean.Prefetch prefetchConfig = ossService.zipConfigBean.getPrefetch();
+        ZipMetrics.StageMetrics compressMetrics = stage(ComEnum.StageEnum.compress, zipRequest.getBizSource());
+        List<String> paths = zipRequest.getOssFilePathList();
+        try (BaseZipArchive baseZip = openBaseZip(zipRequest.getBaseZipUrl())) {
+            Map<String, ZipArchiveEntry> unchanged = Collections.emptyMap();
+            List<String> changedPaths = paths;
+            if (baseZip != null) {
+                List<String> eTags = new ArrayList<>(paths.size());
+                for (ObjectMetadata objectMetadata : metadata.get()) {
+                    eTags.add(objectMetadata == null ? null : objectMetadata.getETag());
+                }
+                unchanged = baseZip.findUnchanged(paths, eTags, zipRequest.getCompressMethod());
+                changedPaths = new ArrayList<>(paths.size() - unchanged.size());
+                for (String path : paths) {
+                    if (!unchanged.containsKey(path)) {
+                        changedPaths.add(path);
+                    }
+                }
+            }
+            RawEntries rawEntries = new RawEntries(baseZip, unchanged, stage(ComEnum.StageEnum.rawCopy, zipRequest.getBizSource()), progress);
+            try (ObjectPrefetcher prefetcher = new ObjectPrefetcher(sourceClient(zipRequest), sourceBucket(zipRequest), changedPaths.iterator(),
+                    prefetchConfig.getConcurrency(), prefetchConfig.getMaxInFlightBytes().toBytes(),
+                    prefetchConfig.getMaxObjectSize().toBytes(), ossService.downloadPoolExecutor,
+                    stage(ComEnum.StageEnum.ossFetch, zipRequest.getBizSource()), ossService.zipConfigBean.getRanged(),
+                    ossService.rangePoolExecutor, progress)) {
+                if (parallel) {
+                    // scatter文件最后才合并, 先把复制的文件写进压缩包
+                    for (String path : paths) {
+                        rawEntries.copy(path, zipOutStream);
+                    }
+                    writeZipEntriesParallel(prefetcher, zipRequest.getCompressMethod(), zipOutStream, compressMetrics, progress);
+                } else {
+                    writeZipEntriesSerial(prefetcher, paths, rawEntries, zipRequest.getCompressMethod(), zipOutStream, compressMetrics, progress);
                 }
             }
         }
     }
 
-    private static List<List<String>> splitListIntoBatches(List<String> list, int batchSize) {
-        List<List<String>> batches = new ArrayList<>();
-        for (int i = 0; i < list.size(); i += batchSize) {
-            int endIndex = Math.min(i + batchSize, list.size());
-            batches.add(list.subList(i, endIndex));
+    /**
+     * 按oss前缀或清单文件压缩, 文件路径边列举边交给预取, 不在内存里保存完整的文件列表
+     *
+     * @param zipRequest
+     * @param zipOutStream
+     * @param parallel
+     * @param progress
+     * @throws IOException
+     */
+    private static void writeListedEntries(ZipRequest zipRequest, ZipArchiveOutputStream zipOutStream, boolean parallel,
+                                           ZipProgress progress) throws IOException {
+        ZipConfigBean.Prefetch prefetchConfig = ossService.zipConfigBean.getPrefetch();
+        ZipMetrics.StageMetrics compressMetrics = stage(ComEnum.StageEnum.compress, zipRequest.getBizSource());
+        String manifestObjectName = StringUtils.isBlank(zipRequest.getManifestPath()) ? null : toObjectName(zipRequest.getManifestPath());
+        try (OssPathIterator paths = OssPathIterator.open(sourceClient(zipRequest), sourceBucket(zipRequest), zipRequest, manifestObjectName);
+             ObjectPrefetcher prefetcher = new ObjectPrefetcher(sourceClient(zipRequest), sourceBucket(zipRequest), paths,
+                     prefetchConfig.getConcurrency(), prefetchConfig.getMaxInFlightBytes().toBytes(),
+                     prefetchConfig.getMaxObjectSize().toBytes(), ossService.downloadPoolExecutor,
+                     stage(ComEnum.StageEnum.ossFetch, zipRequest.getBizSource()), ossService.zipConfigBean.getRanged(),
+                     ossService.rangePoolExecutor, progress)) {
+            if (parallel) {
+                writeZipEntriesParallel(prefetcher, zipRequest.getCompressMethod(), zipOutStream, compressMetrics, progress);
+            } else {
+                PrefetchedObject object;
+                while ((object = prefetcher.next()) != null) {
+                    try (PrefetchedObject prefetched = object) {
+                        writePrefetchedEntry(prefetched, zipRequest.getCompressMethod(), zipOutStream, compressMetrics, progress);
+                    }
+                }
+            }
+            log.info("[OssService] putZip listed entries, ossPrefix={}, manifestPath={}, files={}",
+                    zipRequest.getOssPrefix(), zipRequest.getManifestPath(), paths.getCount());
         }
-        return batches;
     }
 
     /**
-     * 多线程, 大文件分片上传
+     * 打开增量压缩的上一个压缩包, 打不开时退回全量压缩
      *
-     * @param file
-     * @param bizSource
+     * @param baseZipUrl 上一次返回的url或oss路径
+     * @return 没有指定或打开失败时为null
+     */
+    private static BaseZipArchive openBaseZip(String baseZipUrl) {
+        if (StringUtils.isBlank(baseZipUrl)) {
+            return null;
+        }
+        String objectName = toObjectName(baseZipUrl);
+        try {
+            return BaseZipArchive.open(ossService.ossClient, ossService.bucketName, objectName,
+                    (int) ossService.zipConfigBean.getIncremental().getBlockSize().toBytes());
+        } catch (Exception e) {
+            log.warn("[OssService] open base zip error, fall back to full zip, baseZipUrl={}, e={}", baseZipUrl, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * url或oss路径转成oss路径
+     *
+     * @param urlOrObjectName 本服务返回的url, 签名url或oss路径
+     * @return
+     */
+    private static String toObjectName(String urlOrObjectName) {
+        String objectName = urlOrObjectName;
+        int schemeEnd = objectName.indexOf("://");
+        if (schemeEnd >= 0) {
+            // 去掉协议, 域名和签名参数, 剩下的就是oss路径
+            int pathStart = objectName.indexOf('/', schemeEnd + 3);
+            objectName = pathStart < 0 ? "" : objectName.substring(pathStart + 1);
+            int queryStart = objectName.indexOf('?');
+            if (queryStart >= 0) {
+                objectName = objectName.substring(0, queryStart);
+            }
+            try {
+                objectName = URLDecoder.decode(objectName.replace("+", "%2B"), StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                log.warn("[OssService] decode url error, url={}, e={}", urlOrObjectName, e.getMessage());
+            }
+        }
+        return objectName;
+    }
+
+    /**
+     * 上一个压缩包里可以原样复制的文件
+     */
+    private static class RawEntries {
+
+        private final BaseZipArchive baseZip;
+
+        private final Map<String, ZipArchiveEntry> unchanged;
+
+        private final ZipMetrics.StageMetrics rawCopyMetrics;
+
+        private final ZipProgress progress;
+
+        RawEntries(BaseZipArchive baseZip, Map<String, ZipArchiveEntry> unchanged, ZipMetrics.StageMetrics rawCopyMetrics,
+                   ZipProgress progress) {
+            this.baseZip = baseZip;
+            this.unchanged = unchanged;
+            this.rawCopyMetrics = rawCopyMetrics;
+            this.progress = progress;
+        }
+
+        /**
+         * 文件没变时复制压缩后的原始数据, 不解压也不重新压缩
+         *
+         * @param path
+         * @param zipOutStream
+         * @return 不能复制时返回false, 由调用方下载压缩
+         * @throws IOException
+         */
+        boolean copy(String path, ZipArchiveOutputStream zipOutStream) throws IOException {
+            ZipArchiveEntry entry = unchanged.get(path);
+            if (entry == null) {
+                return false;
+            }
+            progress.checkCancelled();
+            long startNanos = System.nanoTime();
+            try (InputStream rawStream = baseZip.openRaw(entry)) {
+                zipOutStream.addRawArchiveEntry(entry, rawStream);
+            } catch (IOException | RuntimeException e) {
+                rawCopyMetrics.failure(startNanos);
+                throw e;
+            }
+            rawCopyMetrics.success(startNanos, entry.getCompressedSize());
+            progress.addBytesRead(entry.getCompressedSize());
+            progress.entryDone();
+            return true;
+        }
+
+    }
+
+    /**
+     * 源文件所在bucket的客户端
+     */
+    private static OSS sourceClient(ZipRequest zipRequest) {
+        return ossService.ossClientRegistry.getClient(zipRequest.getBucket());
+    }
+
+    private static String sourceBucket(ZipRequest zipRequest) {
+        return StringUtils.isBlank(zipRequest.getBucket()) ? ossService.bucketName : zipRequest.getBucket();
+    }
+
+    /**
+     * bucket是否已经配置
+     *
+     * @param bucket
      * @return
      */
-    private static String fragmentUpload(MultipartFile file, String bizSource) {
-        String fileType = FileUploadUtils.getFileType(file);
-        String filePath = getFilePath(bizSource, fileType, file.getOriginalFilename());
+    public static boolean isBucketConfigured(String bucket) {
+        return ossService.ossClientRegistry.contains(bucket);
+    }
+
+    private static ZipMetrics.StageMetrics stage(ComEnum.StageEnum stage, String bizSource) {
+        return ossService.zipMetrics.stage(stage, bizSource);
+    }
+
+    /**
+     * 单线程按请求顺序压缩
+     *
+     * @param prefetcher      只预取需要重新压缩的文件
+     * @param paths           请求的全部文件
+     * @param rawEntries
+     * @param compressMethod
+     * @param zipOutStream
+     * @param compressMetrics
+     * @param progress
+     * @throws IOException
+     */
+    private static void writeZipEntriesSerial(ObjectPrefetcher prefetcher, List<String> paths, RawEntries rawEntries,
+                                              ComEnum.CompressMethodEnum compressMethod, ZipArchiveOutputStream zipOutStream,
+                                              ZipMetrics.StageMetrics compressMetrics, ZipProgress progress) throws IOException {
+        for (String path : paths) {
+            if (rawEntries.copy(path, zipOutStream)) {
+                continue;
+            }
+            try (PrefetchedObject object = prefetcher.next()) {
+                writePrefetchedEntry(object, compressMethod, zipOutStream, compressMetrics, progress);
+            }
+        }
+    }
 
-        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(ossService.bucketName, filePath);
-        InitiateMultipartUploadResult upResult = ossService.ossClient.initiateMultipartUpload(request);
-        String uploadId = upResult.getUploadId();
+    /**
+     * 预取到的文件写入压缩包, 下载失败的跳过
+     */
+    private static void writePrefetchedEntry(PrefetchedObject object, ComEnum.CompressMethodEnum compressMethod,
+                                             ZipArchiveOutputStream zipOutStream, ZipMetrics.StageMetrics compressMetrics,
+                                             ZipProgress progress) throws IOException {
+        // 取消后下载失败的文件不能当成普通的失败跳过
+        progress.checkCancelled();
+        if (object.getError() != null) {
+            log.error("[OssService] putZip getObject error, path={}", object.getPath());
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            if (object.isBuffered()) {
+                writeBufferedEntry(object, compressMethod, zipOutStream, progress);
+            } else {
+                writeStreamingEntry(object, compressMethod, zipOutStream, progress);
+            }
+        } catch (IOException | RuntimeException e) {
+            compressMetrics.failure(startNanos);
+            throw e;
+        }
+        compressMetrics.success(startNanos, object.getContentLength());
+        progress.entryDone();
+    }
 
-        // 计算分片数量
-        long fileLength = file.getSize();
-        int partCount = (int) (fileLength / partSize);
-        if (fileLength % partSize != 0) {
-            partCount++;
+    /**
+     * 内存里的文件, 只打包不压缩时一次遍历算出crc
+     */
+    private static void writeBufferedEntry(PrefetchedObject object, ComEnum.CompressMethodEnum compressMethod,
+                                           ZipArchiveOutputStream zipOutStream, ZipProgress progress) throws IOException {
+        byte[] data = object.getData();
+        ZipArchiveEntry entry = new ZipArchiveEntry(object.getPath());
+        BaseZipArchive.setETag(entry, object.getETag());
+        int method = ZipMethodUtils.resolveMethod(compressMethod, object.getPath(), object.getContentType(), data, data.length);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
         }
-        if (partCount > 10000) {
-            throw new RuntimeException("partCount > 10000");
+        zipOutStream.putArchiveEntry(entry);
+        zipOutStream.write(data, 0, data.length);
+        zipOutStream.closeArchiveEntry();
+        progress.addBytesRead(data.length);
+    }
+
+    /**
+     * 大文件边下载边写入, 只打包不压缩时不可随机写的输出流拿不到提前算好的crc, 改用0级deflate
+     */
+    private static void writeStreamingEntry(PrefetchedObject object, ComEnum.CompressMethodEnum compressMethod,
+                                            ZipArchiveOutputStream zipOutStream, ZipProgress progress) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(object.openStream(), 64 * 1024)) {
+            byte[] head = new byte[ZipMethodUtils.SNIFF_LENGTH];
+            inputStream.mark(head.length);
+            int headLength = IOUtils.readFully(inputStream, head);
+            inputStream.reset();
+            ZipArchiveEntry entry = new ZipArchiveEntry(object.getPath());
+            BaseZipArchive.setETag(entry, object.getETag());
+            boolean storeBlocks = false;
+            if (ZipMethodUtils.resolveMethod(compressMethod, object.getPath(), object.getContentType(), head, headLength) == ZipEntry.STORED) {
+                if (zipOutStream.isSeekable()) {
+                    entry.setMethod(ZipEntry.STORED);
+                } else {
+                    storeBlocks = true;
+                    zipOutStream.setLevel(Deflater.NO_COMPRESSION);
+                }
+            }
+            boolean forcedZip64 = prepareZip64(zipOutStream, entry, object.getContentLength());
+            try {
+                zipOutStream.putArchiveEntry(entry);
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    progress.checkCancelled();
+                    zipOutStream.write(buffer, 0, bytesRead);
+                    progress.addBytesRead(bytesRead);
+                }
+                zipOutStream.closeArchiveEntry();
+            } finally {
+                if (storeBlocks) {
+                    zipOutStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+                }
+                if (forcedZip64) {
+                    zipOutStream.setUseZip64(Zip64Mode.AsNeeded);
+                }
+            }
         }
+    }
 
-        List<PartETag> partEtagList = new ArrayList<>(partCount);
-        CountDownLatch countDownLatch = new CountDownLatch(partCount);
-        for (int i = 0; i < partCount; i++) {
-            ossService.threadPoolExecutor.execute(new PartUploader(i, partSize, partCount, file,
-                    fileLength, filePath, uploadId, ossService.ossClient, partEtagList,
-                    countDownLatch, ossService.bucketName));
+    /**
+     * 不可随机写的输出流写完数据后不能回头改本地文件头, commons-compress对大小未知的deflate entry不写zip64扩展字段,
+     * 超过4G时closeArchiveEntry抛出Zip64RequiredException; 大小已知时先设置到entry上,
+     * 大小未知或者压缩后可能超过4G时这个entry强制使用zip64
+     *
+     * @param zipOutStream
+     * @param entry
+     * @param contentLength 源文件大小, 未知时为-1
+     * @return 是否强制了zip64, 是的话调用方在closeArchiveEntry之后改回AsNeeded
+     */
+    static boolean prepareZip64(ZipArchiveOutputStream zipOutStream, ZipArchiveEntry entry, long contentLength) {
+        if (contentLength >= 0) {
+            entry.setSize(contentLength);
+        }
+        // deflate遇到压缩不了的数据最多膨胀千分之一左右, 不到4G的文件压缩后也可能超过4G
+        if (zipOutStream.isSeekable() || (contentLength >= 0 && contentLength + contentLength / 1000 + 1024 < ZIP64_MAGIC)) {
+            return false;
         }
+        zipOutStream.setUseZip64(Zip64Mode.Always);
+        return true;
+    }
+
+    /**
+     * 多核并行压缩, 每个线程把压缩结果写到自己的scatter临时文件, 最后合并到压缩包,
+     * 压缩包内文件顺序不再保证和请求顺序一致; scatter临时文件放在spool目录, 占用配额
+     *
+     * @param prefetcher
+     * @param compressMethod
+     * @param zipOutStream
+     * @param compressMetrics
+     * @param progress
+     * @throws IOException
+     */
+    private static void writeZipEntriesParallel(ObjectPrefetcher prefetcher, ComEnum.CompressMethodEnum compressMethod,
+                                                ZipArchiveOutputStream zipOutStream, ZipMetrics.StageMetrics compressMetrics,
+                                                ZipProgress progress) throws IOException {
+        // writeTo会关闭传入的线程池, 共用的压缩线程池包一层视图, 关闭和取消只影响这个压缩任务提交的条目
+        ExecutorService deflatePool = new SharedExecutorView(ossService.compressPoolExecutor);
+        // writeTo只在合并结束时关闭scatter文件, 中途失败时由这里删除
+        List<SpoolScatterBackingStore> scatterStores = new CopyOnWriteArrayList<>();
         try {
-            countDownLatch.await();
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+            ParallelScatterZipCreator scatterZipCreator = new ParallelScatterZipCreator(deflatePool, () -> {
+                SpoolScatterBackingStore scatterStore = new SpoolScatterBackingStore(ossService.spoolManager);
+                scatterStores.add(scatterStore);
+                return scatterStore;
+            });
+            PrefetchedObject prefetched;
+            while ((prefetched = prefetcher.next()) != null) {
+                PrefetchedObject object = prefetched;
+                if (progress.isCancelled()) {
+                    object.close();
+                    progress.checkCancelled();
+                }
+                if (object.getError() != null) {
+                    log.error("[OssService] putZip getObject error, path={}", object.getPath());
+                    object.close();
+                    continue;
+                }
+                // 在压缩线程上打开文件并判断压缩方式, 读完后释放预取内存, 预取额度同时限制了排队等待压缩的数据量
+                scatterZipCreator.addArchiveEntry(() -> {
+                    // 压缩线程读完输入流后才关闭, 开始到关闭之间就是这个文件的压缩耗时
+                    long startNanos = System.nanoTime();
+                    BufferedInputStream inputStream = new BufferedInputStream(new FilterInputStream(object.openStream()) {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            progress.checkCancelled();
+                            int bytesRead = super.read(b, off, len);
+                            if (bytesRead > 0) {
+                                progress.addBytesRead(bytesRead);
+                            }
+                            return bytesRead;
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                object.close();
+                                compressMetrics.success(startNanos, object.getContentLength());
+                                progress.entryDone();
+                            }
+                        }
+                    });
+                    byte[] head = new byte[ZipMethodUtils.SNIFF_LENGTH];
+                    int headLength;
+                    try {
+                        inputStream.mark(head.length);
+                        headLength = IOUtils.readFully(inputStream, head);
+                        inputStream.reset();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    ZipArchiveEntry entry = new ZipArchiveEntry(object.getPath());
+                    BaseZipArchive.setETag(entry, object.getETag());
+                    // scatter文件里压缩完才合并, 合并时大小已经确定, 按大小决定是否需要zip64
+                    entry.setSize(object.getContentLength());
+                    entry.setMethod(ZipMethodUtils.resolveMethod(compressMethod, object.getPath(), object.getContentType(), head, headLength));
+                    return ZipArchiveEntryRequest.createZipArchiveEntryRequest(entry, () -> inputStream);
+                });
+            }
+            progress.checkCancelled();
+            scatterZipCreator.writeTo(zipOutStream);
+            log.info("[OssService] parallel zip finished, poolSize={}, statistics={}", ossService.compressPoolExecutor.getMaximumPoolSize(), scatterZipCreator.getStatisticsMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parallel zip");
+        } catch (ExecutionException e) {
+            throw new IOException("parallel zip error", e.getCause());
+        } finally {
+            deflatePool.shutdownNow();
+            for (SpoolScatterBackingStore scatterStore : scatterStores) {
+                try {
+                    scatterStore.close();
+                } catch (IOException e) {
+                    log.warn("[OssService] close scatter file error, e={}", e.getMessage());
+                }
+            }
         }
+    }
 
-        // 验证是否所有的分片都完成
-        if (partEtagList.size() != partCount) {
-            log.error("[OssService] Some files failed to upload, partETagsSize={}, partCount={}", partEtagList.size(), partCount);
-            throw new RuntimeException("OssService Some files failed to upload");
+    /**
+     * 每读满一个分片就提交上传, 上传和接收同时进行, 不落盘, 内存最多占用 streamConcurrency + 1 个分片
+     */
+    private static String streamingFragmentUpload(InputStream inputStream, String fileName, long sizeHint,
+                                                  String bizSource) throws IOException {
+        ZipConfigBean.Upload uploadConfig = ossService.zipConfigBean.getUpload();
+        long maxLength = sizeHint > 0 ? sizeHint : uploadConfig.getMaxFileSize().toBytes();
+        // 总大小在读完之前不知道, 分片取能放下最大文件的最小值, 分片越小占用内存越少
+        long partSize = Math.max(uploadConfig.getMinPartSize().toBytes(), (maxLength + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+        int concurrency = Math.max(1, Math.min(uploadConfig.getStreamConcurrency(), ThreadPoolConfig.maxConcurrency(ossService.uploadPoolExecutor)));
+        String filePath = getFilePath(bizSource, FileUploadUtils.getFileType(fileName), fileName);
+        OssMultipartOutputStream ossOutStream = new OssMultipartOutputStream(ossService.ossClient, ossService.bucketName, filePath,
+                (int) partSize, concurrency, ossService.uploadPoolExecutor, uploadConfig.getPartRetries(),
+                stage(ComEnum.StageEnum.uploadPart, bizSource), stage(ComEnum.StageEnum.completeUpload, bizSource));
+        try {
+            IOUtils.copy(inputStream, ossOutStream, 64 * 1024);
+            ossOutStream.close();
+        } catch (IOException | RuntimeException e) {
+            // 客户端断开或超过大小限制时不合并
+            ossOutStream.abort();
+            throw e;
         }
-        partEtagList.sort(Comparator.comparingInt(PartETag::getPartNumber));
-        CompleteMultipartUploadRequest completeUpload = new CompleteMultipartUploadRequest(ossService.bucketName, filePath, uploadId, partEtagList);
-        // 完成上传
-        ossService.ossClient.completeMultipartUpload(completeUpload);
+        log.info("[OssService] streaming fragmentUpload finished, filePath={}, fileLength={}, partSize={}",
+                filePath, ossOutStream.getTotalBytes(), partSize);
         return urlEncodeKey(filePath);
     }
 
+    /**
+     * 先写到临时文件, 之后每个分片按位置读取, 失败后同一个文件重传时可以续传
+     */
+    private static String fragmentUploadByTempFile(InputStream inputStream, String fileName, String bizSource) throws IOException {
+        String fileType = FileUploadUtils.getFileType(fileName);
+        File tempFile = File.createTempFile(UUID.randomUUID().toString(), "." + fileType);
+        try {
+            Files.copy(inputStream, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ)) {
+                return fragmentUpload(channel, tempFile.length(), bizSource, fileType, fileName);
+            }
+        } finally {
+            if (!tempFile.delete()) {
+                log.warn("[OssService] fragmentUpload delete temp file failed, path={}", tempFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * 有断点时只上传缺少的分片, 失败时保留断点和uploadId等待重传, 过期的由 sweepStaleMultipartUploads 清理
+     */
+    private static String fragmentUpload(FileChannel channel, long fileLength, String bizSource,
+                                         String fileType, String fileName) throws IOException {
+        UploadCheckpointStore checkpointStore = ossService.uploadCheckpointStore;
+        String checkpointKey = checkpointStore.isEnabled() ? checkpointKey(channel, fileLength, bizSource, fileName) : null;
+        if (checkpointKey != null && !checkpointStore.tryAcquire(checkpointKey)) {
+            // 同一个文件正在上传, 这次不使用断点
+            checkpointKey = null;
+        }
+        try {
+            ZipConfigBean.Upload uploadConfig = ossService.zipConfigBean.getUpload();
+            int concurrency = Math.max(1, Math.min(uploadConfig.getConcurrency(), ThreadPoolConfig.maxConcurrency(ossService.uploadPoolExecutor)));
+            UploadCheckpoint checkpoint = checkpointKey == null ? null : resumeCheckpoint(checkpointStore.load(checkpointKey), channel, fileLength);
+            if (checkpoint == null) {
+                long partSize = choosePartSize(fileLength, concurrency);
+                checkpoint = new UploadCheckpoint();
+                checkpoint.setKey(checkpointKey);
+                checkpoint.setObjectName(getFilePath(bizSource, fileType, fileName));
+                checkpoint.setFileLength(fileLength);
+                checkpoint.setPartSize(partSize);
+                // 计算分片数量
+                checkpoint.setPartCount((int) Math.max(1, (fileLength + partSize - 1) / partSize));
+                checkpoint.setCreateTime(System.currentTimeMillis());
+                InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(ossService.bucketName, checkpoint.getObjectName());
+                checkpoint.setUploadId(ossService.ossClient.initiateMultipartUpload(request).getUploadId());
+                if (checkpointKey != null) {
+                    checkpointStore.create(checkpoint);
+                }
+            }
+            String filePath = checkpoint.getObjectName();
+            String uploadId = checkpoint.getUploadId();
+            long partSize = checkpoint.getPartSize();
+            int partCount = checkpoint.getPartCount();
+
+            List<PartETag> partEtagList = new ArrayList<>(partCount);
+            Set<Integer> uploadedParts = new HashSet<>();
+            for (UploadCheckpoint.Part part : checkpoint.getParts()) {
+                partEtagList.add(new PartETag(part.getPartNumber(), part.getEtag(), part.getPartSize(), part.getPartCRC()));
+                uploadedParts.add(part.getPartNumber());
+            }
+            log.info("[OssService] fragmentUpload start, filePath={}, fileLength={}, partSize={}, partCount={}, resumedParts={}",
+                    filePath, fileLength, partSize, partCount, uploadedParts.size());
+
+            String key = checkpointKey;
+            Consumer<PartETag> onPartUploaded = key == null ? null : partETag -> checkpointStore.appendPart(key, toCheckpointPart(partETag));
+            CountDownLatch countDownLatch = new CountDownLatch(partCount - uploadedParts.size());
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Semaphore inFlight = new Semaphore(concurrency);
+            try {
+                for (int i = 0; i < partCount; i++) {
+                    if (uploadedParts.contains(i + 1)) {
+                        continue;
+                    }
+                    // 单个文件最多占用concurrency个线程, 大文件不会挤占其他任务
+                    inFlight.acquire();
+                    ossService.uploadPoolExecutor.execute(new PartUploader(i, partSize, partCount, channel,
+                            fileLength, filePath, uploadId, ossService.ossClient, partEtagList,
+                            countDownLatch, ossService.bucketName, inFlight, uploadConfig.getPartRetries(), failure, onPartUploaded,
+                            stage(ComEnum.StageEnum.uploadPart, bizSource)));
+                }
+                countDownLatch.await();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+
+            // 验证是否所有的分片都完成
+            if (failure.get() != null || partEtagList.size() != partCount) {
+                log.error("[OssService] Some files failed to upload, partETagsSize={}, partCount={}, resumable={}",
+                        partEtagList.size(), partCount, checkpointKey != null);
+                if (checkpointKey == null) {
+                    abortMultipartUpload(filePath, uploadId);
+                }
+                throw new RuntimeException("OssService Some files failed to upload", failure.get());
+            }
+            partEtagList.sort(Comparator.comparingInt(PartETag::getPartNumber));
+            CompleteMultipartUploadRequest completeUpload = new CompleteMultipartUploadRequest(ossService.bucketName, filePath, uploadId, partEtagList);
+            // 完成上传
+            ZipMetrics.StageMetrics completeMetrics = stage(ComEnum.StageEnum.completeUpload, bizSource);
+            long startNanos = System.nanoTime();
+            try {
+                ossService.ossClient.completeMultipartUpload(completeUpload);
+            } catch (RuntimeException e) {
+                completeMetrics.failure(startNanos);
+                throw e;
+            }
+            completeMetrics.success(startNanos, fileLength);
+            if (checkpointKey != null) {
+                checkpointStore.delete(checkpointKey);
+            }
+            return urlEncodeKey(filePath);
+        } finally {
+            if (checkpointKey != null) {
+                checkpointStore.release(checkpointKey);
+            }
+        }
+    }
+
+    /**
+     * 断点key, 业务系统+文件名+大小+文件头尾各1MB的crc64, 内容有变化的分片在续传时用crc64再校验一次
+     */
+    private static String checkpointKey(FileChannel channel, long fileLength, String bizSource, String fileName) throws IOException {
+        long sampleLength = Math.min(fileLength, 1024 * 1024L);
+        long headCrc = crc64(channel, 0, sampleLength);
+        long tailCrc = crc64(channel, fileLength - sampleLength, sampleLength);
+        String source = bizSource + "|" + fileName + "|" + fileLength + "|" + headCrc + "|" + tailCrc;
+        return DigestUtils.md5DigestAsHex(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 校验断点: uploadId还在, 分片的etag和大小与oss一致, 本地内容的crc64与上传时一致, 不一致的分片重新上传
+     *
+     * @return 可以续传的断点, 不能续传时返回null
+     */
+    private static UploadCheckpoint resumeCheckpoint(UploadCheckpoint checkpoint, FileChannel channel, long fileLength) throws IOException {
+        if (checkpoint == null || checkpoint.getFileLength() != fileLength) {
+            return null;
+        }
+        Map<Integer, PartSummary> ossParts = new HashMap<>();
+        try {
+            ListPartsRequest listPartsRequest = new ListPartsRequest(ossService.bucketName, checkpoint.getObjectName(), checkpoint.getUploadId());
+            PartListing partListing;
+            do {
+                partListing = ossService.ossClient.listParts(listPartsRequest);
+                partListing.getParts().forEach(part -> ossParts.put(part.getPartNumber(), part));
+                listPartsRequest.setPartNumberMarker(partListing.getNextPartNumberMarker());
+            } while (partListing.isTruncated());
+        } catch (OSSException e) {
+            log.warn("[OssService] checkpoint upload is gone, key={}, uploadId={}, e={}", checkpoint.getKey(), checkpoint.getUploadId(), e.getErrorCode());
+            return null;
+        }
+        List<UploadCheckpoint.Part> verifiedParts = new ArrayList<>();
+        for (UploadCheckpoint.Part part : checkpoint.getParts()) {
+            PartSummary ossPart = ossParts.get(part.getPartNumber());
+            if (ossPart == null || ossPart.getSize() != part.getPartSize()
+                    || !StringUtils.equalsIgnoreCase(trimETag(ossPart.getETag()), trimETag(part.getEtag()))) {
+                continue;
+            }
+            long startPos = (part.getPartNumber() - 1) * checkpoint.getPartSize();
+            if (part.getPartCRC() != null && crc64(channel, startPos, part.getPartSize()) != part.getPartCRC()) {
+                continue;
+            }
+            verifiedParts.add(part);
+        }
+        checkpoint.setParts(verifiedParts);
+        return checkpoint;
+    }
+
+    private static UploadCheckpoint.Part toCheckpointPart(PartETag partETag) {
+        UploadCheckpoint.Part part = new UploadCheckpoint.Part();
+        part.setPartNumber(partETag.getPartNumber());
+        part.setEtag(partETag.getETag());
+        part.setPartSize(partETag.getPartSize());
+        part.setPartCRC(partETag.getPartCRC());
+        return part;
+    }
+
+    private static String trimETag(String eTag) {
+        return StringUtils.strip(eTag, "\"");
+    }
+
+    private static long crc64(FileChannel channel, long start, long length) throws IOException {
+        CRC64 crc = new CRC64();
+        try (InputStream inputStream = new FileRangeInputStream(channel, start, length)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                crc.update(buffer, bytesRead);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 清理过期的断点: 超过staleAfter没更新的断点先取消它记录的分片上传, 再删除断点;
+     * 只取消本服务有断点的上传, bucket里其他服务的上传和正在上传的(断点被占用或最近有更新)都不动,
+     * 没有断点的上传失败时当场取消, 进程退出留下的交给bucket的生命周期规则清理
+     */
+    public static void sweepStaleMultipartUploads() {
+        ZipConfigBean.Checkpoint checkpointConfig = ossService.zipConfigBean.getCheckpoint();
+        long staleBefore = System.currentTimeMillis() - checkpointConfig.getStaleAfter().toMillis();
+        UploadCheckpointStore checkpointStore = ossService.uploadCheckpointStore;
+        int aborted = 0;
+        int deleted = 0;
+        for (String key : checkpointStore.listKeys()) {
+            if (checkpointStore.lastModified(key) >= staleBefore || !checkpointStore.tryAcquire(key)) {
+                continue;
+            }
+            try {
+                UploadCheckpoint checkpoint = checkpointStore.load(key);
+                if (checkpoint != null && StringUtils.isNotBlank(checkpoint.getUploadId())) {
+                    abortMultipartUpload(checkpoint.getObjectName(), checkpoint.getUploadId());
+                    aborted++;
+                }
+                checkpointStore.delete(key);
+                deleted++;
+            } finally {
+                checkpointStore.release(key);
+            }
+        }
+        log.info("[OssService] sweep stale multipart uploads, aborted={}, deletedCheckpoints={}", aborted, deleted);
+    }
+
+    /**
+     * 根据文件大小和并发数选择分片大小, 让每个线程分到几个分片, 同时不超过oss的10000片限制
+     *
+     * @param fileLength
+     * @param concurrency
+     * @return
+     */
+    private static long choosePartSize(long fileLength, int concurrency) {
+        ZipConfigBean.Upload uploadConfig = ossService.zipConfigBean.getUpload();
+        long minPartSize = uploadConfig.getMinPartSize().toBytes();
+        long maxPartSize = uploadConfig.getMaxPartSize().toBytes();
+        long partSize = (fileLength + concurrency * 4L - 1) / (concurrency * 4L);
+        partSize = Math.max(minPartSize, Math.min(maxPartSize, partSize));
+        return Math.max(partSize, (fileLength + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+    }
+
+    private static void abortMultipartUpload(String filePath, String uploadId) {
+        try {
+            ossService.ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(ossService.bucketName, filePath, uploadId));
+        } catch (Exception e) {
+            log.error("[OssService] abortMultipartUpload error, filePath={}, e={}", filePath, e);
+        }
+    }
+
     /**
      * 拼接 业务系统/上传日期/文件类型/文件名(时间搓+uuid)
      * https://da-net-disk.oss-cn-hangzhou.aliyuncs.com/disk/2023-07-21/csv/1689905357258AccessKey.csv
@@ -290,61 +1286,118 @@ public class OssUtils {
     /**
      * 通过文件路径从oss下载, 并压缩, 再把压缩包写入到临时文件中, 返回临时文件的路径, 之后告诉网盘系统重定向到 /zipServicePlatform/downloadZipFile 根据临时文件路径下载
      *
-     * @param ossFilePathList
-     * @param bizSource
+     * @param zipRequest
+     * @param progress   取消时删除临时文件
      */
-    public static String putZipToTempFile(List<String> ossFilePathList, String bizSource) {
-        File tempFile;
+    public static String putZipToTempFile(ZipRequest zipRequest, ZipProgress progress) {
+        SpoolManager spoolManager = ossService.spoolManager;
+        Supplier<List<ObjectMetadata>> metadata = sourceMetadata(zipRequest, progress);
+        // 先按源文件大小预留空间, 放不下直接拒绝, 不用等压缩到一半才发现磁盘满了; 按前缀或清单压缩时边写边预留
+        SpoolManager.SpoolFile spoolFile = spoolManager.allocate(projectZipSize(zipRequest, metadata));
         try {
-            tempFile = File.createTempFile(UUID.randomUUID().toString(), ".zip");
-            try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
-                int batchSize = 10;
-                List<List<String>> batches = splitListIntoBatches(ossFilePathList, batchSize);
-                for (List<String> batch : batches) {
-                    for (String filePathEach : batch) {
-                        OSSObject ossObject;
-                        try {
-                            ossObject = ossService.ossClient.getObject(ossService.bucketName, filePathEach);
-                        } catch (Exception e) {
-                            log.error("[OssService] putZip getObject error, ", e);
-                            continue;
-                        }
-                        try (InputStream inputStream = new BufferedInputStream(ossObject.getObjectContent())) {
-                            ZipArchiveEntry entry = new ZipArchiveEntry(filePathEach);
-                            zipOutStream.putArchiveEntry(entry);
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                zipOutStream.write(buffer, 0, bytesRead);
-                            }
-                            zipOutStream.closeArchiveEntry();
-                        } finally {
-                            if (ossObject != null) {
-                                try {
-                                    ossObject.close();
-                                } catch (IOException e) {
-                                    log.error("Error closing OSSObject", e);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            return tempFile.getPath();
+            writeZipToSpool(zipRequest, spoolFile, metadata, progress);
+            progress.checkCancelled();
+            spoolManager.complete(spoolFile);
+            return spoolFile.getFile().getPath();
         } catch (Exception e) {
-            log.error("[OssService] putZip error, ossFilePath={}, e={}", ossFilePathList, e);
+            spoolManager.release(spoolFile);
+            if (progress.isCancelled()) {
+                log.info("[OssService] putZip to temp file cancelled, path={}", spoolFile.getFile().getPath());
+                progress.checkCancelled();
+            }
+            log.error("[OssService] putZip error, ossFilePath={}, e={}", zipRequest.getOssFilePathList(), e);
             throw new RuntimeException("OssService putZip error");
         }
     }
 
+    /**
+     * 临时压缩包事先预留的大小, 按前缀或清单压缩时拿不到文件列表, 从0开始随写入追加预留
+     *
+     * @param zipRequest
+     * @param metadata
+     * @return
+     */
+    private static long projectZipSize(ZipRequest zipRequest, Supplier<List<ObjectMetadata>> metadata) {
+        return OssPathIterator.isListing(zipRequest) ? 0 : estimateZipSize(zipRequest, metadata.get());
+    }
+
+    /**
+     * 估算压缩包最大大小, 按不压缩加上每个entry的头和中央目录算
+     *
+     * @param zipRequest
+     * @param metadataList 和ossFilePathList一一对应
+     * @return
+     */
+    private static long estimateZipSize(ZipRequest zipRequest, List<ObjectMetadata> metadataList) {
+        List<String> ossFilePathList = zipRequest.getOssFilePathList();
+        long contentBytes = 0;
+        long headerBytes = ZIP_END_OVERHEAD;
+        for (int i = 0; i < metadataList.size(); i++) {
+            // 获取不到的文件压缩时也会跳过
+            if (metadataList.get(i) != null) {
+                contentBytes += metadataList.get(i).getContentLength();
+            }
+            headerBytes += ZIP_ENTRY_OVERHEAD + 2L * ossFilePathList.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        // deflate遇到压缩不了的数据最多膨胀千分之一左右
+        return contentBytes + contentBytes / 1000 + headerBytes;
+    }
+
+    /**
+     * 源文件元数据, 第一次用到时才HEAD, 同一个任务的缓存key, 临时文件预留和增量压缩共用一次HEAD的结果
+     *
+     * @param zipRequest
+     * @param progress
+     * @return
+     */
+    private static Supplier<List<ObjectMetadata>> sourceMetadata(ZipRequest zipRequest, ZipProgress progress) {
+        return Suppliers.memoize(() -> headObjects(zipRequest, progress));
+    }
+
+    /**
+     * 并发HEAD所有源文件, 获取失败的位置为null; 和预取一样单个任务最多同时占用concurrency个下载线程,
+     * 不一次把所有请求塞进共用的下载线程池, 挤占其他任务的预取
+     *
+     * @param zipRequest
+     * @param progress   取消时停止提交
+     * @return 和ossFilePathList一一对应
+     */
+    private static List<ObjectMetadata> headObjects(ZipRequest zipRequest, ZipProgress progress) {
+        List<String> ossFilePathList = zipRequest.getOssFilePathList();
+        OSS sourceClient = sourceClient(zipRequest);
+        String sourceBucket = sourceBucket(zipRequest);
+        int concurrency = Math.max(1, ossService.zipConfigBean.getPrefetch().getConcurrency());
+        List<ObjectMetadata> metadataList = new ArrayList<>(ossFilePathList.size());
+        Deque<Future<ObjectMetadata>> inFlight = new ArrayDeque<>(concurrency);
+        int submitted = 0;
+        try {
+            while (metadataList.size() < ossFilePathList.size()) {
+                while (submitted < ossFilePathList.size() && inFlight.size() < concurrency) {
+                    String path = ossFilePathList.get(submitted++);
+                    inFlight.addLast(ossService.downloadPoolExecutor.submit(() -> sourceClient.getObjectMetadata(sourceBucket, path)));
+                }
+                progress.checkCancelled();
+                try {
+                    metadataList.add(inFlight.pollFirst().get());
+                } catch (ExecutionException e) {
+                    log.warn("[OssService] head object error, ossFilePath={}, e={}", ossFilePathList.get(metadataList.size()), e.getCause().getMessage());
+                    metadataList.add(null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("OssService head objects interrupted");
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+        }
+        return metadataList;
+    }
+
     /**
      * 释放资源
      */
     public void destroy() {
-        if (ossClient != null) {
-            ossClient.shutdown();
-            log.info("[OssService] ossClient shutdown");
-        }
+        ossClientRegistry.shutdown();
     }
 
 }
@@ -0,0 +1,130 @@
+package com.ziptooss.platform.zip.util;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * @author yukun.yan
+ * @description ZipMethodUtils 根据扩展名, contentType和文件头判断文件是否值得压缩
+ * @date 2023/8/9 11:20
+ */
+public class ZipMethodUtils {
+
+    /**
+     * 判断文件类型需要读取的文件头长度
+     */
+    public static final int SNIFF_LENGTH = 16;
+
+    /**
+     * 本身已经压缩过的格式, 再deflate基本没有收益
+     */
+    private static final Set<String> INCOMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp4", "m4v", "mov", "mkv", "avi", "wmv", "flv", "webm",
+            "mp3", "m4a", "aac", "ogg", "flac", "wma",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "lz4", "jar", "apk", "ipa",
+            "docx", "xlsx", "pptx", "pdf"
+    ));
+
+    private static final Set<String> INCOMPRESSIBLE_CONTENT_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/pdf", "application/java-archive", "application/vnd.android.package-archive"
+    ));
+
+    /**
+     * 图片里只有这几种没压缩过
+     */
+    private static final Set<String> COMPRESSIBLE_IMAGE_TYPES = new HashSet<>(Arrays.asList(
+            "image/bmp", "image/x-ms-bmp", "image/tiff", "image/svg+xml", "image/x-icon"
+    ));
+
+    private ZipMethodUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 选择压缩包内文件的压缩方式, 优先级: 请求指定 > 文件头 > contentType > 扩展名
+     *
+     * @param compressMethod 请求指定的压缩方式, 为空或auto时自动判断
+     * @param path           文件路径
+     * @param contentType    oss返回的contentType
+     * @param head           文件头
+     * @param headLength     文件头有效长度
+     * @return ZipEntry.STORED 或 ZipEntry.DEFLATED
+     */
+    public static int resolveMethod(ComEnum.CompressMethodEnum compressMethod, String path, String contentType,
+                                    byte[] head, int headLength) {
+        if (compressMethod == ComEnum.CompressMethodEnum.stored) {
+            return ZipEntry.STORED;
+        }
+        if (compressMethod == ComEnum.CompressMethodEnum.deflated) {
+            return ZipEntry.DEFLATED;
+        }
+        return isIncompressible(path, contentType, head, headLength) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+    }
+
+    public static boolean isIncompressible(String path, String contentType, byte[] head, int headLength) {
+        if (head != null && isCompressedMagic(head, headLength)) {
+            return true;
+        }
+        if (StringUtils.isNotBlank(contentType)) {
+            String type = StringUtils.substringBefore(contentType, ";").trim().toLowerCase(Locale.ROOT);
+            if (INCOMPRESSIBLE_CONTENT_TYPES.contains(type)
+                    || type.startsWith("video/")
+                    || (type.startsWith("audio/") && !type.contains("wav"))
+                    || (type.startsWith("image/") && !COMPRESSIBLE_IMAGE_TYPES.contains(type))) {
+                return true;
+            }
+        }
+        String fileName = path.contains("/") ? StringUtils.substringAfterLast(path, "/") : path;
+        String extension = StringUtils.substringAfterLast(fileName, ".");
+        return INCOMPRESSIBLE_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 常见压缩格式的文件头
+     */
+    private static boolean isCompressedMagic(byte[] head, int length) {
+        return startsWith(head, length, 0xFF, 0xD8, 0xFF)                              // jpeg
+                || startsWith(head, length, 0x89, 'P', 'N', 'G')                       // png
+                || startsWith(head, length, 'G', 'I', 'F', '8')                        // gif
+                || (startsWith(head, length, 'R', 'I', 'F', 'F')
+                && matchesAt(head, length, 8, 'W', 'E', 'B', 'P'))                     // webp
+                || matchesAt(head, length, 4, 'f', 't', 'y', 'p')                      // mp4 mov heic
+                || startsWith(head, length, 0x1A, 0x45, 0xDF, 0xA3)                    // mkv webm
+                || startsWith(head, length, 'P', 'K', 0x03, 0x04)                      // zip docx jar
+                || startsWith(head, length, 0x1F, 0x8B)                                // gzip
+                || startsWith(head, length, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)          // 7z
+                || startsWith(head, length, 'R', 'a', 'r', '!')                        // rar
+                || startsWith(head, length, 'B', 'Z', 'h')                             // bzip2
+                || startsWith(head, length, 0xFD, '7', 'z', 'X', 'Z', 0x00)            // xz
+                || startsWith(head, length, 0x28, 0xB5, 0x2F, 0xFD)                    // zstd
+                || startsWith(head, length, '%', 'P', 'D', 'F')                        // pdf
+                || startsWith(head, length, 'I', 'D', '3')                             // mp3
+                || startsWith(head, length, 'O', 'g', 'g', 'S')                        // ogg
+                || startsWith(head, length, 'f', 'L', 'a', 'C');                       // flac
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        return matchesAt(head, length, 0, magic);
+    }
+
+    private static boolean matchesAt(byte[] head, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
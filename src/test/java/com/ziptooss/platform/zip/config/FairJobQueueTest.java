@@ -0,0 +1,101 @@
+package com.ziptooss.platform.zip.config;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author yukun.yan
+ * @description FairJobQueueTest 不经过线程池, 直接poll出任务, run结束时释放执行名额
+ * @date 2023/8/27 18:00
+ */
+public class FairJobQueueTest {
+
+    private final ZipConfigBean.Fair fairConfig = new ZipConfigBean.Fair();
+
+    private final List<String> executed = new ArrayList<>();
+
+    @Test
+    public void dequeuesByWeight() {
+        fairConfig.getWeights().put("a", 3);
+        FairJobQueue queue = new FairJobQueue(fairConfig, 10, 100);
+        submit(queue, "a", 6);
+        submit(queue, "b", 3);
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            task.run();
+        }
+        assertThat(String.join("", executed)).isEqualTo("aaabaaabb");
+        assertThat(queue).isEmpty();
+    }
+
+    @Test
+    public void enforcesConfiguredMaxRunning() {
+        fairConfig.getMaxRunning().put("a", 2);
+        FairJobQueue queue = new FairJobQueue(fairConfig, 4, 100);
+        submit(queue, "a", 3);
+        Runnable first = queue.poll();
+        assertThat(first).isNotNull();
+        assertThat(queue.poll()).isNotNull();
+        // 其他线程还空着, 配置的上限照样生效
+        assertThat(queue.poll()).isNull();
+        first.run();
+        assertThat(queue.poll()).isNotNull();
+    }
+
+    @Test
+    public void singleTenantCanUseAllWorkers() {
+        FairJobQueue queue = new FairJobQueue(fairConfig, 3, 100);
+        submit(queue, "a", 4);
+        assertThat(queue.poll()).isNotNull();
+        assertThat(queue.poll()).isNotNull();
+        assertThat(queue.poll()).isNotNull();
+        assertThat(queue.poll()).isNull();
+        assertThat(queue).hasSize(1);
+    }
+
+    @Test
+    public void reservesOneWorkerWhileOtherTenantsWait() {
+        FairJobQueue queue = new FairJobQueue(fairConfig, 3, 100);
+        submit(queue, "a", 4);
+        assertThat(queue.poll()).isNotNull();
+        assertThat(queue.poll()).isNotNull();
+        submit(queue, "b", 1);
+        // a已经占了两个线程, b在排队, 第三个线程留给b
+        queue.poll().run();
+        assertThat(executed).containsExactly("b");
+        // b没有排队任务了, a可以用满三个线程
+        assertThat(queue.poll()).isNotNull();
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        fairConfig.setTenantQueueCapacity(2);
+        FairJobQueue queue = new FairJobQueue(fairConfig, 2, 3);
+        assertThat(queue.offer(task(queue, "a"))).isTrue();
+        assertThat(queue.offer(task(queue, "a"))).isTrue();
+        // 业务系统自己的排队数到达上限
+        assertThat(queue.offer(task(queue, "a"))).isFalse();
+        assertThat(queue.offer(task(queue, "b"))).isTrue();
+        // 总排队数到达上限
+        assertThat(queue.offer(task(queue, "c"))).isFalse();
+        assertThat(queue.remainingCapacity()).isZero();
+        queue.poll();
+        assertThat(queue.offer(task(queue, "c"))).isTrue();
+    }
+
+    private void submit(FairJobQueue queue, String tenant, int count) {
+        for (int i = 0; i < count; i++) {
+            assertThat(queue.offer(task(queue, tenant))).isTrue();
+        }
+    }
+
+    private FairJobQueue.TenantTask task(FairJobQueue queue, String tenant) {
+        return new FairJobQueue.TenantTask(queue, tenant, () -> executed.add(tenant));
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.ziptooss.platform.zip.config;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author yukun.yan
+ * @description VirtualThreadExecutorTest 用平台线程工厂测试, jdk8上也能跑
+ * @date 2023/8/27 16:00
+ */
+public class VirtualThreadExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private VirtualThreadExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void limitsConcurrencyAndCountsWaitingTasks() throws Exception {
+        executor = new VirtualThreadExecutor(Executors.defaultThreadFactory(), 2, 10, false);
+        for (int i = 0; i < 5; i++) {
+            executor.execute(this::block);
+        }
+        waitUntil(() -> running.get() == 2 && executor.getQueueSize() == 3);
+        assertThat(executor.getActiveCount()).isEqualTo(2);
+        assertThat(executor.getRemainingQueueCapacity()).isEqualTo(7);
+        release.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(peak.get()).isEqualTo(2);
+        assertThat(executor.getRemainingQueueCapacity()).isEqualTo(10);
+    }
+
+    /**
+     * 预取按提交顺序发放内存额度, 排队的任务必须按提交顺序开始, 否则后面的任务占满名额等前面的任务, 互相等死
+     */
+    @Test(timeout = 10000)
+    public void startsQueuedTasksInSubmissionOrder() throws Exception {
+        executor = new VirtualThreadExecutor(Executors.defaultThreadFactory(), 3, 100, false);
+        Semaphore gate = new Semaphore(0);
+        List<Integer> started = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 30; i++) {
+            int index = i;
+            executor.execute(() -> {
+                started.add(index);
+                gate.acquireUninterruptibly();
+            });
+        }
+        waitUntil(() -> started.size() == 3);
+        // 每次只让一个任务结束, 空出的名额只能给队首任务
+        for (int i = 3; i < 30; i++) {
+            gate.release();
+            int expected = i + 1;
+            waitUntil(() -> started.size() == expected);
+        }
+        gate.release(3);
+        executor.shutdown();
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(started.subList(0, 3)).containsExactlyInAnyOrder(0, 1, 2);
+        assertThat(started.subList(3, 30)).isEqualTo(IntStream.range(3, 30).boxed().collect(Collectors.toList()));
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsWhenQueueIsFull() {
+        executor = new VirtualThreadExecutor(Executors.defaultThreadFactory(), 1, 1, false);
+        executor.execute(this::block);
+        executor.execute(this::block);
+        assertThatThrownBy(() -> executor.execute(this::block)).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test(timeout = 10000)
+    public void blocksSubmitterWhenQueueIsFull() throws Exception {
+        executor = new VirtualThreadExecutor(Executors.defaultThreadFactory(), 1, 1, true);
+        executor.execute(this::block);
+        executor.execute(this::block);
+        ExecutorService submitter = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> third = submitter.submit(() -> executor.execute(this::block));
+            Thread.sleep(100);
+            assertThat(third.isDone()).isFalse();
+            release.countDown();
+            third.get();
+        } finally {
+            submitter.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownNowInterruptsRunningAndDropsWaitingTasks() throws Exception {
+        executor = new VirtualThreadExecutor(Executors.defaultThreadFactory(), 1, 10, false);
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(() -> {
+                started.incrementAndGet();
+                block();
+            });
+        }
+        waitUntil(() -> started.get() == 1 && executor.getQueueSize() == 2);
+        assertThat(executor.shutdownNow()).hasSize(2);
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(started.get()).isEqualTo(1);
+        assertThatThrownBy(() -> executor.execute(this::block)).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    private void block() {
+        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+}
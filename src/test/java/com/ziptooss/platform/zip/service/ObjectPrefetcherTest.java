@@ -0,0 +1,144 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.ziptooss.platform.zip.util.ComEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author yukun.yan
+ * @description ObjectPrefetcherTest
+ * @date 2023/8/27 15:00
+ */
+public class ObjectPrefetcherTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 占用额度后读取失败, 额度要归还, 否则后面和额度一样大的文件永远等不到内存
+     */
+    @Test(timeout = 10000)
+    public void releasesBudgetWhenBufferedReadFails() throws Exception {
+        Map<String, byte[]> contents = new HashMap<>();
+        Map<String, Long> lengths = new HashMap<>();
+        contents.put("truncated", new byte[50]);
+        lengths.put("truncated", 100L);
+        contents.put("next", new byte[100]);
+        lengths.put("next", 100L);
+        try (ObjectPrefetcher prefetcher = prefetcher(oss(contents, lengths), new String[]{"truncated", "next"}, 100)) {
+            try (PrefetchedObject truncated = prefetcher.next()) {
+                assertThat(truncated.getError()).isNotNull();
+            }
+            try (PrefetchedObject next = prefetcher.next()) {
+                assertThat(next.getError()).isNull();
+                assertThat(next.getData()).hasSize(100);
+            }
+            assertThat(prefetcher.next()).isNull();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void budgetIsReservedInTicketOrder() throws Exception {
+        ObjectPrefetcher.ByteBudget budget = new ObjectPrefetcher.ByteBudget(100);
+        Future<?> second = executor.submit(() -> reserve(budget, 1, 10));
+        // 额度足够, 但前面的票号还没占用
+        assertNotDone(second);
+        budget.reserve(0, 10);
+        second.get();
+    }
+
+    @Test(timeout = 10000)
+    public void budgetWaitsForReleasedBytes() throws Exception {
+        ObjectPrefetcher.ByteBudget budget = new ObjectPrefetcher.ByteBudget(100);
+        budget.reserve(0, 80);
+        Future<?> second = executor.submit(() -> reserve(budget, 1, 50));
+        assertNotDone(second);
+        budget.release(80);
+        second.get();
+    }
+
+    @Test(timeout = 10000)
+    public void skippedTicketLetsLaterTicketsProceed() throws Exception {
+        ObjectPrefetcher.ByteBudget budget = new ObjectPrefetcher.ByteBudget(100);
+        Future<?> third = executor.submit(() -> reserve(budget, 2, 100));
+        Future<?> second = executor.submit(() -> budget.skip(1));
+        assertNotDone(third);
+        assertNotDone(second);
+        // 第一个任务失败, 没有占用额度
+        budget.skip(0);
+        second.get();
+        third.get();
+    }
+
+    @Test(timeout = 10000)
+    public void closeWakesWaitingReserve() throws Exception {
+        ObjectPrefetcher.ByteBudget budget = new ObjectPrefetcher.ByteBudget(100);
+        Future<?> second = executor.submit(() -> reserve(budget, 1, 10));
+        assertNotDone(second);
+        budget.close();
+        assertThatThrownBy(second::get).hasCauseInstanceOf(CancellationException.class);
+    }
+
+    private static void reserve(ObjectPrefetcher.ByteBudget budget, long ticket, long bytes) {
+        try {
+            budget.reserve(ticket, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertNotDone(Future<?> future) throws InterruptedException {
+        Thread.sleep(100);
+        assertThat(future.isDone()).isFalse();
+    }
+
+    private ObjectPrefetcher prefetcher(OSS oss, String[] paths, long maxInFlightBytes) {
+        ZipMetrics zipMetrics = new ZipMetrics();
+        ReflectionTestUtils.setField(zipMetrics, "meterRegistry", new SimpleMeterRegistry());
+        return new ObjectPrefetcher(oss, "bucket", Arrays.asList(paths).iterator(), 2, maxInFlightBytes, maxInFlightBytes,
+                executor, zipMetrics.stage(ComEnum.StageEnum.ossFetch, "test"), null, executor, new ZipProgress());
+    }
+
+    /**
+     * 只实现getObject, 返回的内容长度可以和元数据不一致
+     */
+    private static OSS oss(Map<String, byte[]> contents, Map<String, Long> lengths) {
+        return (OSS) Proxy.newProxyInstance(OSS.class.getClassLoader(), new Class<?>[]{OSS.class}, (proxy, method, args) -> {
+            if (!"getObject".equals(method.getName()) || args.length != 2) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            String key = (String) args[1];
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(lengths.get(key));
+            metadata.setHeader("ETag", "\"" + key + "\"");
+            OSSObject ossObject = new OSSObject();
+            ossObject.setKey(key);
+            ossObject.setObjectMetadata(metadata);
+            ossObject.setObjectContent(new ByteArrayInputStream(contents.get(key)));
+            return ossObject;
+        });
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.ziptooss.platform.zip.service;
+
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.ziptooss.platform.zip.api.ZipRequest;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author yukun.yan
+ * @description OssPathIteratorTest
+ * @date 2023/8/27 17:00
+ */
+public class OssPathIteratorTest {
+
+    private static final String MANIFEST = "manifest.txt";
+
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    @Test
+    public void readsManifestLinesAcrossRanges() throws Exception {
+        List<String> expected = new ArrayList<>();
+        StringBuilder manifest = new StringBuilder();
+        // 超过两块, 分块边界落在行中间, 路径里有多字节字符
+        for (int i = 0; i < 100000; i++) {
+            String path = "目录/文件-" + i + ".txt";
+            expected.add(path);
+            manifest.append(path).append(i % 10 == 0 ? "\r\n" : "\n");
+            if (i % 100 == 0) {
+                manifest.append("  \n");
+            }
+        }
+        manifest.append("last/no-newline.txt");
+        expected.add("last/no-newline.txt");
+        byte[] content = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        assertThat(content.length).isGreaterThan(2 * 1024 * 1024);
+
+        assertThat(readAll(content)).isEqualTo(expected);
+        assertThat(rangeRequests.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void readsEmptyManifest() throws Exception {
+        assertThat(readAll(new byte[0])).isEmpty();
+        assertThat(rangeRequests.get()).isZero();
+    }
+
+    private List<String> readAll(byte[] content) throws Exception {
+        ZipRequest zipRequest = new ZipRequest();
+        zipRequest.setManifestPath(MANIFEST);
+        List<String> paths = new ArrayList<>();
+        try (OssPathIterator iterator = OssPathIterator.open(oss(content), "bucket", zipRequest, MANIFEST)) {
+            iterator.forEachRemaining(paths::add);
+            assertThat(iterator.getCount()).isEqualTo(paths.size());
+        }
+        return paths;
+    }
+
+    /**
+     * 只实现HEAD和带range的GET, 每个range都要带上HEAD拿到的ETag
+     */
+    private OSS oss(byte[] content) {
+        return (OSS) Proxy.newProxyInstance(OSS.class.getClassLoader(), new Class<?>[]{OSS.class}, (proxy, method, args) -> {
+            if ("getObjectMetadata".equals(method.getName()) && args.length == 2) {
+                return metadata(content.length);
+            }
+            if (!"getObject".equals(method.getName()) || args.length != 1) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            GetObjectRequest request = (GetObjectRequest) args[0];
+            assertThat(request.getMatchingETagConstraints()).containsExactly("\"etag\"");
+            long[] range = request.getRange();
+            int length = (int) (range[1] - range[0] + 1);
+            rangeRequests.incrementAndGet();
+            OSSObject ossObject = new OSSObject();
+            ossObject.setKey(request.getKey());
+            ossObject.setObjectMetadata(metadata(length));
+            ossObject.setObjectContent(new ByteArrayInputStream(content, (int) range[0], length));
+            return ossObject;
+        });
+    }
+
+    private static ObjectMetadata metadata(long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        metadata.setHeader("ETag", "\"etag\"");
+        return metadata;
+    }
+
+}
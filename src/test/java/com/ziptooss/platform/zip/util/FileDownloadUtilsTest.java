@@ -0,0 +1,160 @@
+package com.ziptooss.platform.zip.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author yukun.yan
+ * @description FileDownloadUtilsTest
+ * @date 2023/8/27 14:00
+ */
+public class FileDownloadUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        file = temporaryFolder.newFile("test.zip");
+        Files.write(file.toPath(), content);
+    }
+
+    @Test
+    public void sendsWholeFileWithoutRange() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request(null), response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    public void sendsSuffixRange() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=-10"), response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 90-99/100");
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(content, 90, 100));
+    }
+
+    @Test
+    public void suffixRangeLongerThanFileSendsWholeFile() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=-500"), response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 0-99/100");
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    public void rangeBeforeEndIsNotReportedAsDownloaded() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=0-9"), response)).isFalse();
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(content, 0, 10));
+    }
+
+    @Test
+    public void rejectsRangeStartingPastEnd() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=100-"), response)).isFalse();
+        assertThat(response.getStatus()).isEqualTo(416);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */100");
+    }
+
+    @Test
+    public void rejectsMalformedRange() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=9-0"), response)).isFalse();
+        assertThat(response.getStatus()).isEqualTo(416);
+    }
+
+    @Test
+    public void sendsMultipleRangesAsByteranges() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request("bytes=0-1,-2"), response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentType()).startsWith("multipart/byteranges; boundary=");
+        String boundary = response.getContentType().substring("multipart/byteranges; boundary=".length());
+        String body = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 0-1/100\r\n\r\n"
+                + new String(new byte[]{0, 1}, StandardCharsets.ISO_8859_1)
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 98-99/100\r\n\r\n"
+                + new String(new byte[]{98, 99}, StandardCharsets.ISO_8859_1)
+                + "\r\n--" + boundary + "--\r\n";
+        assertThat(body).isEqualTo(expected);
+    }
+
+    @Test
+    public void ignoresRangeWhenIfRangeDoesNotMatch() throws Exception {
+        MockHttpServletRequest request = request("bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"stale\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request, response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    public void ignoresRangeWhenIfRangeCannotBeParsed() throws Exception {
+        MockHttpServletRequest request = request("bytes=0-9");
+        request.addHeader(HttpHeaders.IF_RANGE, "not a date");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request, response)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    public void sendfileIsNotReportedAsDownloaded() throws Exception {
+        MockHttpServletRequest request = request(null);
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request, response)).isFalse();
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isEqualTo(file.getCanonicalPath());
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(100L);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    public void copiesWhenSendfileIsDisabled() throws Exception {
+        MockHttpServletRequest request = request(null);
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(FileDownloadUtils.download(file, request, response, false)).isTrue();
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isNull();
+        assertThat(response.getContentAsByteArray()).isEqualTo(content);
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/zipServicePlatform/downloadZipFile");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        return request;
+    }
+
+}
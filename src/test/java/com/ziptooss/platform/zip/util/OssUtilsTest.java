@@ -0,0 +1,128 @@
+package com.ziptooss.platform.zip.util;
+
+import com.aliyun.oss.model.ObjectMetadata;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author yukun.yan
+ * @description OssUtilsTest
+ * @date 2023/8/27 10:00
+ */
+public class OssUtilsTest {
+
+    private static final long LARGE_ENTRY_SIZE = 4L * 1024 * 1024 * 1024 + 1024 * 1024;
+
+    /**
+     * 两个1000字节, 文件名1字节的文件刚好放满一卷: 128 + 2 * (1000 + 1 + 160 + 2)
+     */
+    private static final long TWO_ENTRIES_VOLUME_SIZE = 128 + 2 * (1000 + 1 + 160 + 2);
+
+    /**
+     * 不可随机写的输出流上大小未知的entry超过4G, 需要zip64才能写完, 读回来的大小要一致
+     */
+    @Test
+    public void writesLargeEntryOfUnknownSizeToNonSeekableStream() throws Exception {
+        PipedInputStream pipeIn = new PipedInputStream(1024 * 1024);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+        CompletableFuture<ZipArchiveEntry> reader = CompletableFuture.supplyAsync(() -> {
+            try (ZipArchiveInputStream zipInStream = new ZipArchiveInputStream(pipeIn)) {
+                ZipArchiveEntry entry = zipInStream.getNextZipEntry();
+                byte[] buffer = new byte[1024 * 1024];
+                while (zipInStream.read(buffer) != -1) {
+                    // 丢弃数据
+                }
+                // 关闭当前entry时才读数据描述符里的大小, 后面只剩中央目录
+                assertThat(zipInStream.getNextZipEntry()).isNull();
+                return entry;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(pipeOut)) {
+            assertThat(zipOutStream.isSeekable()).isFalse();
+            // 和只打包不压缩的大文件一样用0级deflate, 测试不用花时间压缩
+            zipOutStream.setLevel(Deflater.NO_COMPRESSION);
+            ZipArchiveEntry entry = new ZipArchiveEntry("large.bin");
+            boolean forcedZip64 = OssUtils.prepareZip64(zipOutStream, entry, -1);
+            assertThat(forcedZip64).isTrue();
+            zipOutStream.putArchiveEntry(entry);
+            byte[] buffer = new byte[1024 * 1024];
+            for (long written = 0; written < LARGE_ENTRY_SIZE; written += buffer.length) {
+                zipOutStream.write(buffer, 0, (int) Math.min(buffer.length, LARGE_ENTRY_SIZE - written));
+            }
+            zipOutStream.closeArchiveEntry();
+            zipOutStream.setUseZip64(Zip64Mode.AsNeeded);
+        }
+        ZipArchiveEntry entry = reader.get();
+        assertThat(entry.getName()).isEqualTo("large.bin");
+        assertThat(entry.getSize()).isEqualTo(LARGE_ENTRY_SIZE);
+    }
+
+    @Test
+    public void setsKnownSizeWithoutForcingZip64ForSmallEntries() throws IOException {
+        try (ZipArchiveOutputStream zipOutStream = new ZipArchiveOutputStream(new ByteArrayOutputStream())) {
+            ZipArchiveEntry entry = new ZipArchiveEntry("small.txt");
+            assertThat(OssUtils.prepareZip64(zipOutStream, entry, 1024)).isFalse();
+            assertThat(entry.getSize()).isEqualTo(1024);
+
+            ZipArchiveEntry nearLimit = new ZipArchiveEntry("near-limit.bin");
+            assertThat(OssUtils.prepareZip64(zipOutStream, nearLimit, 0xFFFFFFFFL - 1024)).isTrue();
+            assertThat(nearLimit.getSize()).isEqualTo(0xFFFFFFFFL - 1024);
+        }
+    }
+
+    @Test
+    public void plansSingleVolumeWhenEverythingFits() {
+        List<List<String>> volumes = OssUtils.planVolumes(Arrays.asList("a", "b", "c"),
+                Arrays.asList(metadata(10), metadata(10), metadata(10)), 1024 * 1024);
+        assertThat(volumes).containsExactly(Arrays.asList("a", "b", "c"));
+    }
+
+    @Test
+    public void plansVolumeFilledExactlyToTheLimit() {
+        List<String> paths = Arrays.asList("a", "b", "c");
+        List<ObjectMetadata> metadataList = Arrays.asList(metadata(1000), metadata(1000), metadata(1000));
+        assertThat(OssUtils.planVolumes(paths, metadataList, TWO_ENTRIES_VOLUME_SIZE))
+                .containsExactly(Arrays.asList("a", "b"), Collections.singletonList("c"));
+        assertThat(OssUtils.planVolumes(paths, metadataList, TWO_ENTRIES_VOLUME_SIZE - 1))
+                .containsExactly(Collections.singletonList("a"), Collections.singletonList("b"), Collections.singletonList("c"));
+    }
+
+    @Test
+    public void plansOversizedFileInItsOwnVolume() {
+        List<List<String>> volumes = OssUtils.planVolumes(Arrays.asList("a", "big", "b"),
+                Arrays.asList(metadata(10), metadata(10_000), metadata(10)), 1000);
+        assertThat(volumes).containsExactly(Collections.singletonList("a"), Collections.singletonList("big"),
+                Collections.singletonList("b"));
+    }
+
+    @Test
+    public void countsMissingMetadataAsEmptyFile() {
+        List<List<String>> volumes = OssUtils.planVolumes(Arrays.asList("a", "missing", "b"),
+                Arrays.asList(metadata(1000), null, metadata(1000)), TWO_ENTRIES_VOLUME_SIZE);
+        assertThat(volumes).containsExactly(Arrays.asList("a", "missing"), Collections.singletonList("b"));
+    }
+
+    private static ObjectMetadata metadata(long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        return metadata;
+    }
+
+}